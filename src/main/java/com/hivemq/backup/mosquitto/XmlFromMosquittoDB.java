@@ -17,10 +17,16 @@
 package com.hivemq.backup.mosquitto;
 
 import com.hivemq.backup.mosquitto.db.Chunk;
-import com.hivemq.backup.mosquitto.utils.DataExportZipper;
+import com.hivemq.backup.mosquitto.db.ChunkClient;
+import com.hivemq.backup.mosquitto.db.ChunkClientMessage;
+import com.hivemq.backup.mosquitto.db.ChunkMsgStore;
+import com.hivemq.backup.mosquitto.db.ChunkSubscription;
+import com.hivemq.backup.mosquitto.db.ChunkType;
+import com.hivemq.backup.mosquitto.db.QueuedMessageLimit;
+import com.hivemq.backup.mosquitto.utils.*;
 import com.hivemq.backup.mosquitto.xml.ClientSessionExporter;
 import com.hivemq.backup.mosquitto.xml.RetainedMessagesExporter;
-import org.apache.commons.io.FileUtils;
+import net.openhft.hashing.LongHashFunction;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.tinylog.Logger;
@@ -28,14 +34,36 @@ import picocli.CommandLine;
 import picocli.CommandLine.Help.ColorScheme;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 import java.util.concurrent.Callable;
-
-import static com.hivemq.backup.mosquitto.utils.DataExportZipper.EXPORT_DATE_FORMAT;
-import static com.hivemq.backup.mosquitto.utils.DataExportZipper.convertTimeStamp;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.hivemq.backup.mosquitto.utils.BackupNames.EXPORT_DATE_FORMAT;
+import static com.hivemq.backup.mosquitto.utils.BackupNames.convertTimeStamp;
+import static com.hivemq.backup.mosquitto.utils.BackupNames.getBackupFileName;
 import static picocli.CommandLine.Command;
 import static picocli.CommandLine.Option;
 
@@ -49,7 +77,7 @@ import static picocli.CommandLine.Option;
         mixinStandardHelpOptions = true )
 public class XmlFromMosquittoDB implements Callable<Integer> {
 
-    @Option(names = {"-i", "--input"}, required = true, description = "Input file (mosquitto.db)")
+    @Option(names = {"-i", "--input"}, description = "Input file (mosquitto.db)")
     private Path inputFile;
 
     @Option(names = {"-o", "--output"}, description = "Output directory of migrated backup. If not set defaults to current directory (${DEFAULT-VALUE})")
@@ -58,12 +86,89 @@ public class XmlFromMosquittoDB implements Callable<Integer> {
     @Option(names = {"-dc", "--display-chunks"}, description = "Display the created chunks to get more information about the migration data.")
     private boolean displayChunks;
 
-    @Option(names = {"-k", "--keep-xml"}, description = "Keep the created folders with all the xml files.")
+    @Option(names = {"-k", "--keep-xml"}, description = "Keep the created folders with all the xml files. Otherwise the xml files are only written into the backup.")
     private boolean keepFiles;
 
     @Option(names = {"-f", "--force"}, description = "Force migration if problems occur.")
     private boolean forceCreationWithFailures;
 
+    @Option(names = {"-t", "--threads"}, description = "Number of worker threads used to export the client sessions. (${DEFAULT-VALUE})")
+    private int threads = 1;
+
+    @Option(names = {"-rs", "--retained-shards"}, description = "Number of retained message shards which are written in parallel. (${DEFAULT-VALUE})")
+    private int retainedShards = 1;
+
+    @Option(names = {"-fc", "--fragment-cache-size"}, description = "Maximum size in bytes of the cache for messages which are queued for several clients. (${DEFAULT-VALUE})")
+    private long fragmentCacheSize = 64 * 1024 * 1024;
+
+    @Option(names = {"-cx", "--compact-xml"}, description = "Write the xml files without line breaks and indentation.")
+    private boolean compactXml;
+
+    @Option(names = {"-wb", "--write-buffer-size"}, description = "Size in bytes of the write buffer of every file which is written. (${DEFAULT-VALUE})")
+    private int writeBufferSize = 1024 * 1024;
+
+    @Option(names = {"--fsync"}, description = "Sync the backup to the storage device after it is written.")
+    private boolean fsync;
+
+    @Option(names = {"--scalar-encoding"}, description = "Scan and base64 encode text one byte at a time instead of with the accelerated implementation.")
+    private boolean scalarEncoding;
+
+    @Option(names = {"-ct", "--compression-threads"}, description = "Number of threads which compress the entries of the backup. (${DEFAULT-VALUE})")
+    private int compressionThreads = Runtime.getRuntime().availableProcessors();
+
+    @Option(names = {"-c", "--compression"}, description = "Compression profile of the backup: ${COMPLETION-CANDIDATES}. AUTO samples the others on the first entries. (${DEFAULT-VALUE})")
+    private CompressionProfile compressionProfile = CompressionProfile.FAST;
+
+    @Option(names = {"--target-bandwidth"}, description = "Bandwidth in bytes per second the backup is transferred with, used by the AUTO compression profile. (${DEFAULT-VALUE})")
+    private long targetBandwidth = 100 * 1024 * 1024;
+
+    @Option(names = {"-xs", "--xml-max-file-size"}, description = "Size in bytes at which a retained message xml file rolls over. (${DEFAULT-VALUE})")
+    private int xmlMaxFileSize = 10 * 1024 * 1024;
+
+    @Option(names = {"-zb", "--zip-buffer-size"}, description = "Size in bytes of the buffer every compression thread deflates into. (${DEFAULT-VALUE})")
+    private int zipBufferSize = 64 * 1024;
+
+    @Option(names = {"-mq", "--max-queued-messages"}, description = "Maximum number of queued messages per client, the excess is dropped while reading the database. 0 keeps all messages. (${DEFAULT-VALUE})")
+    private long maxQueuedMessages = 0;
+
+    @Option(names = {"-qo", "--queue-overflow"}, description = "Messages dropped from a client queue which exceeds the maximum: ${COMPLETION-CANDIDATES}. (${DEFAULT-VALUE})")
+    private QueuedMessageLimit.OverflowPolicy queueOverflowPolicy = QueuedMessageLimit.OverflowPolicy.DROP_OLDEST;
+
+    @Option(names = {"--discard-qos0"}, description = "Drop all queued messages with QoS 0.")
+    private boolean discardQos0;
+
+    @Option(names = {"-pq", "--pipeline-queue-size"}, description = "Number of rendered xml files the retained message and the client session stage may each queue for the backup writer. (${DEFAULT-VALUE})")
+    private int pipelineQueueSize = 16;
+
+    @Option(names = {"-bm", "--buffer-memory"}, description = "Size in bytes of the memory all rendered xml files may take until they are written into the backup, larger files are buffered in temporary files. (${DEFAULT-VALUE})")
+    private long bufferMemory = 64 * 1024 * 1024;
+
+    @Option(names = {"--stream"}, description = "Write the backup to stdout instead of the output directory, same as '-o -'. All messages are written to stderr.")
+    private boolean stream;
+
+    @Option(names = {"-ns", "--node-shards"}, description = "Number of HiveMQ nodes the client sessions are split across by their client id, every node gets its own backup. (${DEFAULT-VALUE})")
+    private int nodeShards = 1;
+
+    @Option(names = {"-p", "--previous"}, description = "Reuse the unchanged client sessions and retained message files of a previous backup of the same broker.")
+    private Path previousBackup;
+
+    @Option(names = {"--resume"}, description = "Continue the latest interrupted backup in the output directory instead of starting a new one.")
+    private boolean resume;
+
+    @Option(names = {"--watch"}, description = "Keep running and create a new backup whenever Mosquitto writes a new snapshot of the database, reusing the unchanged files of the backup before.")
+    private boolean watch;
+
+    @Option(names = {"-pi", "--progress-interval"}, description = "Seconds between two progress reports, 0 disables them. (${DEFAULT-VALUE})")
+    private long progressInterval = 10;
+
+    @Option(names = {"--progress-line"}, description = "Draw the progress as a status line at the bottom of the terminal instead of logging it.")
+    private boolean progressLine;
+
+    @Option(names = {"--jfr"}, description = "Record the export with Java Flight Recorder into the given file, including the events of the parsed chunks, rendered sessions and written backup entries.")
+    private Path jfrFile;
+
+    @Option(names = {"--verify"}, description = "Check the files of an existing backup against its manifest instead of creating a backup.")
+    private Path verifyBackup;
 
     private final static @NotNull ColorScheme colorScheme =  new CommandLine.Help.ColorScheme.Builder(CommandLine.Help.Ansi.ON)
             .commands(CommandLine.Help.Ansi.Style.bold, CommandLine.Help.Ansi.Style.fg_yellow)
@@ -72,11 +177,16 @@ public class XmlFromMosquittoDB implements Callable<Integer> {
             .optionParams(CommandLine.Help.Ansi.Style.italic)
             .build();
 
-    private static final int DATA_EXPORT_XML_MAX_FILE_SIZE = 10 * 1024 * 1024;
-    private static final int DATA_EXPORT_ZIP_BUFFER_SIZE = 1024 * 1024;
     private static final @NotNull String hiveMqVersion = "4.2.1";
     private static final @NotNull String clusterId = "MOSQU";
     private static final int TERMINAL_WIDTH = 160;
+    private static final @NotNull String PARTIAL_SUFFIX = ".partial";
+    private static final long SNAPSHOT_SETTLE_MILLIS = 500;
+    private static final @NotNull String SUMMARY_FILE = "export-summary.json";
+
+    private final @NotNull Set<ArchiveExportSink> activeArchives = ConcurrentHashMap.newKeySet();
+    private final @NotNull ExportProgress progress = new ExportProgress(ClientSessionExporter.SESSIONS_FOLDER, RetainedMessagesExporter.RETAINED_FOLDER);
+    private final @NotNull ExportMetrics metrics = new ExportMetrics();
 
     /**
      * Main method. Executes a new Command Line from pico-cli.
@@ -99,18 +209,146 @@ public class XmlFromMosquittoDB implements Callable<Integer> {
     @Override
     public Integer call() {
 
+        if (verifyBackup != null) {
+            return verify();
+        }
+        if (inputFile == null) {
+            Logger.error("Missing required option '--input=<inputFile>'.");
+            return 1;
+        }
+        final boolean streamBackup = stream || outputFolder.toString().equals("-");
+        if (streamBackup) {
+            // stdout only carries the backup, the log messages go to stderr
+            System.setOut(System.err);
+        }
         Logger.info("Starting backup creation.");
         if (forceCreationWithFailures) {
             Logger.warn("Force migration enabled.");
         }
+        if (threads < 1) {
+            Logger.error("The number of threads must be at least 1.");
+            return 1;
+        }
+        if (retainedShards < 1) {
+            Logger.error("The number of retained message shards must be at least 1.");
+            return 1;
+        }
+        if (writeBufferSize < 1) {
+            Logger.error("The write buffer size must be at least 1 byte.");
+            return 1;
+        }
+        if (compressionThreads < 1) {
+            Logger.error("The number of compression threads must be at least 1.");
+            return 1;
+        }
+        if (targetBandwidth < 1) {
+            Logger.error("The target bandwidth must be at least 1 byte per second.");
+            return 1;
+        }
+        if (xmlMaxFileSize < 1) {
+            Logger.error("The maximum xml file size must be at least 1 byte.");
+            return 1;
+        }
+        if (zipBufferSize < 1) {
+            Logger.error("The zip buffer size must be at least 1 byte.");
+            return 1;
+        }
+        if (pipelineQueueSize < 1) {
+            Logger.error("The pipeline queue size must be at least 1.");
+            return 1;
+        }
+        if (bufferMemory < 0) {
+            Logger.error("The buffer memory must not be negative.");
+            return 1;
+        }
+        if (fragmentCacheSize < 0) {
+            Logger.error("The fragment cache size must not be negative.");
+            return 1;
+        }
+        if (maxQueuedMessages < 0) {
+            Logger.error("The maximum number of queued messages must not be negative.");
+            return 1;
+        }
+        if (streamBackup && keepFiles) {
+            Logger.error("The xml files can not be kept when the backup is written to stdout.");
+            return 1;
+        }
+        if (streamBackup && resume) {
+            Logger.error("A backup which is written to stdout can not be resumed.");
+            return 1;
+        }
+        if (resume && previousBackup != null) {
+            Logger.error("A resumed backup can not reuse a previous backup.");
+            return 1;
+        }
+        if (nodeShards < 1) {
+            Logger.error("The number of node shards must be at least 1.");
+            return 1;
+        }
+        if (nodeShards > 1 && (streamBackup || resume || watch || previousBackup != null)) {
+            Logger.error("Backups for several nodes can not be combined with --stream, --resume, --watch or --previous.");
+            return 1;
+        }
+        if (watch && (streamBackup || resume)) {
+            Logger.error("Watch mode writes every backup to the output directory, it can not be combined with --stream or --resume.");
+            return 1;
+        }
+        if (progressInterval < 0) {
+            Logger.error("The progress interval must not be negative.");
+            return 1;
+        }
+        if (streamBackup && System.console() != null) {
+            Logger.error("The backup is not written to a terminal, redirect stdout to a file or a pipe.");
+            return 1;
+        }
+
+        if (jfrFile != null) {
+            try {
+                ExportEvents.startRecording(jfrFile);
+            } catch (final @NotNull IOException | IllegalStateException | SecurityException e) {
+                Logger.error("Could not start the flight recording into " + jfrFile + ": " + e);
+                return 1;
+            }
+        }
+        if (scalarEncoding) {
+            TextCodec.setAccelerated(false);
+        }
+        if (progressInterval > 0) {
+            final @NotNull ProgressReporter progressReporter = new ProgressReporter(progress, TimeUnit.SECONDS.toMillis(progressInterval), progressLine);
+            // the status line is removed however the export ends
+            Runtime.getRuntime().addShutdownHook(new Thread(progressReporter::close, "progress-reporter-close"));
+        }
+        registerMetrics();
+
+        @Nullable BackupJournal.Checkpoint checkpoint = null;
+        if (resume) {
+            try {
+                final @Nullable Path interruptedJournal = BackupJournal.findLatest(outputFolder);
+                if (interruptedJournal == null) {
+                    Logger.error("There is no interrupted backup in " + outputFolder + " to resume.");
+                    return 1;
+                }
+                checkpoint = BackupJournal.read(interruptedJournal);
+            } catch (IOException e) {
+                Logger.error("Could not read checkpoint journal: " + e.getMessage());
+                return 1;
+            }
+        }
 
-        final @NotNull Chunk chunk = new Chunk(forceCreationWithFailures);
-        final long exportTime = System.currentTimeMillis();
-        final @NotNull Path timestampedFolder = new File(outputFolder.toFile(), convertTimeStamp(exportTime).format(DateTimeFormatter.ofPattern(EXPORT_DATE_FORMAT))).toPath();
+        final @NotNull Chunk chunk = newChunk();
+        long inputHash = 0;
+        long inputSize = 0;
 
+        metrics.reset();
         try {
+            long phaseStart = System.nanoTime();
             byte[] dbBytes = chunk.readMosquittoDbFile(inputFile.toAbsolutePath());
+            inputHash = LongHashFunction.xx().hashBytes(dbBytes);
+            inputSize = dbBytes.length;
+            metrics.phaseFinished("read", phaseStart);
+            phaseStart = System.nanoTime();
             chunk.createChunksFromBinary(dbBytes, displayChunks);
+            metrics.phaseFinished("parse", phaseStart);
 
         } catch (IOException e) {
             Logger.error("File not Found: " + e.getMessage());
@@ -120,64 +358,433 @@ public class XmlFromMosquittoDB implements Callable<Integer> {
             System.exit(1);
         }
 
-        new RetainedMessagesExporter(exportTime, timestampedFolder, clusterId, hiveMqVersion, DATA_EXPORT_XML_MAX_FILE_SIZE)
-                .writeToXml(chunk.getRetainedFromMsgStore());
+        if (fsync && streamBackup) {
+            Logger.warn("The backup is written to stdout, it is not synced.");
+        }
+
+        if (!streamBackup) {
+            // a killed export records what it has finished, so it can be resumed
+            Runtime.getRuntime().addShutdownHook(new Thread(this::checkpointActiveArchives, "backup-checkpoint"));
+        }
 
-        new ClientSessionExporter(exportTime, timestampedFolder, clusterId, hiveMqVersion)
-                .writeToXml(chunk.getChunkClients(),
-                        chunk.getChunkSubscriptions(),
-                        chunk.getChunkClientMessages(),
-                        chunk.getChunkMsgStores());
+        // a resumed backup keeps its export time, so the files are rendered exactly like before
+        final long exportTime = (checkpoint != null) ? checkpoint.getHeader().getExportTime() : System.currentTimeMillis();
+        final @NotNull BackupJournal.Header journalHeader = new BackupJournal.Header(exportTime, inputHash, inputSize, contentSettings());
+        startExporting(chunk);
+        final long exportStart = System.nanoTime();
+        final boolean created = createBackups(chunk, journalHeader, checkpoint, previousBackup, streamBackup);
+        metrics.phaseFinished("export", exportStart);
+        progress.finish();
+        if (!created) {
+            System.exit(1);
+        }
+        if (!streamBackup) {
+            writeSummary(exportTime);
+        }
 
+        if (watch) {
+            return watchInput(backupFile(exportTime, 0), inputHash);
+        }
+        return 0;
+    }
+
+    /**
+     * Creates the backup of every node at the same time.
+     *
+     * @return True if all backups were created.
+     */
+    private boolean createBackups(final @NotNull Chunk chunk,
+                                  final @NotNull BackupJournal.Header journalHeader,
+                                  final @Nullable BackupJournal.Checkpoint checkpoint,
+                                  final @Nullable Path previousBackupFile,
+                                  final boolean streamBackup) {
+        if (nodeShards == 1) {
+            return createBackup(chunk, journalHeader, checkpoint, previousBackupFile, streamBackup, 0);
+        }
+
+        final @NotNull ExecutorService nodeExporters = Executors.newFixedThreadPool(nodeShards);
         try {
-            createBackupFile(outputFolder, exportTime);
+            final @NotNull List<Future<Boolean>> nodes = new ArrayList<>(nodeShards);
+            for (int node = 0; node < nodeShards; node++) {
+                final int exportedNode = node;
+                nodes.add(nodeExporters.submit(() -> createBackup(chunk, journalHeader, null, null, false, exportedNode)));
+            }
+            boolean created = true;
+            for (final @NotNull Future<Boolean> node : nodes) {
+                created &= node.get();
+            }
+            return created;
+        } catch (final @NotNull InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (final @NotNull ExecutionException ex) {
+            Logger.error("Could not create the node backups: " + ex.getCause());
+            return false;
+        } finally {
+            nodeExporters.shutdownNow();
+        }
+    }
 
-        } catch (IOException e) {
-            Logger.error("Could not create File: " + e.getMessage());
-            System.exit(1);
+    /**
+     * Creates a backup of a decoded database.
+     *
+     * @param chunk              The decoded database.
+     * @param journalHeader      The export time, the database and the settings of the backup.
+     * @param checkpoint         The journal of an interrupted backup which is resumed, null to start a new one.
+     * @param previousBackupFile A previous backup whose unchanged files are reused, null to render all.
+     * @param streamBackup       Write the backup to stdout instead of the output folder.
+     * @param node               The node the backup is created for, from 0 to the amount of node shards - 1.
+     * @return True if the backup was created, false if it failed. The reason is logged.
+     */
+    private boolean createBackup(final @NotNull Chunk chunk,
+                                 final @NotNull BackupJournal.Header journalHeader,
+                                 final @Nullable BackupJournal.Checkpoint checkpoint,
+                                 final @Nullable Path previousBackupFile,
+                                 final boolean streamBackup,
+                                 final int node) {
+        final long exportTime = journalHeader.getExportTime();
+        final @NotNull Path backupFile = backupFile(exportTime, node);
+        final @NotNull Path timestampedFolder = Objects.requireNonNull(backupFile.getParent());
+        final @NotNull Path journalFile = BackupJournal.journalFile(backupFile);
+        final @NotNull Path partialBackup = backupFile.resolveSibling(backupFile.getFileName() + PARTIAL_SUFFIX);
+
+        final @Nullable PreviousBackup previous;
+        if (checkpoint != null) {
+            if (checkpoint.getHeader().getInputHash() != journalHeader.getInputHash()
+                    || checkpoint.getHeader().getInputSize() != journalHeader.getInputSize()) {
+                Logger.error("The database changed since the interrupted backup was started, it can not be resumed.");
+                return false;
+            }
+            if (!checkpoint.getHeader().getSettings().equals(journalHeader.getSettings())) {
+                Logger.error("The interrupted backup was started with other settings: " + checkpoint.getHeader().getSettings());
+                return false;
+            }
+            try {
+                // the interrupted archive is read while the backup is written again under its name
+                if (Files.exists(backupFile)) {
+                    Files.move(backupFile, partialBackup, StandardCopyOption.REPLACE_EXISTING);
+                }
+                previous = new PreviousBackup(partialBackup, checkpoint.getEntries());
+            } catch (IOException e) {
+                Logger.error("Could not read interrupted backup: " + e.getMessage());
+                return false;
+            }
+            Logger.info("Resuming the backup in " + timestampedFolder + ", " + previous.size() + " files are written already.");
+        } else {
+            try {
+                previous = (previousBackupFile != null) ? new PreviousBackup(previousBackupFile) : null;
+            } catch (IOException e) {
+                Logger.error("Could not read previous backup: " + e.getMessage());
+                return false;
+            }
         }
 
-        Logger.info("Backup created in: " + timestampedFolder);
+        // the xml files are written straight into the backup, they only reach the disk when they are kept
+        try (previous;
+             final @NotNull MemoryBudget budget = new MemoryBudget(bufferMemory);
+             final @NotNull ExportSink backupSink = streamBackup
+                ? new StreamExportSink(new FileOutputStream(FileDescriptor.out), writeBufferSize)
+                : new DirectoryExportSink(timestampedFolder, writeBufferSize, fsync);
+             final @NotNull ArchiveExportSink archiveSink = new ArchiveExportSink(progress.countArchived(backupSink.open(backupFile.getFileName().toString())),
+                     compressionProfile, targetBandwidth, exportTime, compressionThreads, zipBufferSize, budget,
+                     streamBackup ? null : new BackupJournal(journalFile, journalHeader));
+             final @NotNull ExportSink xmlSink = new ProgressExportSink(new MetricsExportSink(createXmlSink(archiveSink, timestampedFolder), metrics), progress)) {
+
+            activeArchives.add(archiveSink);
+            try (final @NotNull ExportPipeline pipeline = new ExportPipeline(xmlSink, pipelineQueueSize, budget)) {
+                exportXml(chunk, pipeline, exportTime, previous, node);
+            } catch (IOException | RuntimeException e) {
+                // the backup is closed incomplete, its journal allows to resume it
+                archiveSink.abort();
+                throw e;
+            } finally {
+                activeArchives.remove(archiveSink);
+            }
 
-        if (!keepFiles) {
+        } catch (IOException | RuntimeException e) {
+            Logger.error("Could not create the backup in " + timestampedFolder + ": " + e.getMessage());
+            return false;
+        }
+
+        if (streamBackup) {
+            Logger.info("Backup written to stdout.");
+        } else {
             try {
-                deleteXmlFilesOnExit(timestampedFolder);
+                Files.deleteIfExists(journalFile);
+                Files.deleteIfExists(partialBackup);
             } catch (IOException e) {
-                Logger.error("XML Files could not be deleted." + e.getMessage());
+                Logger.warn("Could not delete checkpoint journal: " + e.getMessage());
             }
+            Logger.info("Backup created in: " + timestampedFolder);
         }
-        deleteNodeFilesOnExit(timestampedFolder);
+        return true;
+    }
 
-        return 0;
+    /**
+     * Waits for new snapshots of the database and creates a backup of each, which reuses the unchanged files of the
+     * backup before. A snapshot is exported once its size stays the same for a moment and it is complete, so copied
+     * or slowly written files are not exported half way. Returns only if watching fails.
+     *
+     * @param lastBackup The backup of the last snapshot.
+     * @param lastHash   The xxHash of the last snapshot, an unchanged snapshot is not exported again.
+     * @return Indicates failure.
+     */
+    private int watchInput(@NotNull Path lastBackup, long lastHash) {
+        final @NotNull Path input = inputFile.toAbsolutePath();
+        final @NotNull Path folder = Objects.requireNonNull(input.getParent());
+        long lastExportTime = 0;
+        Logger.info("Watching " + input + " for new snapshots.");
+
+        try (final @NotNull WatchService watchService = folder.getFileSystem().newWatchService()) {
+            // Mosquitto writes a new snapshot next to the database and renames it
+            folder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            while (true) {
+                final @NotNull WatchKey key = watchService.take();
+                boolean changed = false;
+                for (final @NotNull WatchEvent<?> event : key.pollEvents()) {
+                    changed |= event.kind() == StandardWatchEventKinds.OVERFLOW || input.getFileName().equals(event.context());
+                }
+                if (!key.reset()) {
+                    Logger.error("The folder " + folder + " can not be watched anymore.");
+                    return 1;
+                }
+                if (!changed) {
+                    continue;
+                }
+
+                final @Nullable byte[] dbBytes = readCompleteSnapshot(input);
+                if (dbBytes == null) {
+                    // the rest of the snapshot comes with another event
+                    continue;
+                }
+                final long inputHash = LongHashFunction.xx().hashBytes(dbBytes);
+                if (inputHash == lastHash) {
+                    continue;
+                }
+                metrics.reset();
+                final @NotNull Chunk chunk = newChunk();
+                try {
+                    final long parseStart = System.nanoTime();
+                    chunk.createChunksFromBinary(dbBytes, displayChunks);
+                    metrics.phaseFinished("parse", parseStart);
+                } catch (RuntimeException e) {
+                    progress.finish();
+                    Logger.error("Could not read snapshot: " + e.getMessage());
+                    continue;
+                }
+
+                // the backups are named by the second of their export time
+                final long exportTime = Math.max(System.currentTimeMillis(), lastExportTime + 1000);
+                Logger.info("Exporting new snapshot of " + input + ".");
+                startExporting(chunk);
+                final long exportStart = System.nanoTime();
+                final boolean created = createBackup(chunk, new BackupJournal.Header(exportTime, inputHash, dbBytes.length, contentSettings()),
+                        null, lastBackup, false, 0);
+                metrics.phaseFinished("export", exportStart);
+                progress.finish();
+                if (created) {
+                    writeSummary(exportTime);
+                    lastBackup = backupFile(exportTime, 0);
+                    lastHash = inputHash;
+                    lastExportTime = exportTime;
+                }
+            }
+        } catch (IOException e) {
+            Logger.error("Could not watch " + input + ": " + e.getMessage());
+            return 1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
     }
 
-    private static void deleteXmlFilesOnExit(final @NotNull Path timestampedFolder) throws IOException {
-        final @NotNull File retainedMessagesFolder = Path.of(timestampedFolder + File.separator + "retained-messages").toFile();
-        if (retainedMessagesFolder.isDirectory() && retainedMessagesFolder.exists()) {
-            FileUtils.deleteDirectory(retainedMessagesFolder);
+    /**
+     * @return The snapshot, null if it is still being written.
+     */
+    static @Nullable byte[] readCompleteSnapshot(final @NotNull Path input) throws InterruptedException {
+        try {
+            long size = Files.size(input);
+            while (true) {
+                Thread.sleep(SNAPSHOT_SETTLE_MILLIS);
+                final long settledSize = Files.size(input);
+                if (settledSize == size) {
+                    break;
+                }
+                size = settledSize;
+            }
+            final @NotNull byte[] dbBytes = Files.readAllBytes(input);
+            return Chunk.isComplete(dbBytes) ? dbBytes : null;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            Logger.warn("Could not read snapshot: " + e.getMessage());
+            return null;
         }
+    }
+
+    private @NotNull Chunk newChunk() {
+        return new Chunk(forceCreationWithFailures, new QueuedMessageLimit(maxQueuedMessages, queueOverflowPolicy, discardQos0), progress);
+    }
+
+    private void startExporting(final @NotNull Chunk chunk) {
+        final long sessions = chunk.getChunkClients().stream().filter(ClientSessionExporter::isPersistent).count();
+        progress.startExporting(sessions, chunk.getRetainedMessages().size());
+    }
+
+    private @NotNull Path exportFolder(final long exportTime) {
+        final @NotNull String fileTimeStamp = convertTimeStamp(exportTime).format(DateTimeFormatter.ofPattern(EXPORT_DATE_FORMAT));
+        return new File(outputFolder.toFile(), fileTimeStamp).toPath();
+    }
 
-        final @NotNull File clientSessionsFolder = Path.of(timestampedFolder + File.separator + "client-sessions").toFile();
-        if (clientSessionsFolder.isDirectory() && clientSessionsFolder.exists()) {
-            FileUtils.deleteDirectory(clientSessionsFolder);
+    private @NotNull Path backupFile(final long exportTime, final int node) {
+        final @NotNull String fileTimeStamp = convertTimeStamp(exportTime).format(DateTimeFormatter.ofPattern(EXPORT_DATE_FORMAT));
+        @NotNull Path folder = exportFolder(exportTime);
+        if (nodeShards > 1) {
+            // every node imports a backup of the usual name from its own folder
+            folder = folder.resolve("node-" + (node + 1));
         }
+        return folder.resolve(getBackupFileName(fileTimeStamp, hiveMqVersion));
+    }
+
+    /**
+     * Makes the chunks, records and bytes counted by the progress part of the metrics.
+     */
+    private void registerMetrics() {
+        for (final @NotNull ChunkType type : ChunkType.values()) {
+            metrics.gauge("chunks." + type.getShortName() + ".records", () -> progress.getChunks(type));
+            metrics.gauge("chunks." + type.getShortName() + ".bytes", () -> progress.getChunkBytes(type));
+        }
+        metrics.gauge("sessions.exported", progress::getExportedSessions);
+        metrics.gauge("retained-messages.exported", progress::getExportedRetainedMessages);
+        metrics.gauge("backup.archived.bytes", progress::getArchivedBytes);
+        metrics.register();
+    }
 
+    private void writeSummary(final long exportTime) {
+        final @NotNull Path summaryFile = exportFolder(exportTime).resolve(SUMMARY_FILE);
+        try {
+            metrics.writeSummary(summaryFile);
+            Logger.info("Export summary written to: " + summaryFile);
+        } catch (IOException e) {
+            Logger.warn("Could not write export summary: " + e.getMessage());
+        }
     }
 
-    private static void deleteNodeFilesOnExit(final @NotNull Path timestampedFolder) {
-        //Delete .node files on Exit
-        final @Nullable File[] nodes = timestampedFolder.toFile().listFiles((dir, name) -> name.startsWith("node.") && name.endsWith(".backup"));
-        if (nodes != null) {
-            for (File node : nodes) {
-                Objects.requireNonNull(node).deleteOnExit();
+    private void checkpointActiveArchives() {
+        for (final @NotNull ArchiveExportSink archive : activeArchives) {
+            try {
+                archive.checkpoint();
+            } catch (IOException e) {
+                Logger.warn("Could not checkpoint the backup: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Renders the retained messages and the client sessions at the same time. Each writes to its own lane of the
+     * pipeline, the files of both are interleaved in the order they are finished.
+     * <p>
+     * Each node gets the sessions of its own clients, the retained messages are only exported once with the first node.
+     */
+    private void exportXml(final @NotNull Chunk chunk,
+                           final @NotNull ExportPipeline pipeline,
+                           final long exportTime,
+                           final @Nullable PreviousBackup previous,
+                           final int node) throws IOException {
+        @NotNull List<ChunkClient> clients = chunk.getChunkClients();
+        @NotNull List<ChunkSubscription> subscriptions = chunk.getChunkSubscriptions();
+        @NotNull List<ChunkClientMessage> clientMessages = chunk.getChunkClientMessages();
+        if (nodeShards > 1) {
+            final @NotNull NodeShards shards = new NodeShards(nodeShards);
+            clients = clients.stream()
+                    .filter(client -> shards.nodeOf(client.getClientId()) == node)
+                    .collect(Collectors.toList());
+            final @NotNull Set<String> clientIds = clients.stream().map(ChunkClient::getClientId).collect(Collectors.toSet());
+            subscriptions = subscriptions.stream()
+                    .filter(subscription -> clientIds.contains(subscription.getClientId()))
+                    .collect(Collectors.toList());
+            clientMessages = clientMessages.stream()
+                    .filter(clientMessage -> clientIds.contains(clientMessage.getClientId()))
+                    .collect(Collectors.toList());
+        }
+        final @NotNull List<ChunkMsgStore> retainedMessages = (node == 0) ? chunk.getRetainedMessages() : List.of();
+        final @NotNull List<ChunkClient> nodeClients = clients;
+        final @NotNull List<ChunkSubscription> nodeSubscriptions = subscriptions;
+        final @NotNull List<ChunkClientMessage> nodeClientMessages = clientMessages;
+
+        final @NotNull ExportSink retainedLane = pipeline.lane();
+        final @NotNull ExportSink sessionLane = pipeline.lane();
+
+        final @NotNull ExecutorService retainedRenderer = Executors.newSingleThreadExecutor();
+        try {
+            final @NotNull Future<Void> retained = retainedRenderer.submit(() -> {
+                try (retainedLane) {
+                    new RetainedMessagesExporter(exportTime, retainedLane, clusterId, hiveMqVersion, xmlMaxFileSize, retainedShards, !compactXml, previous)
+                            .writeToXml(retainedMessages);
+                }
+                return null;
+            });
+
+            try (sessionLane) {
+                new ClientSessionExporter(exportTime, sessionLane, clusterId, hiveMqVersion, threads, fragmentCacheSize, !compactXml, previous,
+                        metrics.histogram("render.session.nanos"))
+                        .writeToXml(nodeClients,
+                                nodeSubscriptions,
+                                nodeClientMessages,
+                                chunk.getChunkMsgStores());
+            }
+            retained.get();
+
+        } catch (final @NotNull InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while rendering the retained messages.");
+        } catch (final @NotNull ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
             }
+            throw new IOException("Could not render the retained messages: " + ex.getCause(), ex.getCause());
+        } finally {
+            retainedRenderer.shutdownNow();
+        }
+    }
+
+    private @NotNull ExportSink createXmlSink(final @NotNull ArchiveExportSink archiveSink, final @NotNull Path timestampedFolder) {
+        if (!keepFiles) {
+            return archiveSink;
         }
+
+        // the kept xml files are only for investigation, syncing them would not make the backup any safer
+        return new TeeExportSink(archiveSink, new DirectoryExportSink(timestampedFolder, writeBufferSize, false));
     }
 
-    private static void createBackupFile(final @NotNull Path backupFolder, final long timestamp) throws IOException {
-        final @NotNull DataExportZipper zipper = new DataExportZipper(clusterId, backupFolder, hiveMqVersion, DATA_EXPORT_ZIP_BUFFER_SIZE);
-        zipper.zipExport(timestamp);
-        zipper.mergeZipFiles(timestamp);
+    /**
+     * @return The settings which change the content of the backup. An interrupted backup is only resumed with the same.
+     */
+    private @NotNull String contentSettings() {
+        return "compact-xml=" + compactXml
+                + " xml-max-file-size=" + xmlMaxFileSize
+                + " retained-shards=" + retainedShards
+                + " max-queued-messages=" + maxQueuedMessages
+                + " queue-overflow=" + queueOverflowPolicy
+                + " discard-qos0=" + discardQos0;
+    }
+
+    private int verify() {
+        if (compressionThreads < 1) {
+            Logger.error("The number of compression threads must be at least 1.");
+            return 1;
+        }
+        Logger.info("Verifying backup " + verifyBackup + ".");
+        try {
+            if (!new BackupVerifier(verifyBackup, compressionThreads).verify()) {
+                // the exit code is what scripts check after a transfer
+                System.exit(1);
+            }
+        } catch (IOException e) {
+            Logger.error("Could not read backup: " + e.getMessage());
+            System.exit(1);
+        }
+        return 0;
     }
 
 }
\ No newline at end of file
@@ -16,6 +16,9 @@
  */
 package com.hivemq.backup.mosquitto.db;
 
+import com.hivemq.backup.mosquitto.utils.ExportEvents;
+import com.hivemq.backup.mosquitto.utils.ExportProgress;
+import net.openhft.hashing.LongHashFunction;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.tinylog.Logger;
@@ -33,6 +36,14 @@ import java.util.*;
  */
 public class Chunk {
 
+    /**
+     * Hashes the bytes of every chunk.
+     */
+    private static final @NotNull LongHashFunction FINGERPRINT = LongHashFunction.xx();
+    private static final @NotNull byte[] FILE_HEADER = {0x00, (byte) 0xB5, 0x00, 'm', 'o', 's', 'q', 'u', 'i', 't', 't', 'o', ' ', 'd', 'b'};
+    private static final int FIRST_CHUNK_INDEX = FILE_HEADER.length + 2 * Integer.BYTES;
+    private static final int DECODE_EVENT_CHUNKS = 4096;
+
     /**
      * Contains all Configuration-Chunks.
      */
@@ -43,6 +54,11 @@ public class Chunk {
      */
     private final @NotNull List<ChunkMsgStore> chunkMsgStores = new ArrayList<>();
 
+    /**
+     * Contains all MessageStore-Chunks by their store id.
+     */
+    private final @NotNull Map<Long, ChunkMsgStore> chunkMsgStoresById = new HashMap<>();
+
     /**
      * Contains all Client-Chunks.
      */
@@ -63,19 +79,90 @@ public class Chunk {
      */
     private final @NotNull List<ChunkRetain> chunkRetains = new ArrayList<>();
 
+    /**
+     * Contains the live retained message of every topic, resolved once after the database is parsed.
+     */
+    private @NotNull List<ChunkMsgStore> retainedMessages = List.of();
+
+    /**
+     * Contains every distinct client id and topic once, so equal names share one instance.
+     */
+    private final @NotNull Map<String, String> names = new HashMap<>();
+
     /**
      * Enables force mode to ignore migration failures.
      */
     private final boolean forceCreationWithFailures;
 
+    /**
+     * The limits for the queued messages of every client.
+     */
+    private final @NotNull QueuedMessageLimit queuedMessageLimit;
+
+    /**
+     * Contains the accepted ClientMessage-Chunks of every client whose properties are not decoded yet, if the queued
+     * messages are limited. The head of every queue is the message which is dropped next.
+     */
+    private final @NotNull Map<String, PriorityQueue<PendingClientMessage>> pendingClientMessages = new HashMap<>();
+
+    /**
+     * Orders the pending messages of a client, the message which is dropped first comes first.
+     */
+    private final @NotNull Comparator<PendingClientMessage> dropOrder;
+
+    /**
+     * Counts the pending ClientMessage-Chunks in the order of the database.
+     */
+    private int clientMessageSequence = 0;
+
+    /**
+     * Counts the dropped ClientMessage-Chunks with quality of service 0.
+     */
+    private long discardedQos0Messages = 0;
+
+    /**
+     * Counts the parsed chunks, if the progress is reported.
+     */
+    private final @Nullable ExportProgress progress;
+
     /**
      * Default Constructor.
      *
      * @hidden
      */
     public Chunk(final boolean forceCreationWithFailures) {
+        this(forceCreationWithFailures, QueuedMessageLimit.UNLIMITED);
+    }
+
+    /**
+     * Creates a Chunk which applies limits to the queued messages of every client.
+     *
+     * @param forceCreationWithFailures Enables force mode to ignore migration failures.
+     * @param queuedMessageLimit        The limits for the queued messages of every client.
+     */
+    public Chunk(final boolean forceCreationWithFailures, final @NotNull QueuedMessageLimit queuedMessageLimit) {
+        this(forceCreationWithFailures, queuedMessageLimit, null);
+    }
+
+    /**
+     * Creates a Chunk which applies limits to the queued messages of every client and counts every parsed chunk.
+     *
+     * @param forceCreationWithFailures Enables force mode to ignore migration failures.
+     * @param queuedMessageLimit        The limits for the queued messages of every client.
+     * @param progress                  The progress the parsed chunks are counted in, null to count none.
+     */
+    public Chunk(final boolean forceCreationWithFailures,
+                 final @NotNull QueuedMessageLimit queuedMessageLimit,
+                 final @Nullable ExportProgress progress) {
 
         this.forceCreationWithFailures = forceCreationWithFailures;
+        this.queuedMessageLimit = queuedMessageLimit;
+        this.progress = progress;
+
+        // the store id grows with every stored message, unlike the message id it neither wraps nor is reused
+        final @NotNull Comparator<PendingClientMessage> byAge = Comparator.<PendingClientMessage>comparingLong(message -> message.storeId)
+                .thenComparingInt(message -> message.sequence);
+        this.dropOrder = queuedMessageLimit.getOverflowPolicy() == QueuedMessageLimit.OverflowPolicy.DROP_OLDEST ? byAge : byAge.reversed();
     }
 
     /**
@@ -90,6 +177,29 @@ public class Chunk {
         return Files.readAllBytes(filePath);
     }
 
+    /**
+     * Checks if a database File is completely written. Mosquitto leaves the CRC of the header at 0, so the File is
+     * complete if it starts with the magic header and its Chunks end exactly at its end.
+     *
+     * @param dbBytes Byte Array containing the whole database File.
+     * @return True if no Chunk is cut off.
+     */
+    public static boolean isComplete(final @NotNull byte[] dbBytes) {
+        if (dbBytes.length < FIRST_CHUNK_INDEX || !Arrays.equals(FILE_HEADER, Arrays.copyOf(dbBytes, FILE_HEADER.length))) {
+            return false;
+        }
+        final @NotNull ByteBuffer byteBuffer = ByteBuffer.wrap(dbBytes);
+        long index = FIRST_CHUNK_INDEX;
+        while (index + 2 * Integer.BYTES <= dbBytes.length) {
+            final int length = byteBuffer.getInt((int) index + Integer.BYTES);
+            if (length < 0) {
+                return false;
+            }
+            index += 2 * Integer.BYTES + length;
+        }
+        return index == dbBytes.length;
+    }
+
     /**
      * Reads the database Chunks and saves it to individual Lists.
      * <p></p>
@@ -110,9 +220,8 @@ public class Chunk {
         final @NotNull ByteBuffer byteBuffer = ByteBuffer.wrap(dbBytes);
 
         //MAGIC HEADER:
-        final @NotNull byte[] fileIdentifierHeader = {0x00, (byte) 0xB5, 0x00, 'm', 'o', 's', 'q', 'u', 'i', 't', 't', 'o', ' ', 'd', 'b'};
         final @NotNull byte[] header = Arrays.copyOfRange(byteBuffer.array(), 0, 15);
-        if (Arrays.equals(fileIdentifierHeader, header)) {
+        if (Arrays.equals(FILE_HEADER, header)) {
             if (displayChunks) {
                 Logger.info("Magic header are equal.");
             }
@@ -138,8 +247,14 @@ public class Chunk {
         arrayIndex += Integer.BYTES;
 
         //Get Chunks:
+        if (progress != null) {
+            progress.startParsing(dbBytes.length);
+        }
+        @NotNull ExportEvents.ChunkDecode decodeEvent = new ExportEvents.ChunkDecode(arrayIndex);
         while (arrayIndex < dbBytes.length) {
-            switch (Objects.requireNonNull(getChunkType(byteBuffer, arrayIndex))) {
+            final int chunkStart = arrayIndex;
+            final @NotNull ChunkType chunkType = Objects.requireNonNull(getChunkType(byteBuffer, arrayIndex));
+            switch (chunkType) {
                 case DB_CHUNK_CFG:
                     arrayIndex += Integer.BYTES;
                     final int cfgLength = getChunkLength(byteBuffer, arrayIndex);
@@ -176,7 +291,7 @@ public class Chunk {
                     arrayIndex += Integer.BYTES;
                     final int subLength = getChunkLength(byteBuffer, arrayIndex);
                     arrayIndex += Integer.BYTES;
-                    getSubscriptionChunk(byteBuffer, arrayIndex);
+                    getSubscriptionChunk(byteBuffer, arrayIndex, subLength);
                     arrayIndex += subLength;
                     break;
 
@@ -184,7 +299,7 @@ public class Chunk {
                     arrayIndex += Integer.BYTES;
                     final int clientLength = getChunkLength(byteBuffer, arrayIndex);
                     arrayIndex += Integer.BYTES;
-                    getClientChunk(byteBuffer, arrayIndex);
+                    getClientChunk(byteBuffer, arrayIndex, clientLength);
                     arrayIndex += clientLength;
                     break;
 
@@ -196,6 +311,20 @@ public class Chunk {
                     }
                     break;
             }
+            if (progress != null) {
+                progress.parsed(chunkType, chunkStart, arrayIndex);
+            }
+            if (decodeEvent.decoded() == DECODE_EVENT_CHUNKS) {
+                decodeEvent.finish(arrayIndex);
+                decodeEvent = new ExportEvents.ChunkDecode(arrayIndex);
+            }
+        }
+        decodeEvent.finish(arrayIndex);
+
+        decodePendingClientMessages(byteBuffer);
+        retainedMessages = resolveRetainedMessages();
+        if (discardedQos0Messages > 0) {
+            Logger.info("Dropped " + discardedQos0Messages + " queued messages with QoS 0.");
         }
 
         if (displayChunks) {
@@ -250,10 +379,11 @@ public class Chunk {
      * - the subscribing client id (String) <br>
      * - the subscribed topic (String)
      *
-     * @param subBytes Byte Array containing all persistent Chunks created by Mosquitto.
-     * @param index    The index of the Subscription-Chunk after its length attribute.
+     * @param subBytes  Byte Array containing all persistent Chunks created by Mosquitto.
+     * @param index     The index of the Subscription-Chunk after its length attribute.
+     * @param subLength The length of the whole Subscription-Chunk.
      */
-    private void getSubscriptionChunk(final @NotNull ByteBuffer subBytes, final int index) {
+    private void getSubscriptionChunk(final @NotNull ByteBuffer subBytes, final int index, final int subLength) {
         int chunkIndex = index;
         final int identifier = subBytes.getInt(chunkIndex);
         chunkIndex += Integer.BYTES;
@@ -268,12 +398,12 @@ public class Chunk {
         //2 Extra Bytes to keep Alignment.
         chunkIndex += 2;
 
-        final @NotNull String clientId = new String(Arrays.copyOfRange(subBytes.array(), chunkIndex, chunkIndex + idLength));
+        final @NotNull String clientId = intern(new String(Arrays.copyOfRange(subBytes.array(), chunkIndex, chunkIndex + idLength)));
         chunkIndex += idLength;
 
-        final @NotNull String topic = new String(Arrays.copyOfRange(subBytes.array(), chunkIndex, chunkIndex + topicLength));
+        final @NotNull String topic = intern(new String(Arrays.copyOfRange(subBytes.array(), chunkIndex, chunkIndex + topicLength)));
 
-        chunkSubscriptions.add(new ChunkSubscription(identifier, qos, options, clientId, topic));
+        chunkSubscriptions.add(new ChunkSubscription(identifier, qos, options, clientId, topic, fingerprint(subBytes, index, subLength)));
     }
 
     /**
@@ -304,10 +434,11 @@ public class Chunk {
      * - the string length of the client id [Mosquitto] (short) <br>
      * - the client id (string) <br>
      *
-     * @param clientBytes Byte Array containing all persistent Chunks created by Mosquitto.
-     * @param index       The index of the Client-Chunk after its length attribute.
+     * @param clientBytes  Byte Array containing all persistent Chunks created by Mosquitto.
+     * @param index        The index of the Client-Chunk after its length attribute.
+     * @param clientLength The length of the whole Client-Chunk.
      */
-    private void getClientChunk(final @NotNull ByteBuffer clientBytes, final int index) {
+    private void getClientChunk(final @NotNull ByteBuffer clientBytes, final int index, final int clientLength) {
         int chunkIndex = index;
         final long sessionExpiryTime = clientBytes.duplicate().order(ByteOrder.LITTLE_ENDIAN).getLong(chunkIndex);
         chunkIndex += Long.BYTES;
@@ -318,9 +449,10 @@ public class Chunk {
         final short idLength = clientBytes.getShort(chunkIndex);
         chunkIndex += Short.BYTES;
 
-        final @NotNull String clientId = new String(Arrays.copyOfRange(clientBytes.array(), chunkIndex, chunkIndex + idLength));
+        final @NotNull String clientId = intern(new String(Arrays.copyOfRange(clientBytes.array(), chunkIndex, chunkIndex + idLength)));
 
-        chunkClients.add(new ChunkClient(clientId, lastMid, sessionExpiryTime, sessionExpiryInterval));
+        chunkClients.add(new ChunkClient(clientId, lastMid, sessionExpiryTime, sessionExpiryInterval,
+                fingerprint(clientBytes, index, clientLength)));
     }
 
     /**
@@ -358,13 +490,68 @@ public class Chunk {
         final byte direction = clientMessageBytes.get(chunkIndex);
         chunkIndex += Byte.BYTES;
 
-        final @NotNull String clientId = new String(Arrays.copyOfRange(clientMessageBytes.array(), chunkIndex, chunkIndex + idLength));
+        if (qos == 0 && queuedMessageLimit.isDiscardQos0()) {
+            discardedQos0Messages++;
+            return;
+        }
+
+        final @NotNull String clientId = intern(new String(Arrays.copyOfRange(clientMessageBytes.array(), chunkIndex, chunkIndex + idLength)));
         chunkIndex += idLength;
 
         final int absoluteLength = index + clientMessageLength;
+        final long fingerprint = fingerprint(clientMessageBytes, index, clientMessageLength);
+        if (queuedMessageLimit.getMaxQueuedMessages() > 0) {
+            // the properties are decoded once the messages which are kept are known
+            queueClientMessage(new PendingClientMessage(clientMessageSequence++, storeId, mid, qos, state,
+                    retainDuplicate, direction, clientId, chunkIndex, absoluteLength, fingerprint));
+            return;
+        }
         final @NotNull List<Property> properties = getProperties(clientMessageBytes, chunkIndex, absoluteLength);
 
-        chunkClientMessages.add(new ChunkClientMessage(storeId, mid, qos, state, retainDuplicate, direction, clientId, properties));
+        chunkClientMessages.add(new ChunkClientMessage(storeId, mid, qos, state, retainDuplicate, direction, clientId, properties, fingerprint));
+    }
+
+    /**
+     * Adds a ClientMessage-Chunk to the bounded queue of its client. If the queue is full, either the new message or
+     * the head of the queue is dropped, depending on the overflow policy.
+     *
+     * @param message The ClientMessage-Chunk without its properties.
+     */
+    private void queueClientMessage(final @NotNull PendingClientMessage message) {
+        final @NotNull PriorityQueue<PendingClientMessage> queue = pendingClientMessages.computeIfAbsent(message.clientId,
+                clientId -> new PriorityQueue<>(dropOrder));
+        if (queue.size() < queuedMessageLimit.getMaxQueuedMessages()) {
+            queue.add(message);
+        } else if (dropOrder.compare(message, queue.peek()) > 0) {
+            queue.poll();
+            queue.add(message);
+        }
+    }
+
+    /**
+     * Decodes the properties of all ClientMessage-Chunks which were kept and adds them to the ClientMessage-Chunk List
+     * in the order of the database.
+     *
+     * @param dbBytes Byte Array containing all persistent Chunks created by Mosquitto.
+     */
+    private void decodePendingClientMessages(final @NotNull ByteBuffer dbBytes) {
+        if (pendingClientMessages.isEmpty()) {
+            return;
+        }
+        final @NotNull List<PendingClientMessage> kept = new ArrayList<>();
+        pendingClientMessages.values().forEach(kept::addAll);
+        pendingClientMessages.clear();
+        kept.sort(Comparator.comparingInt(message -> message.sequence));
+
+        for (final @NotNull PendingClientMessage message : kept) {
+            final @NotNull List<Property> properties = getProperties(dbBytes, message.propertiesIndex, message.absoluteLength);
+            chunkClientMessages.add(new ChunkClientMessage(message.storeId, message.mid, message.qos, message.state,
+                    message.retainDuplicate, message.direction, message.clientId, properties, message.fingerprint));
+        }
+        if (kept.size() < clientMessageSequence) {
+            Logger.warn("Dropped " + (clientMessageSequence - kept.size()) + " queued messages which exceeded the maximum of "
+                    + queuedMessageLimit.getMaxQueuedMessages() + " queued messages per client.");
+        }
     }
 
     /**
@@ -424,7 +611,7 @@ public class Chunk {
             usernameOrId = "";
         }
 
-        final @NotNull String topic = new String(Arrays.copyOfRange(msgStoreBytes.array(), chunkIndex, chunkIndex + topicLength));
+        final @NotNull String topic = intern(new String(Arrays.copyOfRange(msgStoreBytes.array(), chunkIndex, chunkIndex + topicLength)));
         chunkIndex += topicLength;
 
         final @NotNull String payload;
@@ -438,7 +625,10 @@ public class Chunk {
         final int absoluteLength = index + msgStoreLength;
         final @NotNull List<Property> properties = getProperties(msgStoreBytes, chunkIndex, absoluteLength);
 
-        chunkMsgStores.add(new ChunkMsgStore(storeId, sourcePort, sourceMid, topic, qos, retain, usernameOrId, payloadLength, expiryTime, payload, properties));
+        final @NotNull ChunkMsgStore chunkMsgStore = new ChunkMsgStore(storeId, sourcePort, sourceMid, topic, qos, retain, usernameOrId, payloadLength, expiryTime, payload, properties,
+                fingerprint(msgStoreBytes, index, msgStoreLength));
+        chunkMsgStores.add(chunkMsgStore);
+        chunkMsgStoresById.putIfAbsent(storeId, chunkMsgStore);
     }
 
     /**
@@ -526,6 +716,18 @@ public class Chunk {
         return Collections.unmodifiableList(properties);
     }
 
+    /**
+     * Hashes the bytes of a chunk, the hash is the same for the same chunk in every database.
+     *
+     * @param dbBytes     Byte Array containing all persistent Chunks created by Mosquitto.
+     * @param index       The index of the Chunk after its length attribute.
+     * @param chunkLength The length of the whole Chunk.
+     * @return The 64 bit xxHash of the Chunk.
+     */
+    private static long fingerprint(final @NotNull ByteBuffer dbBytes, final int index, final int chunkLength) {
+        return FINGERPRINT.hashBytes(dbBytes, index, chunkLength);
+    }
+
     /**
      * Gets the CRC value of the database File.
      *
@@ -571,19 +773,88 @@ public class Chunk {
     }
 
     /**
-     * Searches for retained Messages in the MessageStore List.
-     * This could also be done by comparing the List of RetainedMessages with the MessageStores List.
+     * Returns the shared instance of a client id or topic. Mosquitto repeats them in every Subscription- and
+     * ClientMessage-Chunk, sharing the instance saves memory and lets later lookups by name succeed on identity.
+     *
+     * @param name The decoded client id or topic.
+     * @return Returns the first instance with the same content.
+     */
+    private @NotNull String intern(final @NotNull String name) {
+        final @Nullable String existing = names.putIfAbsent(name, name);
+        return (existing != null) ? existing : name;
+    }
+
+    /**
+     * A ClientMessage-Chunk whose properties are not decoded yet, they are referenced by their position instead.
+     */
+    private static class PendingClientMessage {
+
+        private final int sequence;
+        private final long storeId;
+        private final short mid;
+        private final byte qos;
+        private final byte state;
+        private final byte retainDuplicate;
+        private final byte direction;
+        private final @NotNull String clientId;
+        private final int propertiesIndex;
+        private final int absoluteLength;
+        private final long fingerprint;
+
+        PendingClientMessage(final int sequence,
+                             final long storeId,
+                             final short mid,
+                             final byte qos,
+                             final byte state,
+                             final byte retainDuplicate,
+                             final byte direction,
+                             final @NotNull String clientId,
+                             final int propertiesIndex,
+                             final int absoluteLength,
+                             final long fingerprint) {
+            this.sequence = sequence;
+            this.storeId = storeId;
+            this.mid = mid;
+            this.qos = qos;
+            this.state = state;
+            this.retainDuplicate = retainDuplicate;
+            this.direction = direction;
+            this.clientId = clientId;
+            this.propertiesIndex = propertiesIndex;
+            this.absoluteLength = absoluteLength;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    /**
+     * Getter for the retained messages.
+     * <p></p>
+     * The Retain-Chunks are the broker's set of retained messages. If several of them refer to messages of the same
+     * topic, only the live message (the one stored last) is kept. Retain-Chunks without a stored message are skipped.
+     *
+     * @return Returns an unmodifiable List of retained MessageStore-Chunks in the order of the Retain-Chunks.
+     */
+    public @NotNull List<ChunkMsgStore> getRetainedMessages() {
+        return retainedMessages;
+    }
+
+    /**
+     * Resolves the Retain-Chunks to their MessageStore-Chunks, keeping the message stored last of every topic.
      *
-     * @return Returns an unmodifiable List of retained MessageStore-Chunks.
+     * @return Returns an unmodifiable List of retained MessageStore-Chunks in the order of the Retain-Chunks.
      */
-    public @NotNull List<ChunkMsgStore> getRetainedFromMsgStore() {
-        final @NotNull List<ChunkMsgStore> retainedMessages = new ArrayList<>();
-        for (@NotNull ChunkMsgStore message : chunkMsgStores) {
-            if (message.getRetain()) {
-                retainedMessages.add(message);
+    private @NotNull List<ChunkMsgStore> resolveRetainedMessages() {
+        final @NotNull Map<String, ChunkMsgStore> retainedByTopic = new LinkedHashMap<>();
+        for (final @NotNull ChunkRetain chunkRetain : chunkRetains) {
+            final @Nullable ChunkMsgStore message = chunkMsgStoresById.get(chunkRetain.getStoreId());
+            if (message == null) {
+                Logger.warn("Retained message with store id " + chunkRetain.getStoreId() + " is missing in the message store.");
+                continue;
             }
+            retainedByTopic.merge(message.getTopic(), message,
+                    (current, candidate) -> candidate.getStoreId() > current.getStoreId() ? candidate : current);
         }
-        return Collections.unmodifiableList(retainedMessages);
+        return List.copyOf(retainedByTopic.values());
     }
 
     /**
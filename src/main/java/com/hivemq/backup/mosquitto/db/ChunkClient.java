@@ -50,6 +50,11 @@ public class ChunkClient {
     @SuppressWarnings("FieldCanBeLocal")
     private final boolean connectionStatus = false;
 
+    /**
+     * The hash of the bytes of the chunk, it changes whenever the chunk does.
+     */
+    private final long fingerprint;
+
     /**
      * Creates a Client Chunk. This represents a Client who needs to have an existing Session which has not expired yet.
      *
@@ -57,12 +62,15 @@ public class ChunkClient {
      * @param lastMid               The client's last message id which it had an action with.
      * @param sessionExpiryTime     The client's session expiry time in seconds.
      * @param sessionExpiryInterval The client's session expiry interval in seconds.
+     * @param fingerprint           The hash of the bytes of the chunk.
      */
-    ChunkClient(final @NotNull String clientId, final short lastMid, final long sessionExpiryTime, final int sessionExpiryInterval) {
+    ChunkClient(final @NotNull String clientId, final short lastMid, final long sessionExpiryTime, final int sessionExpiryInterval,
+                final long fingerprint) {
         this.clientId = clientId;
         this.sessionExpiryTime = sessionExpiryTime;
         this.sessionExpiryInterval = (sessionExpiryInterval != 0xFFFF_FFFF) ? sessionExpiryInterval : 0xFFFF_FFFFL;
         this.lastMid = lastMid;
+        this.fingerprint = fingerprint;
     }
 
     /**
@@ -92,6 +100,15 @@ public class ChunkClient {
         return connectionStatus;
     }
 
+    /**
+     * Getter method for the hash of the chunk bytes.
+     *
+     * @return The hash of the bytes of the chunk, equal for equal chunks in every database.
+     */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
     /**
      * To String method for ChunkClient to print out all fields.
      *
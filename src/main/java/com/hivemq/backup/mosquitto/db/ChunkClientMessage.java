@@ -67,6 +67,11 @@ public class ChunkClientMessage {
      */
     private final @NotNull List<Property> properties;
 
+    /**
+     * The hash of the bytes of the chunk, it changes whenever the chunk does.
+     */
+    private final long fingerprint;
+
     /**
      * Creates a Client Message Chunk. This requires an existing client session to be queued.
      *
@@ -78,6 +83,7 @@ public class ChunkClientMessage {
      * @param direction       The messages direction.
      * @param clientId        The client id of the messages owning client.
      * @param properties      The messages properties.
+     * @param fingerprint     The hash of the bytes of the chunk.
      */
     ChunkClientMessage(final long storeId,
                        final int mid,
@@ -86,7 +92,8 @@ public class ChunkClientMessage {
                        final byte retainDuplicate,
                        final byte direction,
                        final @NotNull String clientId,
-                       final @NotNull List<Property> properties) {
+                       final @NotNull List<Property> properties,
+                       final long fingerprint) {
         this.storeId = storeId;
         this.mid = mid;
         this.qos = qos;
@@ -95,6 +102,7 @@ public class ChunkClientMessage {
         this.direction = direction;
         this.clientId = clientId;
         this.properties = properties;
+        this.fingerprint = fingerprint;
     }
 
     /**
@@ -154,6 +162,15 @@ public class ChunkClientMessage {
                 .collect(Collectors.toList());
     }
 
+    /**
+     * Getter method for the hash of the chunk bytes.
+     *
+     * @return The hash of the bytes of the chunk, equal for equal chunks in every database.
+     */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
     /**
      * To String method for ChunkClientMessage to print out all fields.
      *
@@ -86,6 +86,11 @@ public class ChunkMsgStore {
      */
     private final @NotNull List<Property> properties;
 
+    /**
+     * The hash of the bytes of the chunk, it changes whenever the chunk does.
+     */
+    private final long fingerprint;
+
     /**
      * Creates a Message Store Chunk. This is created for every saved message.
      *
@@ -100,6 +105,7 @@ public class ChunkMsgStore {
      * @param expiryTime    The messages expiry time in seconds.
      * @param payload       The messages payload.
      * @param properties    The messages properties.
+     * @param fingerprint   The hash of the bytes of the chunk.
      */
     ChunkMsgStore(final long storeId,
                   final short sourcePort,
@@ -111,7 +117,8 @@ public class ChunkMsgStore {
                   final int payloadLength,
                   final long expiryTime,
                   final @NotNull String payload,
-                  final @NotNull List<Property> properties) {
+                  final @NotNull List<Property> properties,
+                  final long fingerprint) {
         this.storeId = storeId;
         this.sourcePort = sourcePort;
         this.sourceMid = sourceMid;
@@ -123,6 +130,7 @@ public class ChunkMsgStore {
         this.expiryTime = expiryTime;
         this.payload = payload.getBytes();
         this.properties = properties;
+        this.fingerprint = fingerprint;
     }
 
     /**
@@ -251,6 +259,15 @@ public class ChunkMsgStore {
                 .collect(Collectors.toList());
     }
 
+    /**
+     * Getter method for the hash of the chunk bytes.
+     *
+     * @return The hash of the bytes of the chunk, equal for equal chunks in every database.
+     */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
     /**
      * To String method for ChunkMsgStore to print out all fields.
      *
@@ -38,6 +38,15 @@ public class ChunkRetain {
         this.storeId = storeId;
     }
 
+    /**
+     * Getter for the store id.
+     *
+     * @return Returns the store id of the retained message.
+     */
+    public long getStoreId() {
+        return storeId;
+    }
+
     /**
      * To String method for ChunkRetain to print out all fields.
      *
@@ -59,24 +59,32 @@ public class ChunkSubscription {
      */
     private final byte retainHandling;
 
+    /**
+     * The hash of the bytes of the chunk, it changes whenever the chunk does.
+     */
+    private final long fingerprint;
+
     /**
      * Creates a Subscription Chunk. This needs an existing client session.
      *
-     * @param identifier The subscription identifier.
-     * @param qos        The subscription quality of service.
-     * @param options    The subscription options containing no local, retain as published as well as retain handling.
-     * @param clientId   The subscription's owning client id.
-     * @param topic      The subscription's topic.
+     * @param identifier  The subscription identifier.
+     * @param qos         The subscription quality of service.
+     * @param options     The subscription options containing no local, retain as published as well as retain handling.
+     * @param clientId    The subscription's owning client id.
+     * @param topic       The subscription's topic.
+     * @param fingerprint The hash of the bytes of the chunk.
      */
     ChunkSubscription(final int identifier,
                       final byte qos,
                       final byte options,
                       final @NotNull String clientId,
-                      final @NotNull String topic) {
+                      final @NotNull String topic,
+                      final long fingerprint) {
         this.identifier = identifier;
         this.qos = qos;
         this.clientId = clientId;
         this.topic = topic;
+        this.fingerprint = fingerprint;
         this.isNoLocal = (options & 0x04) == 4;
         this.isRetainAsPublished = (options & 0x08) == 8;
 
@@ -152,6 +160,15 @@ public class ChunkSubscription {
         return retainHandling;
     }
 
+    /**
+     * Getter method for the hash of the chunk bytes.
+     *
+     * @return The hash of the bytes of the chunk, equal for equal chunks in every database.
+     */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
     /**
      * To String method for ChunkSubscription to print out all fields.
      *
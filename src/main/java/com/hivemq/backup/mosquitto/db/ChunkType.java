@@ -17,8 +17,11 @@
 package com.hivemq.backup.mosquitto.db;
 
 import com.google.common.collect.ImmutableMap;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.Locale;
+
 /**
  * @author Lukas Brand
  * @since 1.0.0
@@ -56,6 +59,13 @@ public enum ChunkType {
     ChunkType(@SuppressWarnings("unused") final int order) {
     }
 
+    /**
+     * @return The name of the Chunk Type in lower case without its prefix, e.g. msg_store.
+     */
+    public @NotNull String getShortName() {
+        return name().substring("DB_CHUNK_".length()).toLowerCase(Locale.ROOT);
+    }
+
     /**
      * Getter method for the Chunk Type based on its integer value.
      *
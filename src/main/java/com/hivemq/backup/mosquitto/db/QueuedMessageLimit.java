@@ -0,0 +1,91 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.db;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The limits applied to the queued messages of every client while the ClientMessage-Chunks are read, like the maximum
+ * queue size of a HiveMQ client.
+ *
+ * @since 1.0.0
+ */
+public class QueuedMessageLimit {
+
+    /**
+     * Keeps every queued message.
+     */
+    public static final @NotNull QueuedMessageLimit UNLIMITED = new QueuedMessageLimit(0, OverflowPolicy.DROP_OLDEST, false);
+
+    /**
+     * Decides which messages are dropped when a client has more queued messages than allowed.
+     */
+    public enum OverflowPolicy {
+
+        /**
+         * Keeps the messages which were stored last, the ones with the highest store ids.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Keeps the messages which were stored first, the ones with the lowest store ids.
+         */
+        DROP_NEWEST
+    }
+
+    private final long maxQueuedMessages;
+    private final @NotNull OverflowPolicy overflowPolicy;
+    private final boolean discardQos0;
+
+    /**
+     * Creates a QueuedMessageLimit.
+     *
+     * @param maxQueuedMessages The maximum number of queued messages per client, 0 for no maximum.
+     * @param overflowPolicy    The messages to drop when a client exceeds the maximum.
+     * @param discardQos0       Drop all queued messages with quality of service 0.
+     */
+    public QueuedMessageLimit(final long maxQueuedMessages,
+                              final @NotNull OverflowPolicy overflowPolicy,
+                              final boolean discardQos0) {
+        Preconditions.checkArgument(maxQueuedMessages >= 0, "maximum of queued messages must not be negative");
+        this.maxQueuedMessages = maxQueuedMessages;
+        this.overflowPolicy = overflowPolicy;
+        this.discardQos0 = discardQos0;
+    }
+
+    /**
+     * @return The maximum number of queued messages per client, 0 for no maximum.
+     */
+    public long getMaxQueuedMessages() {
+        return maxQueuedMessages;
+    }
+
+    /**
+     * @return The messages to drop when a client exceeds the maximum.
+     */
+    public @NotNull OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @return True if queued messages with quality of service 0 are dropped.
+     */
+    public boolean isDiscardQos0() {
+        return discardQos0;
+    }
+}
@@ -0,0 +1,558 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes the files of a backup as entries of a zip archive.
+ * <p>
+ * Every opened file is collected in a {@link SpillBuffer} of the {@link MemoryBudget}. When it is closed, its content is
+ * compressed with the compression profile on one of the compression threads and the compressed entry is added to the
+ * archive as is. The entries are added in the order the files were closed, no matter which compression finishes first,
+ * and only a few entries and megabytes per compression thread are pending at any time, so a slow archive slows down
+ * the writers instead of filling the memory. A file which did not fit into the budget is not loaded into memory, it is
+ * streamed from its spill file into the archive once all entries before it are added. The folder entries of the backup
+ * are added in front of their first file.
+ * <p>
+ * The content of every file is hashed while it is compressed. After the last file, the {@link BackupFingerprints} and
+ * a {@link BackupManifest} with all files, their hashes and their records are added as the last entries.
+ * <p>
+ * Files copied from a previous backup are added with their compressed content as is, they are not inflated. Large
+ * ones are streamed from the previous backup.
+ * <p>
+ * With a {@link BackupJournal}, every added entry is recorded in the journal together with its position in the archive.
+ * About once per second and on every {@link #checkpoint()}, the archive is flushed to its file first and the journal
+ * afterwards, so the journal only lists entries which are completely in the file.
+ * <p>
+ * An {@link #abort() aborted} sink is closed without its pending entries, the fingerprints, the manifest and the
+ * central directory, so an incomplete backup is never mistaken for a complete one. Its journal is kept and the backup
+ * can be resumed.
+ *
+ * @since 1.0.0
+ */
+public class ArchiveExportSink implements ExportSink {
+
+    private static final int PENDING_ENTRIES_PER_THREAD = 4;
+    private static final long PENDING_BYTES_PER_THREAD = 8 * 1024 * 1024;
+    private static final int ENTRY_BUFFER_SIZE = 8 * 1024;
+    private static final long MAX_COPY_IN_MEMORY = 1024 * 1024;
+    private static final long AUTO_SAMPLE_SIZE = 8 * 1024 * 1024;
+    private static final long CHECKPOINT_INTERVAL_NANOS = 1_000_000_000L;
+
+    private final @NotNull CountingOutputStream archive;
+    private final @NotNull ZipArchiveOutputStream zip;
+    private final @Nullable BackupJournal journal;
+    private final @NotNull CompressionProfile profile;
+    private final @Nullable CompressionSampler sampler;
+    private final long entryTime;
+    private final @NotNull ExecutorService compressors;
+    private final int maxPendingEntries;
+    private final long maxPendingBytes;
+    private final @NotNull MemoryBudget budget;
+    private final @NotNull Deque<Future<CompressedEntry>> pendingEntries = new ArrayDeque<>();
+    private final @NotNull Set<String> folders = new HashSet<>();
+    private final @NotNull Map<String, Long> records = new ConcurrentHashMap<>();
+    private final @NotNull Map<String, Long> fingerprints = new ConcurrentHashMap<>();
+    private final @NotNull BackupManifest manifest = new BackupManifest();
+    private final @NotNull BackupFingerprints backupFingerprints = new BackupFingerprints();
+    private final @NotNull ThreadLocal<Deflater[]> deflaters = ThreadLocal.withInitial(() -> new Deflater[Deflater.BEST_COMPRESSION + 1]);
+    private final @NotNull ThreadLocal<byte[]> deflateBuffers;
+    private long pendingBytes = 0;
+    private long lastCheckpoint = System.nanoTime();
+    private boolean closed = false;
+    private boolean aborted = false;
+
+    /**
+     * Creates an ArchiveExportSink.
+     *
+     * @param out                The stream the archive is written to, it is closed together with the sink.
+     * @param profile            The compression profile of the entries.
+     * @param targetBandwidth    The bandwidth in bytes per second the backup is transferred with, only used to choose
+     *                           the {@link CompressionProfile#AUTO} profile.
+     * @param entryTime          The modification time of all entries in milliseconds.
+     * @param compressionThreads The amount of threads the entries are compressed on.
+     * @param deflateBufferSize  The size in bytes of the buffer every compression thread deflates into.
+     * @param budget             The budget the opened files are buffered in.
+     * @param journal            The journal the added entries are recorded in, null to keep none. It is closed
+     *                           together with the sink.
+     */
+    public ArchiveExportSink(final @NotNull OutputStream out,
+                             final @NotNull CompressionProfile profile,
+                             final long targetBandwidth,
+                             final long entryTime,
+                             final int compressionThreads,
+                             final int deflateBufferSize,
+                             final @NotNull MemoryBudget budget,
+                             final @Nullable BackupJournal journal) {
+        Preconditions.checkArgument(compressionThreads > 0, "compression thread count must be positive");
+        Preconditions.checkArgument(deflateBufferSize > 0, "deflate buffer size must be positive");
+        this.archive = new CountingOutputStream(out);
+        this.zip = new ZipArchiveOutputStream(archive);
+        this.journal = journal;
+        this.profile = profile;
+        this.sampler = (profile == CompressionProfile.AUTO) ?
+                new CompressionSampler(AUTO_SAMPLE_SIZE, targetBandwidth, compressionThreads) : null;
+        this.entryTime = entryTime;
+        this.compressors = (compressionThreads == 1) ?
+                MoreExecutors.newDirectExecutorService() : Executors.newFixedThreadPool(compressionThreads);
+        this.maxPendingEntries = compressionThreads * PENDING_ENTRIES_PER_THREAD;
+        this.maxPendingBytes = compressionThreads * PENDING_BYTES_PER_THREAD;
+        this.budget = budget;
+        this.deflateBuffers = ThreadLocal.withInitial(() -> new byte[deflateBufferSize]);
+    }
+
+    @Override
+    public @NotNull OutputStream open(final @NotNull String name) {
+        return new EntryOutputStream(name);
+    }
+
+    @Override
+    public void write(final @NotNull String name, final @NotNull SpillBuffer content) throws IOException {
+        if (content.isSpilled()) {
+            writeStreamed(name, content);
+        } else {
+            // the size is taken first, the compression releases the buffer
+            final long size = content.size();
+            addPending(compressors.submit(() -> compress(name, content)), size);
+        }
+    }
+
+    @Override
+    public void addRecords(final @NotNull String name, final long records) {
+        this.records.merge(name, records, Long::sum);
+    }
+
+    @Override
+    public void addFingerprint(final @NotNull String name, final long fingerprint) {
+        fingerprints.put(name, fingerprint);
+    }
+
+    @Override
+    public void copy(final @NotNull PreviousBackup previous, final @NotNull String name) throws IOException {
+        final @NotNull ZipArchiveEntry previousEntry = previous.getEntry(name);
+        final @NotNull ZipArchiveEntry entry = new ZipArchiveEntry(name);
+        entry.setTime(entryTime);
+        entry.setMethod(previousEntry.getMethod());
+        entry.setSize(previousEntry.getSize());
+        entry.setCrc(previousEntry.getCrc());
+        entry.setCompressedSize(previousEntry.getCompressedSize());
+        final long hash = previous.getManifestEntry(name).getHash();
+
+        addRecords(name, previous.getRecords(name));
+        final @Nullable Long fingerprint = previous.getFingerprint(name);
+        if (fingerprint != null) {
+            addFingerprint(name, fingerprint);
+        }
+        if (previousEntry.getCompressedSize() > MAX_COPY_IN_MEMORY) {
+            copyStreamed(entry, previous.getRawInputStream(name), hash);
+            return;
+        }
+        final @NotNull byte[] raw = previous.readRaw(name);
+        addPending(CompletableFuture.completedFuture(new CompressedEntry(entry, raw, raw.length, hash, true)), entry.getSize());
+    }
+
+    /**
+     * Flushes all added entries to the archive and records them in the journal. Entries which are still being
+     * compressed are recorded by a later checkpoint.
+     *
+     * @throws IOException Thrown if the archive or the journal can not be written.
+     */
+    public synchronized void checkpoint() throws IOException {
+        if (journal == null || closed) {
+            return;
+        }
+        zip.flush();
+        journal.flush();
+        lastCheckpoint = System.nanoTime();
+    }
+
+    /**
+     * Marks the backup as failed, it is not completed when the sink is closed.
+     */
+    public synchronized void abort() {
+        aborted = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (journal) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                if (aborted) {
+                    // only what the journal lists is kept, the archive stays without its central directory
+                    checkpoint();
+                    closed = true;
+                    archive.close();
+                    return;
+                }
+                closed = true;
+                writePending();
+                final @NotNull byte[] fingerprintsContent = backupFingerprints.toBytes();
+                writeEntry(CompletableFuture.completedFuture(
+                        compress(BackupFingerprints.NAME, fingerprintsContent, fingerprintsContent.length)));
+
+                final @NotNull byte[] manifestContent = manifest.toBytes();
+                writeCompressed(compress(BackupManifest.NAME, manifestContent, manifestContent.length));
+                zip.close();
+            }
+        } finally {
+            compressors.shutdownNow();
+        }
+    }
+
+    private synchronized void addPending(final @NotNull Future<CompressedEntry> pendingEntry, final long size) throws IOException {
+        pendingEntries.add(pendingEntry);
+        pendingBytes += size;
+
+        // add what is already compressed, wait for the oldest entry only if too many entries or bytes are pending
+        while (!pendingEntries.isEmpty() && (pendingEntries.peek().isDone()
+                || pendingEntries.size() > maxPendingEntries || pendingBytes > maxPendingBytes)) {
+            writeEntry(pendingEntries.poll());
+        }
+    }
+
+    private void writePending() throws IOException {
+        while (!pendingEntries.isEmpty()) {
+            writeEntry(pendingEntries.poll());
+        }
+    }
+
+    /**
+     * Compresses a spilled file while it is streamed into the archive, the pending entries are added first to keep the
+     * order. The content is read twice, the checksums must be known before the entry.
+     */
+    private synchronized void writeStreamed(final @NotNull String name, final @NotNull SpillBuffer content) throws IOException {
+        try {
+            writePending();
+            final @NotNull ExportEvents.EntryCompress compressEvent = new ExportEvents.EntryCompress();
+            final @NotNull byte[] block = deflateBuffers.get();
+            final @NotNull CRC32 crc = new CRC32();
+            final @NotNull BackupManifest.Hasher hasher = BackupManifest.hasher();
+            try (final @NotNull InputStream in = content.getInputStream()) {
+                for (int read = in.read(block); read >= 0; read = in.read(block)) {
+                    crc.update(block, 0, read);
+                    hasher.update(block, 0, read);
+                }
+            }
+
+            @Nullable CompressionProfile entryProfile = (sampler != null) ? sampler.getSelected() : profile;
+            if (entryProfile == null) {
+                // too large to be sampled
+                entryProfile = CompressionProfile.FAST;
+            }
+            final @NotNull ZipArchiveEntry entry = new ZipArchiveEntry(name);
+            entry.setTime(entryTime);
+            entry.setSize(content.size());
+            entry.setCrc(crc.getValue());
+            if (entryProfile == CompressionProfile.STORE) {
+                entry.setMethod(ZipEntry.STORED);
+                entry.setCompressedSize(content.size());
+            } else {
+                entry.setMethod(ZipEntry.DEFLATED);
+                zip.setLevel(entryProfile.getLevel());
+            }
+
+            final @NotNull ExportEvents.EntryWrite writeEvent = new ExportEvents.EntryWrite();
+            addFolders(name);
+            zip.putArchiveEntry(entry);
+            final long offset = archive.getCount();
+            try (final @NotNull InputStream in = content.getInputStream()) {
+                for (int read = in.read(block); read >= 0; read = in.read(block)) {
+                    zip.write(block, 0, read);
+                }
+            }
+            zip.closeArchiveEntry();
+            compressEvent.finish(name, entryProfile.name(), entry.getSize(), entry.getCompressedSize());
+            writeEvent.finish(name, entry.getCompressedSize(), false);
+            record(entry, hasher.getValue(), offset, entry.getCompressedSize());
+        } finally {
+            content.release();
+        }
+    }
+
+    /**
+     * Streams a file of a previous backup into the archive, the pending entries are added first to keep the order.
+     */
+    private synchronized void copyStreamed(final @NotNull ZipArchiveEntry entry,
+                                           final @NotNull InputStream raw,
+                                           final long hash) throws IOException {
+        writePending();
+        final @NotNull ExportEvents.EntryWrite writeEvent = new ExportEvents.EntryWrite();
+        addFolders(entry.getName());
+        zip.addRawArchiveEntry(entry, raw);
+        writeEvent.finish(entry.getName(), entry.getCompressedSize(), true);
+        // raw entries have no data descriptor, their data is the last thing written
+        record(entry, hash, archive.getCount() - entry.getCompressedSize(), entry.getCompressedSize());
+    }
+
+    private void writeEntry(final @NotNull Future<CompressedEntry> pendingEntry) throws IOException {
+        final @NotNull CompressedEntry compressed;
+        try {
+            compressed = pendingEntry.get();
+        } catch (final @NotNull InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing the backup.");
+        } catch (final @NotNull ExecutionException ex) {
+            throw new IOException("Could not compress a backup entry.", ex.getCause());
+        }
+        pendingBytes -= compressed.entry.getSize();
+
+        try {
+            writeCompressed(compressed);
+        } finally {
+            if (compressed.source != null) {
+                compressed.source.release();
+            }
+        }
+        // raw entries have no data descriptor, their data is the last thing written
+        record(compressed.entry, compressed.hash, archive.getCount() - compressed.length, compressed.length);
+    }
+
+    /**
+     * Lists an added entry in the manifest and the journal.
+     *
+     * @param offset         The position of the data of the entry in the archive.
+     * @param compressedSize The size of the data of the entry in the archive.
+     */
+    private void record(final @NotNull ZipArchiveEntry entry, final long hash, final long offset, final long compressedSize)
+            throws IOException {
+        final @NotNull String name = entry.getName();
+        manifest.add(new BackupManifest.Entry(name, entry.getSize(), hash, records.getOrDefault(name, 0L)));
+        final @Nullable Long fingerprint = fingerprints.get(name);
+        if (fingerprint != null) {
+            backupFingerprints.put(name, fingerprint);
+        }
+
+        if (journal != null) {
+            journal.add(new BackupJournal.Entry(name, offset, compressedSize, entry.getMethod(), entry.getCrc(),
+                    entry.getSize(), hash, records.getOrDefault(name, 0L), fingerprint));
+            if (System.nanoTime() - lastCheckpoint > CHECKPOINT_INTERVAL_NANOS) {
+                checkpoint();
+            }
+        }
+    }
+
+    private void writeCompressed(final @NotNull CompressedEntry compressed) throws IOException {
+        final @NotNull ExportEvents.EntryWrite writeEvent = new ExportEvents.EntryWrite();
+        final @NotNull String name = compressed.entry.getName();
+        addFolders(name);
+        zip.addRawArchiveEntry(compressed.entry, new ByteArrayInputStream(compressed.data, 0, compressed.length));
+        writeEvent.finish(name, compressed.length, compressed.copied);
+    }
+
+    private void addFolders(final @NotNull String name) throws IOException {
+        for (int slash = name.indexOf('/'); slash >= 0; slash = name.indexOf('/', slash + 1)) {
+            final @NotNull String folder = name.substring(0, slash + 1);
+            if (folders.add(folder)) {
+                final @NotNull ZipArchiveEntry folderEntry = new ZipArchiveEntry(folder);
+                folderEntry.setMethod(ZipEntry.STORED);
+                folderEntry.setSize(0);
+                folderEntry.setCrc(0);
+                folderEntry.setTime(entryTime);
+                zip.putArchiveEntry(folderEntry);
+                zip.closeArchiveEntry();
+            }
+        }
+    }
+
+    /**
+     * Compresses a buffered file. The buffer is released once it is compressed, a stored entry keeps it until the
+     * entry is added.
+     */
+    private @NotNull CompressedEntry compress(final @NotNull String name, final @NotNull SpillBuffer content) throws IOException {
+        @Nullable CompressedEntry compressed = null;
+        try {
+            compressed = compress(name, content.data(), (int) content.size());
+            if (compressed.data == content.data()) {
+                compressed.source = content;
+            }
+            return compressed;
+        } finally {
+            if (compressed == null || compressed.source == null) {
+                content.release();
+            }
+        }
+    }
+
+    private @NotNull CompressedEntry compress(final @NotNull String name, final @NotNull byte[] data, final int length) {
+        final @NotNull ExportEvents.EntryCompress compressEvent = new ExportEvents.EntryCompress();
+
+        final @NotNull CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        final long hash = BackupManifest.hash(data, 0, length);
+
+        @Nullable CompressionProfile entryProfile = (sampler != null) ? sampler.getSelected() : profile;
+        final @NotNull ZipArchiveEntry entry = new ZipArchiveEntry(name);
+        entry.setTime(entryTime);
+        entry.setSize(length);
+        entry.setCrc(crc.getValue());
+
+        final @Nullable ExposedBuffer compressed;
+        if (entryProfile == null) {
+            // still sampling, the entry itself is written with the fast profile
+            compressed = sample(data, length);
+            entryProfile = CompressionProfile.FAST;
+        } else if (entryProfile == CompressionProfile.STORE) {
+            compressed = null;
+        } else {
+            compressed = deflate(entryProfile.getLevel(), data, length);
+        }
+
+        if (compressed == null) {
+            entry.setMethod(ZipEntry.STORED);
+            entry.setCompressedSize(length);
+            compressEvent.finish(name, entryProfile.name(), length, length);
+            return new CompressedEntry(entry, data, length, hash, false);
+        }
+        entry.setMethod(ZipEntry.DEFLATED);
+        entry.setCompressedSize(compressed.size());
+        compressEvent.finish(name, entryProfile.name(), length, compressed.size());
+        return new CompressedEntry(entry, compressed.data(), compressed.size(), hash, false);
+    }
+
+    private @NotNull ExposedBuffer sample(final @NotNull byte[] data, final int length) {
+        final @NotNull CompressionProfile[] candidates = CompressionSampler.CANDIDATES;
+        final @NotNull long[] output = new long[candidates.length];
+        final @NotNull long[] time = new long[candidates.length];
+        @Nullable ExposedBuffer fast = null;
+        for (int i = 0; i < candidates.length; i++) {
+            final long start = System.nanoTime();
+            if (candidates[i] == CompressionProfile.STORE) {
+                output[i] = length;
+            } else {
+                final @NotNull ExposedBuffer compressed = deflate(candidates[i].getLevel(), data, length);
+                output[i] = compressed.size();
+                if (candidates[i] == CompressionProfile.FAST) {
+                    fast = compressed;
+                }
+            }
+            time[i] = System.nanoTime() - start;
+        }
+        //noinspection ConstantConditions
+        sampler.sample(length, output, time);
+        return (fast != null) ? fast : deflate(CompressionProfile.FAST.getLevel(), data, length);
+    }
+
+    private @NotNull ExposedBuffer deflate(final int level, final @NotNull byte[] data, final int length) {
+        final @NotNull Deflater[] threadDeflaters = deflaters.get();
+        @Nullable Deflater deflater = threadDeflaters[level];
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+            threadDeflaters[level] = deflater;
+        }
+        final @NotNull byte[] buffer = deflateBuffers.get();
+        final @NotNull ExposedBuffer compressed = new ExposedBuffer(Math.max(64, length / 4));
+        deflater.reset();
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        while (!deflater.finished()) {
+            compressed.write(buffer, 0, deflater.deflate(buffer));
+        }
+        return compressed;
+    }
+
+    /**
+     * An entry whose content is compressed already.
+     */
+    private static class CompressedEntry {
+
+        private final @NotNull ZipArchiveEntry entry;
+        private final @NotNull byte[] data;
+        private final int length;
+        private final long hash;
+        private final boolean copied;
+        // the buffer the data of a stored entry belongs to
+        private @Nullable SpillBuffer source;
+
+        CompressedEntry(final @NotNull ZipArchiveEntry entry, final @NotNull byte[] data, final int length, final long hash,
+                        final boolean copied) {
+            this.entry = entry;
+            this.data = data;
+            this.length = length;
+            this.hash = hash;
+            this.copied = copied;
+        }
+    }
+
+    /**
+     * A byte array stream which hands out its array instead of a copy.
+     */
+    private static class ExposedBuffer extends ByteArrayOutputStream {
+
+        ExposedBuffer(final int size) {
+            super(size);
+        }
+
+        @NotNull byte[] data() {
+            return buf;
+        }
+    }
+
+    /**
+     * Collects the content of an entry, it is compressed and added to the archive when the stream is closed.
+     */
+    private class EntryOutputStream extends SpillBuffer {
+
+        private final @NotNull String name;
+        private boolean closed = false;
+
+        EntryOutputStream(final @NotNull String name) {
+            super(budget, ENTRY_BUFFER_SIZE);
+            this.name = name;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            super.close();
+            ArchiveExportSink.this.write(name, this);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import net.openhft.hashing.LongHashFunction;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The fingerprints entry of a backup archive. It maps every file which can be reused by a later export to the
+ * fingerprint of the database content it was rendered from.
+ * <p>
+ * The fingerprints are a text file with one line per file: {@code <fingerprint as 16 hex digits> <name>}. Lines
+ * starting with '#' are comments.
+ *
+ * @since 1.0.0
+ */
+public class BackupFingerprints {
+
+    public static final @NotNull String NAME = "backup.fingerprints";
+    private static final @NotNull LongHashFunction HASH = LongHashFunction.xx();
+
+    private final @NotNull Map<String, Long> fingerprints = new LinkedHashMap<>();
+
+    /**
+     * Adds a value to a fingerprint, the result depends on the order the values are added in.
+     *
+     * @param fingerprint The fingerprint so far.
+     * @param value       The value to add, e.g. the fingerprint of a chunk.
+     * @return The new fingerprint.
+     */
+    public static long mix(final long fingerprint, final long value) {
+        return HASH.hashLongs(new long[]{fingerprint, value});
+    }
+
+    /**
+     * Sets the fingerprint of a file.
+     *
+     * @param name        The name of the file relative to the backup.
+     * @param fingerprint The fingerprint of the file.
+     */
+    public void put(final @NotNull String name, final long fingerprint) {
+        fingerprints.put(name, fingerprint);
+    }
+
+    /**
+     * @param name The name of the file relative to the backup.
+     * @return The fingerprint of the file, null if the file can not be reused.
+     */
+    public @Nullable Long get(final @NotNull String name) {
+        return fingerprints.get(name);
+    }
+
+    /**
+     * @return The fingerprints as text.
+     */
+    public @NotNull byte[] toBytes() {
+        final @NotNull StringBuilder text = new StringBuilder("# fingerprint name\n");
+        fingerprints.forEach((name, fingerprint) ->
+                text.append(String.format("%016x", fingerprint)).append(' ').append(name).append('\n'));
+        return text.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * Reads fingerprints.
+     *
+     * @param in The fingerprints as text.
+     * @return The read fingerprints.
+     * @throws IOException Thrown if the fingerprints can not be read or a line is malformed.
+     */
+    public static @NotNull BackupFingerprints read(final @NotNull InputStream in) throws IOException {
+        final @NotNull BackupFingerprints fingerprints = new BackupFingerprints();
+        final @NotNull BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            final @NotNull String[] parts = line.split(" ", 2);
+            if (parts.length != 2) {
+                throw new IOException("Malformed fingerprint line: " + line);
+            }
+            try {
+                fingerprints.put(parts[1], Long.parseUnsignedLong(parts[0], 16));
+            } catch (final @NotNull NumberFormatException ex) {
+                throw new IOException("Malformed fingerprint line: " + line, ex);
+            }
+        }
+        return fingerprints;
+    }
+}
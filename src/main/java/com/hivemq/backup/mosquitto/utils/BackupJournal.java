@@ -0,0 +1,335 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The checkpoint journal of a backup which is being written. It lies next to the backup archive and lists every entry
+ * which is completely written to the archive, together with its position in the archive. If the export is killed, a
+ * later run resumes from the entries of the journal instead of rendering and compressing them again.
+ * <p>
+ * The journal is a text file. The header names the export time, the database and the settings the backup was started
+ * with, every following line is one finished entry:
+ * {@code entry <data offset> <compressed size> <method> <crc> <size> <hash> <records> <fingerprint or -> <name>}. A
+ * line which is cut off at the end of the journal is ignored.
+ *
+ * @since 1.0.0
+ */
+public class BackupJournal implements Closeable {
+
+    public static final @NotNull String SUFFIX = ".journal";
+    private static final @NotNull String COMMENT = "# mosquitto2hivemq checkpoint journal";
+    private static final @NotNull String EXPORT_TIME = "export-time";
+    private static final @NotNull String INPUT = "input";
+    private static final @NotNull String SETTINGS = "settings";
+    private static final @NotNull String ENTRY = "entry";
+
+    private final @NotNull Writer writer;
+    private final @NotNull List<Entry> pending = new ArrayList<>();
+
+    /**
+     * Creates a journal, an existing journal is replaced. The header is written immediately.
+     *
+     * @param file   The journal file.
+     * @param header The export the journal belongs to.
+     * @throws IOException Thrown if the journal can not be written.
+     */
+    public BackupJournal(final @NotNull Path file, final @NotNull Header header) throws IOException {
+        this.writer = Files.newBufferedWriter(file, UTF_8);
+        writer.write(COMMENT + "\n");
+        writer.write(EXPORT_TIME + " " + header.getExportTime() + "\n");
+        writer.write(INPUT + " " + String.format("%016x", header.getInputHash()) + " " + header.getInputSize() + "\n");
+        writer.write(SETTINGS + " " + header.getSettings() + "\n");
+        writer.flush();
+    }
+
+    /**
+     * @param backupFile The backup archive.
+     * @return The journal file of the backup.
+     */
+    public static @NotNull Path journalFile(final @NotNull Path backupFile) {
+        return backupFile.resolveSibling(backupFile.getFileName() + SUFFIX);
+    }
+
+    /**
+     * Adds a finished entry. It is written with the next {@link #flush()}, which must only be called when the entry
+     * has reached the archive file.
+     *
+     * @param entry The finished entry.
+     */
+    public synchronized void add(final @NotNull Entry entry) {
+        pending.add(entry);
+    }
+
+    /**
+     * Writes all added entries to the journal file.
+     *
+     * @throws IOException Thrown if the journal can not be written.
+     */
+    public synchronized void flush() throws IOException {
+        for (final @NotNull Entry entry : pending) {
+            writer.write(ENTRY + " " + entry.getOffset() + " " + entry.getCompressedSize() + " " + entry.getMethod()
+                    + " " + String.format("%08x", entry.getCrc()) + " " + entry.getSize()
+                    + " " + String.format("%016x", entry.getHash()) + " " + entry.getRecords()
+                    + " " + ((entry.getFingerprint() != null) ? String.format("%016x", entry.getFingerprint()) : "-")
+                    + " " + entry.getName() + "\n");
+        }
+        pending.clear();
+        writer.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+
+    /**
+     * Reads the journal of an interrupted export.
+     *
+     * @param file The journal file.
+     * @return The header and all finished entries of the journal.
+     * @throws IOException Thrown if the journal can not be read or its header is malformed.
+     */
+    public static @NotNull Checkpoint read(final @NotNull Path file) throws IOException {
+        long exportTime = -1;
+        long inputHash = 0;
+        long inputSize = -1;
+        @Nullable String settings = null;
+        final @NotNull List<Entry> entries = new ArrayList<>();
+
+        try (final @NotNull BufferedReader reader = Files.newBufferedReader(file, UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                final @NotNull String[] parts = line.split(" ", 10);
+                try {
+                    switch (parts[0]) {
+                        case EXPORT_TIME:
+                            exportTime = Long.parseLong(parts[1]);
+                            break;
+                        case INPUT:
+                            inputHash = Long.parseUnsignedLong(parts[1], 16);
+                            inputSize = Long.parseLong(parts[2]);
+                            break;
+                        case SETTINGS:
+                            settings = line.substring(SETTINGS.length() + 1);
+                            break;
+                        case ENTRY:
+                            entries.add(new Entry(parts[9],
+                                    Long.parseLong(parts[1]),
+                                    Long.parseLong(parts[2]),
+                                    Integer.parseInt(parts[3]),
+                                    Long.parseLong(parts[4], 16),
+                                    Long.parseLong(parts[5]),
+                                    Long.parseUnsignedLong(parts[6], 16),
+                                    Long.parseLong(parts[7]),
+                                    parts[8].equals("-") ? null : Long.parseUnsignedLong(parts[8], 16)));
+                            break;
+                        default:
+                            throw new IOException("Malformed journal line: " + line);
+                    }
+                } catch (final @NotNull NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+                    if (exportTime < 0 || inputSize < 0 || settings == null) {
+                        throw new IOException("Malformed journal line: " + line, ex);
+                    }
+                    // the export was killed while this line was written
+                    break;
+                }
+            }
+        }
+        if (exportTime < 0 || inputSize < 0 || settings == null) {
+            throw new IOException("The journal " + file + " has no complete header.");
+        }
+        return new Checkpoint(new Header(exportTime, inputHash, inputSize, settings), entries);
+    }
+
+    /**
+     * Finds the journal of the latest interrupted export in an output folder.
+     *
+     * @param outputFolder The folder which contains the timestamped folders of the exports.
+     * @return The journal file, null if no export was interrupted.
+     * @throws IOException Thrown if the output folder can not be read.
+     */
+    public static @Nullable Path findLatest(final @NotNull Path outputFolder) throws IOException {
+        final @NotNull List<Path> journals = new ArrayList<>();
+        if (!Files.isDirectory(outputFolder)) {
+            return null;
+        }
+        try (final @NotNull DirectoryStream<Path> exports = Files.newDirectoryStream(outputFolder, Files::isDirectory)) {
+            for (final @NotNull Path export : exports) {
+                try (final @NotNull DirectoryStream<Path> files = Files.newDirectoryStream(export, "*" + SUFFIX)) {
+                    files.forEach(journals::add);
+                }
+            }
+        }
+        // the folders are named by their export time
+        return journals.isEmpty() ? null : Collections.max(journals);
+    }
+
+    /**
+     * The export a journal belongs to. An interrupted export is only resumed with the same database and settings.
+     */
+    public static class Header {
+
+        private final long exportTime;
+        private final long inputHash;
+        private final long inputSize;
+        private final @NotNull String settings;
+
+        /**
+         * @param exportTime The export time of the backup in milliseconds.
+         * @param inputHash  The xxHash of the Mosquitto database file.
+         * @param inputSize  The size in bytes of the Mosquitto database file.
+         * @param settings   The settings which change the content of the backup, on a single line.
+         */
+        public Header(final long exportTime, final long inputHash, final long inputSize, final @NotNull String settings) {
+            this.exportTime = exportTime;
+            this.inputHash = inputHash;
+            this.inputSize = inputSize;
+            this.settings = settings;
+        }
+
+        public long getExportTime() {
+            return exportTime;
+        }
+
+        public long getInputHash() {
+            return inputHash;
+        }
+
+        public long getInputSize() {
+            return inputSize;
+        }
+
+        public @NotNull String getSettings() {
+            return settings;
+        }
+    }
+
+    /**
+     * The content of the journal of an interrupted export.
+     */
+    public static class Checkpoint {
+
+        private final @NotNull Header header;
+        private final @NotNull List<Entry> entries;
+
+        Checkpoint(final @NotNull Header header, final @NotNull List<Entry> entries) {
+            this.header = header;
+            this.entries = entries;
+        }
+
+        public @NotNull Header getHeader() {
+            return header;
+        }
+
+        public @NotNull List<Entry> getEntries() {
+            return entries;
+        }
+    }
+
+    /**
+     * A file which is stored in a backup archive: where its compressed content starts, how to inflate and check it and
+     * what the manifest and the fingerprints say about it.
+     */
+    public static class Entry {
+
+        private final @NotNull String name;
+        private final long offset;
+        private final long compressedSize;
+        private final int method;
+        private final long crc;
+        private final long size;
+        private final long hash;
+        private final long records;
+        private final @Nullable Long fingerprint;
+
+        public Entry(final @NotNull String name,
+                     final long offset,
+                     final long compressedSize,
+                     final int method,
+                     final long crc,
+                     final long size,
+                     final long hash,
+                     final long records,
+                     final @Nullable Long fingerprint) {
+            this.name = name;
+            this.offset = offset;
+            this.compressedSize = compressedSize;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.hash = hash;
+            this.records = records;
+            this.fingerprint = fingerprint;
+        }
+
+        public @NotNull String getName() {
+            return name;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getHash() {
+            return hash;
+        }
+
+        public long getRecords() {
+            return records;
+        }
+
+        public @Nullable Long getFingerprint() {
+            return fingerprint;
+        }
+    }
+}
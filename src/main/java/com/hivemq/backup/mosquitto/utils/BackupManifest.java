@@ -0,0 +1,277 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import net.openhft.hashing.LongHashFunction;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The manifest entry of a backup archive. It lists every file of the backup with its size, the 64 bit xxHash of its
+ * content and the amount of records (client sessions or retained messages) it contains.
+ * <p>
+ * The manifest is a text file with one line per file: {@code <hash as 16 hex digits> <size> <records> <name>}. Lines
+ * starting with '#' are comments, the last one contains the totals.
+ *
+ * @since 1.0.0
+ */
+public class BackupManifest {
+
+    public static final @NotNull String NAME = "backup.manifest";
+    private static final @NotNull LongHashFunction HASH = LongHashFunction.xx();
+
+    private final @NotNull List<Entry> entries = new ArrayList<>();
+
+    /**
+     * @param data   The content of a file.
+     * @param offset The offset of the content.
+     * @param length The length of the content.
+     * @return The hash of the content as it is listed in the manifest.
+     */
+    public static long hash(final @NotNull byte[] data, final int offset, final int length) {
+        return HASH.hashBytes(data, offset, length);
+    }
+
+    /**
+     * @return A hasher for content which is not in memory at once, it results in the same hash as
+     * {@link #hash(byte[], int, int)}.
+     */
+    public static @NotNull Hasher hasher() {
+        return new Hasher();
+    }
+
+    /**
+     * Adds a file to the manifest.
+     *
+     * @param entry The file.
+     */
+    public void add(final @NotNull Entry entry) {
+        entries.add(entry);
+    }
+
+    /**
+     * @return All files in the order they were added.
+     */
+    public @NotNull List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * @return The manifest as text.
+     */
+    public @NotNull byte[] toBytes() {
+        final @NotNull StringBuilder text = new StringBuilder("# xxh64 size records name\n");
+        long size = 0;
+        long records = 0;
+        for (final @NotNull Entry entry : entries) {
+            text.append(String.format("%016x", entry.hash)).append(' ')
+                    .append(entry.size).append(' ')
+                    .append(entry.records).append(' ')
+                    .append(entry.name).append('\n');
+            size += entry.size;
+            records += entry.records;
+        }
+        text.append("# files ").append(entries.size())
+                .append(" size ").append(size)
+                .append(" records ").append(records).append('\n');
+        return text.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * Reads a manifest.
+     *
+     * @param in The manifest as text.
+     * @return The read manifest.
+     * @throws IOException Thrown if the manifest can not be read or a line is malformed.
+     */
+    public static @NotNull BackupManifest read(final @NotNull InputStream in) throws IOException {
+        final @NotNull BackupManifest manifest = new BackupManifest();
+        final @NotNull BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            final @NotNull String[] parts = line.split(" ", 4);
+            if (parts.length != 4) {
+                throw new IOException("Malformed manifest line: " + line);
+            }
+            try {
+                manifest.add(new Entry(parts[3], Long.parseLong(parts[1]), Long.parseUnsignedLong(parts[0], 16), Long.parseLong(parts[2])));
+            } catch (final @NotNull NumberFormatException ex) {
+                throw new IOException("Malformed manifest line: " + line, ex);
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * A single file of the backup.
+     */
+    public static class Entry {
+
+        private final @NotNull String name;
+        private final long size;
+        private final long hash;
+        private final long records;
+
+        public Entry(final @NotNull String name, final long size, final long hash, final long records) {
+            this.name = name;
+            this.size = size;
+            this.hash = hash;
+            this.records = records;
+        }
+
+        public @NotNull String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getHash() {
+            return hash;
+        }
+
+        public long getRecords() {
+            return records;
+        }
+    }
+
+    /**
+     * Computes the 64 bit xxHash of content which is passed in pieces.
+     */
+    public static class Hasher {
+
+        private static final long PRIME1 = 0x9E3779B185EBCA87L;
+        private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+        private static final long PRIME3 = 0x165667B19E3779F9L;
+        private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+        private static final long PRIME5 = 0x27D4EB2F165667C5L;
+        private static final int STRIPE = 32;
+
+        private long v1 = PRIME1 + PRIME2;
+        private long v2 = PRIME2;
+        private long v3 = 0;
+        private long v4 = -PRIME1;
+        private final @NotNull byte[] stripe = new byte[STRIPE];
+        private int buffered = 0;
+        private long total = 0;
+
+        private Hasher() {
+        }
+
+        /**
+         * Adds the next piece of the content.
+         *
+         * @param data   The piece.
+         * @param offset The offset of the piece.
+         * @param length The length of the piece.
+         */
+        public void update(final @NotNull byte[] data, final int offset, final int length) {
+            total += length;
+            int position = offset;
+            final int end = offset + length;
+            if (buffered > 0) {
+                final int take = Math.min(STRIPE - buffered, length);
+                System.arraycopy(data, position, stripe, buffered, take);
+                buffered += take;
+                position += take;
+                if (buffered < STRIPE) {
+                    return;
+                }
+                consume(stripe, 0);
+                buffered = 0;
+            }
+            for (; position <= end - STRIPE; position += STRIPE) {
+                consume(data, position);
+            }
+            System.arraycopy(data, position, stripe, 0, end - position);
+            buffered = end - position;
+        }
+
+        /**
+         * @return The hash of all pieces added so far.
+         */
+        public long getValue() {
+            long hash;
+            if (total >= STRIPE) {
+                hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+                hash = merge(hash, v1);
+                hash = merge(hash, v2);
+                hash = merge(hash, v3);
+                hash = merge(hash, v4);
+            } else {
+                hash = PRIME5;
+            }
+            hash += total;
+
+            int position = 0;
+            for (; position + 8 <= buffered; position += 8) {
+                hash ^= round(0, readLong(stripe, position));
+                hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+            }
+            if (position + 4 <= buffered) {
+                hash ^= (readInt(stripe, position) & 0xFFFF_FFFFL) * PRIME1;
+                hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+                position += 4;
+            }
+            for (; position < buffered; position++) {
+                hash ^= (stripe[position] & 0xFFL) * PRIME5;
+                hash = Long.rotateLeft(hash, 11) * PRIME1;
+            }
+
+            hash ^= hash >>> 33;
+            hash *= PRIME2;
+            hash ^= hash >>> 29;
+            hash *= PRIME3;
+            hash ^= hash >>> 32;
+            return hash;
+        }
+
+        private void consume(final @NotNull byte[] data, final int position) {
+            v1 = round(v1, readLong(data, position));
+            v2 = round(v2, readLong(data, position + 8));
+            v3 = round(v3, readLong(data, position + 16));
+            v4 = round(v4, readLong(data, position + 24));
+        }
+
+        private static long round(final long accumulator, final long input) {
+            return Long.rotateLeft(accumulator + input * PRIME2, 31) * PRIME1;
+        }
+
+        private static long merge(final long hash, final long accumulator) {
+            return (hash ^ round(0, accumulator)) * PRIME1 + PRIME4;
+        }
+
+        private static long readLong(final @NotNull byte[] data, final int position) {
+            return (readInt(data, position) & 0xFFFF_FFFFL) | ((long) readInt(data, position + 4) << 32);
+        }
+
+        private static int readInt(final @NotNull byte[] data, final int position) {
+            return (data[position] & 0xFF) | ((data[position + 1] & 0xFF) << 8)
+                    | ((data[position + 2] & 0xFF) << 16) | ((data[position + 3] & 0xFF) << 24);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * The names of the backups HiveMQ imports, derived from the time of the export.
+ *
+ * @since 1.0.0
+ */
+public final class BackupNames {
+
+    @SuppressWarnings("SpellCheckingInspection")
+    public static final String EXPORT_DATE_FORMAT = "yyyyMMdd-HHmmss";
+
+    //do not instantiate
+    private BackupNames() {
+    }
+
+    /**
+     * @param fileTimeStamp The formatted export time stamp.
+     * @param hiveMqVersion The used HiveMQ version.
+     * @return The name of the backup file HiveMQ imports.
+     */
+    public static @NotNull String getBackupFileName(final @NotNull String fileTimeStamp, final @NotNull String hiveMqVersion) {
+        return fileTimeStamp + ".hivemq-" + hiveMqVersion + ".backup";
+    }
+
+    public static @NotNull LocalDateTime convertTimeStamp(final long timeStamp) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(timeStamp), ZoneId.systemDefault()).truncatedTo(ChronoUnit.SECONDS);
+    }
+}
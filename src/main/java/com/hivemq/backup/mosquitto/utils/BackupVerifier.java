@@ -0,0 +1,155 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import com.google.common.base.Preconditions;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.tinylog.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks a backup archive against its {@link BackupManifest}.
+ * <p>
+ * Every file listed in the manifest must be in the archive with the listed size and hash, and the archive must not
+ * contain any other file. The files are inflated and hashed block by block on several threads, nothing is written to
+ * disk.
+ *
+ * @since 1.0.0
+ */
+public class BackupVerifier {
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private final @NotNull Path backupFile;
+    private final int threads;
+
+    /**
+     * Creates a BackupVerifier.
+     *
+     * @param backupFile The backup archive.
+     * @param threads    The amount of threads the files are checked on.
+     */
+    public BackupVerifier(final @NotNull Path backupFile, final int threads) {
+        Preconditions.checkArgument(threads > 0, "thread count must be positive");
+        this.backupFile = backupFile;
+        this.threads = threads;
+    }
+
+    /**
+     * Checks the backup archive and logs every difference to the manifest.
+     *
+     * @return True if the archive matches its manifest.
+     * @throws IOException Thrown if the archive or its manifest can not be read.
+     */
+    public boolean verify() throws IOException {
+        try (final @NotNull ZipFile zip = new ZipFile(backupFile.toFile())) {
+            final @Nullable ZipArchiveEntry manifestEntry = zip.getEntry(BackupManifest.NAME);
+            if (manifestEntry == null) {
+                Logger.error("Backup " + backupFile + " contains no manifest.");
+                return false;
+            }
+            final @NotNull BackupManifest manifest;
+            try (final @NotNull InputStream in = zip.getInputStream(manifestEntry)) {
+                manifest = BackupManifest.read(in);
+            }
+
+            final @NotNull Map<String, ZipArchiveEntry> files = new HashMap<>();
+            final @NotNull Enumeration<ZipArchiveEntry> entries = zip.getEntries();
+            while (entries.hasMoreElements()) {
+                final @NotNull ZipArchiveEntry entry = entries.nextElement();
+                if (!entry.isDirectory() && !entry.getName().equals(BackupManifest.NAME)) {
+                    files.put(entry.getName(), entry);
+                }
+            }
+
+            final @NotNull AtomicInteger failures = new AtomicInteger();
+            final @NotNull List<Callable<Void>> tasks = new ArrayList<>();
+            long records = 0;
+            long size = 0;
+            for (final @NotNull BackupManifest.Entry expected : manifest.getEntries()) {
+                records += expected.getRecords();
+                size += expected.getSize();
+                final @Nullable ZipArchiveEntry entry = files.remove(expected.getName());
+                if (entry == null) {
+                    Logger.error("Missing file " + expected.getName() + ".");
+                    failures.incrementAndGet();
+                } else if (entry.getSize() != expected.getSize()) {
+                    Logger.error("File " + expected.getName() + " has " + entry.getSize() + " instead of " + expected.getSize() + " bytes.");
+                    failures.incrementAndGet();
+                } else {
+                    tasks.add(() -> {
+                        if (!hashMatches(zip, entry, expected)) {
+                            Logger.error("File " + expected.getName() + " is corrupted.");
+                            failures.incrementAndGet();
+                        }
+                        return null;
+                    });
+                }
+            }
+            for (final @NotNull String unexpected : files.keySet()) {
+                Logger.error("File " + unexpected + " is not listed in the manifest.");
+                failures.incrementAndGet();
+            }
+
+            final @NotNull ExecutorService executorService = Executors.newFixedThreadPool(threads);
+            try {
+                for (final @NotNull Future<Void> future : executorService.invokeAll(tasks)) {
+                    future.get();
+                }
+            } catch (final @NotNull InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (final @NotNull ExecutionException ex) {
+                throw new IOException("Could not read the backup.", ex.getCause());
+            } finally {
+                executorService.shutdownNow();
+            }
+
+            if (failures.get() > 0) {
+                Logger.error("Backup " + backupFile + " is damaged, " + failures.get() + " problems found.");
+                return false;
+            }
+            Logger.info("Backup " + backupFile + " is intact: " + manifest.getEntries().size() + " files, "
+                    + records + " records, " + size + " bytes.");
+            return true;
+        }
+    }
+
+    private static boolean hashMatches(final @NotNull ZipFile zip,
+                                       final @NotNull ZipArchiveEntry entry,
+                                       final @NotNull BackupManifest.Entry expected) throws IOException {
+        final @NotNull BackupManifest.Hasher hasher = BackupManifest.hasher();
+        final @NotNull byte[] block = new byte[BLOCK_SIZE];
+        long size = 0;
+        try (final @NotNull InputStream in = zip.getInputStream(entry)) {
+            for (int read = in.read(block); read >= 0; read = in.read(block)) {
+                hasher.update(block, 0, read);
+                size += read;
+            }
+        }
+        return size == expected.getSize() && hasher.getValue() == expected.getHash();
+    }
+}
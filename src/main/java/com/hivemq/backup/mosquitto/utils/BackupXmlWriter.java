@@ -0,0 +1,522 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Writes the XML documents of a HiveMQ backup as UTF-8 bytes into a growing buffer.
+ * <p>
+ * With an {@link #setOutput(OutputStream) output}, the buffer is written to the output whenever it is full instead of
+ * growing, so the buffer stays small no matter how large the document becomes. Payloads are encoded in slices for the
+ * same reason.
+ * <p>
+ * The writer only supports what the backup format needs: elements with text content, attributes on the root element
+ * and the indentation of the backup files. Element names are encoded once as {@link Tag}s, numbers are formatted
+ * without allocating and text is only escaped if it contains markup characters. With pretty printing enabled the
+ * output is byte for byte the same as the one of the JDK stream writer with UTF-8 encoding.
+ * <p>
+ * A writer is not thread safe, every worker uses its own instance.
+ *
+ * @since 1.0.0
+ */
+public class BackupXmlWriter {
+
+    private static final @NotNull byte[] XML_DECLARATION = "<?xml version=\"1.0\" ?>".getBytes(UTF_8);
+    private static final @NotNull byte[] INDENT = "    ".getBytes(UTF_8);
+    private static final @NotNull byte[] TRUE = "true".getBytes(UTF_8);
+    private static final @NotNull byte[] FALSE = "false".getBytes(UTF_8);
+    private static final @NotNull byte[] MIN_LONG = String.valueOf(Long.MIN_VALUE).getBytes(UTF_8);
+    private static final @NotNull byte[] AMP = "&amp;".getBytes(UTF_8);
+    private static final @NotNull byte[] LT = "&lt;".getBytes(UTF_8);
+    private static final @NotNull byte[] GT = "&gt;".getBytes(UTF_8);
+    private static final @NotNull byte[] QUOT = "&quot;".getBytes(UTF_8);
+
+    // the longest escape sequence, no character is written with more bytes
+    private static final int MAX_BYTES_PER_CHAR = QUOT.length;
+    // a multiple of 3, so the base64 slices need no padding
+    private static final int BASE64_SLICE = 3 * 16 * 1024;
+    // some VMs reserve header words in an array
+    private static final int MAX_BUFFER_SIZE = Integer.MAX_VALUE - 8;
+
+    private final boolean prettyPrint;
+    private @NotNull byte[] buffer;
+    private int count = 0;
+    private long flushed = 0;
+    private @Nullable OutputStream output;
+    private @NotNull byte[] scratch = new byte[256];
+    private int utf8Length = 0;
+    private boolean utf8Replaced = false;
+
+    /**
+     * Creates a BackupXmlWriter.
+     *
+     * @param initialSize The initial size of the buffer in bytes.
+     * @param prettyPrint Write line breaks and indentation between the elements.
+     */
+    public BackupXmlWriter(final int initialSize, final boolean prettyPrint) {
+        this.buffer = new byte[initialSize];
+        this.prettyPrint = prettyPrint;
+    }
+
+    public void startDocument() {
+        writeRaw(XML_DECLARATION);
+    }
+
+    public void newLine() {
+        if (prettyPrint) {
+            ensureCapacity(1);
+            buffer[count++] = '\n';
+        }
+    }
+
+    public void indent(final int depth) {
+        if (prettyPrint) {
+            for (int x = 0; x < depth; x++) {
+                writeRaw(INDENT);
+            }
+        }
+    }
+
+    public void startElement(final @NotNull Tag tag, final int depth) {
+        indent(depth);
+        writeRaw(tag.open);
+    }
+
+    public void endElement(final @NotNull Tag tag, final int depth) {
+        indent(depth);
+        writeRaw(tag.close);
+    }
+
+    /**
+     * Starts an element which has attributes. The start tag must be completed with {@link #closeStartTag()}.
+     */
+    public void startElementWithAttributes(final @NotNull Tag tag) {
+        writeRaw(tag.start);
+    }
+
+    public void closeStartTag() {
+        ensureCapacity(1);
+        buffer[count++] = '>';
+    }
+
+    public void writeAttribute(final @NotNull Tag name, final @NotNull String value) {
+        writeRaw(name.attribute);
+        writeEscaped(value, true);
+        ensureCapacity(1);
+        buffer[count++] = '"';
+    }
+
+    public void writeAttribute(final @NotNull Tag name, final long value) {
+        writeRaw(name.attribute);
+        writeLong(value);
+        ensureCapacity(1);
+        buffer[count++] = '"';
+    }
+
+    public void writeAttribute(final @NotNull Tag name, final boolean value) {
+        writeRaw(name.attribute);
+        writeRaw(value ? TRUE : FALSE);
+        ensureCapacity(1);
+        buffer[count++] = '"';
+    }
+
+    /**
+     * Writes the base64 encoded UTF-8 bytes of the value as attribute.
+     */
+    public void writeAttributeEncoded(final @NotNull Tag name, final @NotNull String value) {
+        writeRaw(name.attribute);
+        writeBase64(encodeUtf8(value), 0, utf8Length);
+        ensureCapacity(1);
+        buffer[count++] = '"';
+    }
+
+    public void writeString(final @NotNull Tag element, final @Nullable String value, final int depth) {
+        if (value == null) {
+            return;
+        }
+        startElement(element, depth);
+        writeEscaped(value, false);
+        writeRaw(element.close);
+        newLine();
+    }
+
+    public void writeStringEncoded(final @NotNull Tag element, final @Nullable String value, final int depth) {
+        if (value == null) {
+            return;
+        }
+        startElement(element, depth);
+        writeBase64(encodeUtf8(value), 0, utf8Length);
+        writeRaw(element.close);
+        newLine();
+    }
+
+    public void writeNumber(final @NotNull Tag element, final long value, final int depth) {
+        startElement(element, depth);
+        writeLong(value);
+        writeRaw(element.close);
+        newLine();
+    }
+
+    public void writeBoolean(final @NotNull Tag element, final boolean value, final int depth) {
+        startElement(element, depth);
+        writeRaw(value ? TRUE : FALSE);
+        writeRaw(element.close);
+        newLine();
+    }
+
+    public void writeBytes(final @NotNull Tag element, final @Nullable byte[] value, final int depth) {
+        if (value == null) {
+            return;
+        }
+        startElement(element, depth);
+        writeBase64(value, 0, value.length);
+        writeRaw(element.close);
+        newLine();
+    }
+
+    /**
+     * Writes a client id or topic element, preceded by the element which tells whether it is base64 encoded.
+     */
+    public void writeName(final @NotNull Tag base64Element, final @NotNull Tag element, final @NotNull String name, final int depth) {
+        final boolean mustEncode = encodeNameContent(name);
+        writeBoolean(base64Element, mustEncode, depth);
+        startElement(element, depth);
+        writeNameContent(mustEncode);
+        writeRaw(element.close);
+        newLine();
+    }
+
+    /**
+     * Writes a client id or topic element which was encoded before, see {@link #encodeName(String)}.
+     */
+    public void writeName(final @NotNull Tag base64Element, final @NotNull Tag element, final @NotNull EncodedName name, final int depth) {
+        writeBoolean(base64Element, name.base64, depth);
+        startElement(element, depth);
+        writeRaw(name.content);
+        writeRaw(element.close);
+        newLine();
+    }
+
+    /**
+     * Decides whether a client id or topic must be base64 encoded and serializes its content accordingly.
+     *
+     * @param name The client id or topic.
+     * @return The encoded name, which can be written by any writer.
+     */
+    public @NotNull EncodedName encodeName(final @NotNull String name) {
+        final boolean mustEncode = encodeNameContent(name);
+        final @NotNull byte[] content;
+        if (mustEncode) {
+            content = new byte[(utf8Length + 2) / 3 * 4];
+            TextCodec.encodeBase64(scratch, 0, utf8Length, content, 0);
+        } else {
+            content = Arrays.copyOf(scratch, utf8Length);
+        }
+        return new EncodedName(mustEncode, content);
+    }
+
+    /**
+     * Encodes the name into the scratch buffer and decides on its UTF-8 bytes whether it must be base64 encoded.
+     */
+    private boolean encodeNameContent(final @NotNull String name) {
+        encodeUtf8(name);
+        return utf8Replaced || !TextCodec.isValidName(scratch, 0, utf8Length);
+    }
+
+    /**
+     * Writes the name in the scratch buffer. Valid names contain no markup chars, so they need no escaping.
+     */
+    private void writeNameContent(final boolean base64) {
+        if (base64) {
+            writeBase64(scratch, 0, utf8Length);
+        } else {
+            ensureCapacity(utf8Length);
+            System.arraycopy(scratch, 0, buffer, count, utf8Length);
+            count += utf8Length;
+        }
+    }
+
+    /**
+     * Appends already serialized bytes, for example a cached fragment of another writer.
+     */
+    public void writeRaw(final @NotNull byte[] bytes) {
+        if (output != null && bytes.length > buffer.length) {
+            // written as is instead of growing the buffer
+            writeBuffer();
+            writeOutput(bytes, bytes.length);
+            return;
+        }
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+    /**
+     * Sets the stream the buffer is written to whenever it is full.
+     *
+     * @param output The stream, null to only grow the buffer.
+     */
+    public void setOutput(final @Nullable OutputStream output) {
+        this.output = output;
+    }
+
+    /**
+     * Writes the buffered bytes to the output.
+     *
+     * @throws IOException Thrown if the output can not be written.
+     */
+    public void flush() throws IOException {
+        try {
+            writeBuffer();
+        } catch (final @NotNull UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * @return The amount of bytes written since the last reset, including the ones written to the output already.
+     */
+    public long size() {
+        return flushed + count;
+    }
+
+    public void reset() {
+        count = 0;
+        flushed = 0;
+    }
+
+    public @NotNull byte[] toByteArray() {
+        Preconditions.checkState(flushed == 0, "the buffer was written to the output");
+        return Arrays.copyOf(buffer, count);
+    }
+
+    public void writeTo(final @NotNull OutputStream outputStream) throws IOException {
+        Preconditions.checkState(flushed == 0, "the buffer was written to the output");
+        outputStream.write(buffer, 0, count);
+    }
+
+    private void writeLong(final long value) {
+        if (value == Long.MIN_VALUE) {
+            writeRaw(MIN_LONG);
+            return;
+        }
+        ensureCapacity(20);
+        long remaining = value;
+        if (remaining < 0) {
+            buffer[count++] = '-';
+            remaining = -remaining;
+        }
+        int digits = 1;
+        for (long bound = 10; digits < 19 && remaining >= bound; bound *= 10) {
+            digits++;
+        }
+        int position = count + digits;
+        count = position;
+        do {
+            buffer[--position] = (byte) ('0' + (remaining % 10));
+            remaining /= 10;
+        } while (remaining != 0);
+    }
+
+    /**
+     * Writes the UTF-8 bytes of the text. Like the JDK stream writer only {@code &}, {@code <} and {@code >} are
+     * escaped, quotes are additionally escaped in attribute values.
+     */
+    private void writeEscaped(final @NotNull String value, final boolean attribute) {
+        final int length = value.length();
+        ensureCapacity(length * MAX_BYTES_PER_CHAR);
+        final byte[] out = buffer;
+        int position = count;
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c < 0x80) {
+                if (c == '&') {
+                    System.arraycopy(AMP, 0, out, position, AMP.length);
+                    position += AMP.length;
+                } else if (c == '<') {
+                    System.arraycopy(LT, 0, out, position, LT.length);
+                    position += LT.length;
+                } else if (c == '>') {
+                    System.arraycopy(GT, 0, out, position, GT.length);
+                    position += GT.length;
+                } else if (c == '"' && attribute) {
+                    System.arraycopy(QUOT, 0, out, position, QUOT.length);
+                    position += QUOT.length;
+                } else {
+                    out[position++] = (byte) c;
+                }
+            } else {
+                position = encodeUtf8Char(value, i, out, position);
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    i++;
+                }
+            }
+        }
+        count = position;
+    }
+
+    /**
+     * Encodes the text into the scratch buffer, the amount of encoded bytes is stored in {@link #utf8Length}.
+     * {@link #utf8Replaced} tells whether an unpaired surrogate had to be replaced.
+     */
+    private @NotNull byte[] encodeUtf8(final @NotNull String value) {
+        final int length = value.length();
+        if (scratch.length < length * 3) {
+            scratch = new byte[Math.max(length * 3, scratch.length * 2)];
+        }
+        final byte[] out = scratch;
+        int position = 0;
+        boolean replaced = false;
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c < 0x80) {
+                out[position++] = (byte) c;
+            } else {
+                position = encodeUtf8Char(value, i, out, position);
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    i++;
+                } else if (Character.isSurrogate(c)) {
+                    replaced = true;
+                }
+            }
+        }
+        utf8Length = position;
+        utf8Replaced = replaced;
+        return out;
+    }
+
+    /**
+     * Encodes the non ASCII character at the index. Unpaired surrogates are replaced with '?' like
+     * {@link String#getBytes(java.nio.charset.Charset)} does.
+     */
+    private static int encodeUtf8Char(final @NotNull String value, final int index, final @NotNull byte[] out, int position) {
+        final char c = value.charAt(index);
+        if (c < 0x800) {
+            out[position++] = (byte) (0xC0 | (c >> 6));
+            out[position++] = (byte) (0x80 | (c & 0x3F));
+        } else if (!Character.isSurrogate(c)) {
+            out[position++] = (byte) (0xE0 | (c >> 12));
+            out[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            out[position++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c) && index + 1 < value.length() && Character.isLowSurrogate(value.charAt(index + 1))) {
+            final int codePoint = Character.toCodePoint(c, value.charAt(index + 1));
+            out[position++] = (byte) (0xF0 | (codePoint >> 18));
+            out[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+            out[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            out[position++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else {
+            out[position++] = '?';
+        }
+        return position;
+    }
+
+    private void writeBase64(final @NotNull byte[] data, final int offset, final int length) {
+        for (int done = 0; done < length; done += BASE64_SLICE) {
+            final int slice = Math.min(BASE64_SLICE, length - done);
+            ensureCapacity((slice + 2) / 3 * 4);
+            count = TextCodec.encodeBase64(data, offset + done, slice, buffer, count);
+        }
+    }
+
+    /**
+     * Makes room for the additional bytes. With an output the buffered bytes are written first, the buffer only grows
+     * if the additional bytes alone do not fit.
+     */
+    private void ensureCapacity(final int additional) {
+        if (count + (long) additional <= buffer.length) {
+            return;
+        }
+        if (output != null) {
+            writeBuffer();
+            if (additional <= buffer.length) {
+                return;
+            }
+        }
+        final long required = count + (long) additional;
+        if (required > MAX_BUFFER_SIZE) {
+            throw new IllegalStateException("The XML document exceeds " + MAX_BUFFER_SIZE + " bytes, it must be written to an output.");
+        }
+        buffer = Arrays.copyOf(buffer, (int) Math.min(MAX_BUFFER_SIZE, Math.max(buffer.length * 2L, required)));
+    }
+
+    private void writeBuffer() {
+        if (count > 0) {
+            writeOutput(buffer, count);
+            count = 0;
+        }
+    }
+
+    private void writeOutput(final @NotNull byte[] bytes, final int length) {
+        Preconditions.checkState(output != null, "no output");
+        try {
+            output.write(bytes, 0, length);
+        } catch (final @NotNull IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        flushed += length;
+    }
+
+    /**
+     * The serialized content of a client id or topic element.
+     */
+    public static class EncodedName {
+
+        private final boolean base64;
+        private final @NotNull byte[] content;
+
+        private EncodedName(final boolean base64, final @NotNull byte[] content) {
+            this.base64 = base64;
+            this.content = content;
+        }
+    }
+
+    /**
+     * The pre-encoded markup of an element or attribute name.
+     */
+    public static class Tag {
+
+        private final @NotNull byte[] open;
+        private final @NotNull byte[] close;
+        private final @NotNull byte[] start;
+        private final @NotNull byte[] attribute;
+
+        private Tag(final @NotNull String name) {
+            this.open = ("<" + name + ">").getBytes(UTF_8);
+            this.close = ("</" + name + ">").getBytes(UTF_8);
+            this.start = ("<" + name).getBytes(UTF_8);
+            this.attribute = (" " + name + "=\"").getBytes(UTF_8);
+        }
+
+        /**
+         * @param name The element or attribute name, one of the format constants.
+         * @return The encoded tag.
+         */
+        public static @NotNull Tag of(final @NotNull String name) {
+            return new Tag(name);
+        }
+    }
+}
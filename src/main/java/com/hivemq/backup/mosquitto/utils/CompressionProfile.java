@@ -0,0 +1,70 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import java.util.zip.Deflater;
+
+/**
+ * The trade-off between the speed and the size of the backup archive.
+ *
+ * @since 1.0.0
+ */
+public enum CompressionProfile {
+
+    /**
+     * Stores the entries without compression.
+     */
+    STORE(Deflater.NO_COMPRESSION),
+
+    /**
+     * The fastest compression.
+     */
+    FAST(Deflater.BEST_SPEED),
+
+    /**
+     * The default compression of zip archives.
+     */
+    BALANCED(6),
+
+    /**
+     * The smallest archive.
+     */
+    MAX(Deflater.BEST_COMPRESSION),
+
+    /**
+     * Samples the other profiles on the first entries and continues with the one which finishes the backup first.
+     */
+    AUTO(-1);
+
+    private final int level;
+
+    /**
+     * Creates a CompressionProfile.
+     *
+     * @param level The deflate level, -1 if it is chosen automatically.
+     */
+    CompressionProfile(final int level) {
+        this.level = level;
+    }
+
+    /**
+     * @return The deflate level, {@link Deflater#NO_COMPRESSION} for stored entries.
+     */
+    public int getLevel() {
+        return level;
+    }
+}
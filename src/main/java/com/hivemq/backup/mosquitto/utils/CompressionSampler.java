@@ -0,0 +1,103 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.tinylog.Logger;
+
+/**
+ * Chooses the compression profile of {@link CompressionProfile#AUTO}.
+ * <p>
+ * The first entries of the backup are compressed with every candidate profile. Once enough bytes are sampled, the
+ * profile with the lowest estimated time per byte is chosen: the compression time spread over all compression threads
+ * plus the time to transfer the compressed bytes with the target bandwidth.
+ *
+ * @since 1.0.0
+ */
+class CompressionSampler {
+
+    static final @NotNull CompressionProfile[] CANDIDATES =
+            {CompressionProfile.STORE, CompressionProfile.FAST, CompressionProfile.BALANCED, CompressionProfile.MAX};
+
+    private final long sampleSize;
+    private final long targetBandwidth;
+    private final int compressionThreads;
+
+    private final long[] outputBytes = new long[CANDIDATES.length];
+    private final long[] nanos = new long[CANDIDATES.length];
+    private long inputBytes = 0;
+    private volatile @Nullable CompressionProfile selected;
+
+    /**
+     * Creates a CompressionSampler.
+     *
+     * @param sampleSize         The amount of uncompressed bytes to sample before a profile is chosen.
+     * @param targetBandwidth    The bandwidth in bytes per second the backup is transferred with.
+     * @param compressionThreads The amount of threads the entries are compressed on.
+     */
+    CompressionSampler(final long sampleSize, final long targetBandwidth, final int compressionThreads) {
+        this.sampleSize = sampleSize;
+        this.targetBandwidth = targetBandwidth;
+        this.compressionThreads = compressionThreads;
+    }
+
+    /**
+     * @return The chosen profile, null while sampling.
+     */
+    @Nullable CompressionProfile getSelected() {
+        return selected;
+    }
+
+    /**
+     * Adds the results of compressing one entry with every candidate.
+     *
+     * @param input  The uncompressed size of the entry.
+     * @param output The compressed size per candidate.
+     * @param time   The compression time in nanoseconds per candidate.
+     */
+    synchronized void sample(final int input, final @NotNull long[] output, final @NotNull long[] time) {
+        if (selected != null) {
+            return;
+        }
+        inputBytes += input;
+        for (int i = 0; i < CANDIDATES.length; i++) {
+            outputBytes[i] += output[i];
+            nanos[i] += time[i];
+        }
+        if (inputBytes >= sampleSize) {
+            select();
+        }
+    }
+
+    private void select() {
+        int best = 0;
+        for (int i = 1; i < CANDIDATES.length; i++) {
+            if (estimateSeconds(i) < estimateSeconds(best)) {
+                best = i;
+            }
+        }
+        selected = CANDIDATES[best];
+        Logger.info("Compression profile " + CANDIDATES[best] + " chosen, "
+                + String.format("%.0f%% of the size, ", 100.0 * outputBytes[best] / inputBytes)
+                + String.format("%.1f s estimated per GiB.", estimateSeconds(best) * (1L << 30) / inputBytes));
+    }
+
+    private double estimateSeconds(final int candidate) {
+        return nanos[candidate] / 1e9 / compressionThreads + (double) outputBytes[candidate] / targetBandwidth;
+    }
+}
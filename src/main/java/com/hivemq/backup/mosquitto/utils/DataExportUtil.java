@@ -19,13 +19,9 @@ package com.hivemq.backup.mosquitto.utils;
 import com.google.common.io.BaseEncoding;
 import com.hivemq.backup.mosquitto.db.Property;
 import com.hivemq.backup.mosquitto.format.MessageXML;
-import org.apache.commons.lang3.StringUtils;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.XMLStreamWriter;
-import java.io.File;
 import java.util.List;
 import java.util.Objects;
 
@@ -39,162 +35,106 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 public class DataExportUtil {
 
     public static final @NotNull BaseEncoding BASE_64 = BaseEncoding.base64();
+    private static final @NotNull BackupXmlWriter.Tag USER_PROPERTIES = BackupXmlWriter.Tag.of(MessageXML.USER_PROPERTIES);
+    private static final @NotNull BackupXmlWriter.Tag USER_PROPERTY = BackupXmlWriter.Tag.of(MessageXML.USER_PROPERTY);
+    private static final @NotNull BackupXmlWriter.Tag USER_PROPERTY_NAME = BackupXmlWriter.Tag.of(MessageXML.USER_PROPERTY_NAME);
+    private static final @NotNull BackupXmlWriter.Tag USER_PROPERTY_VALUE = BackupXmlWriter.Tag.of(MessageXML.USER_PROPERTY_VALUE);
+    private static final @NotNull BackupXmlWriter.Tag SUBSCRIPTION_IDENTIFIERS = BackupXmlWriter.Tag.of(MessageXML.SUBSCRIPTION_IDENTIFIERS);
+    private static final @NotNull BackupXmlWriter.Tag SUBSCRIPTION_IDENTIFIER = BackupXmlWriter.Tag.of(MessageXML.SUBSCRIPTION_IDENTIFIER);
     @SuppressWarnings("SpellCheckingInspection")
     private static final @NotNull String VALID_CHARS = "01234567890abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ-_=!/\\'.,?()[]{}%$§*+\"'#@€`´";
 
-    //do not instantiate
-    private DataExportUtil() {
-    }
-
-    public static void writeString(final @NotNull XMLStreamWriter xmlStreamWriter,
-                                   final @Nullable String value,
-                                   final @NotNull String element,
-                                   final int depth) throws XMLStreamException {
-        if (value == null) {
-            return;
-        }
-        writeSpaces(xmlStreamWriter, depth);
-        xmlStreamWriter.writeStartElement(element);
-        xmlStreamWriter.writeCharacters(value);
-        xmlStreamWriter.writeEndElement();
-        xmlStreamWriter.writeCharacters("\n");
-    }
-
-    public static void writeStringEncoded(final @NotNull XMLStreamWriter xmlStreamWriter,
-                                          final @Nullable String value,
-                                          final @NotNull String element,
-                                          final int depth) throws XMLStreamException {
-        if (value == null) {
-            return;
-        }
-        writeSpaces(xmlStreamWriter, depth);
-        xmlStreamWriter.writeStartElement(element);
-        xmlStreamWriter.writeCharacters(BASE_64.encode(value.getBytes(UTF_8)));
-        xmlStreamWriter.writeEndElement();
-        xmlStreamWriter.writeCharacters("\n");
-    }
+    // one bit for every char, set if the char is valid
+    private static final @NotNull long[] VALID_CHAR_BITS = new long[(Character.MAX_VALUE + 1) / Long.SIZE];
 
-    public static void writeNumber(final @NotNull XMLStreamWriter xmlStreamWriter,
-                                   final @Nullable Number value,
-                                   final @NotNull String element,
-                                   final int depth) throws XMLStreamException {
-        if (value == null) {
-            return;
+    static {
+        for (int i = 0; i < VALID_CHARS.length(); i++) {
+            final char c = VALID_CHARS.charAt(i);
+            VALID_CHAR_BITS[c >>> 6] |= 1L << c;
         }
-        writeSpaces(xmlStreamWriter, depth);
-        xmlStreamWriter.writeStartElement(element);
-        xmlStreamWriter.writeCharacters(String.valueOf(value));
-        xmlStreamWriter.writeEndElement();
-        xmlStreamWriter.writeCharacters("\n");
     }
 
-    public static void writeBoolean(final @NotNull XMLStreamWriter xmlStreamWriter,
-                                    final boolean value,
-                                    final @NotNull String element,
-                                    final int depth) throws XMLStreamException {
-        writeSpaces(xmlStreamWriter, depth);
-        xmlStreamWriter.writeStartElement(element);
-        xmlStreamWriter.writeCharacters(String.valueOf(value));
-        xmlStreamWriter.writeEndElement();
-        xmlStreamWriter.writeCharacters("\n");
-    }
+    // the valid ASCII chars, kept in two words so the common case does not need to load the table
+    private static final long VALID_ASCII_LOW = VALID_CHAR_BITS[0];
+    private static final long VALID_ASCII_HIGH = VALID_CHAR_BITS[1];
 
-    public static void writeBytes(final @NotNull XMLStreamWriter xmlStreamWriter,
-                                  final @Nullable byte[] value,
-                                  final @NotNull String element,
-                                  final int depth) throws XMLStreamException {
-        if (value == null) {
-            return;
-        }
-        writeSpaces(xmlStreamWriter, depth);
-        xmlStreamWriter.writeStartElement(element);
-        xmlStreamWriter.writeCharacters(BASE_64.encode(value));
-        xmlStreamWriter.writeEndElement();
-        xmlStreamWriter.writeCharacters("\n");
+    //do not instantiate
+    private DataExportUtil() {
     }
 
-    public static void writeUserProperties(final @NotNull XMLStreamWriter xmlStreamWriter,
+    public static void writeUserProperties(final @NotNull BackupXmlWriter xmlWriter,
                                            final @NotNull List<Property> userProperties,
-                                           final int depth) throws XMLStreamException {
+                                           final int depth) {
         if (userProperties.size() > 0) {
-            writeSpaces(xmlStreamWriter, depth);
-            xmlStreamWriter.writeStartElement(MessageXML.USER_PROPERTIES);
-            xmlStreamWriter.writeCharacters("\n");
+            xmlWriter.startElement(USER_PROPERTIES, depth);
+            xmlWriter.newLine();
 
             for (final @NotNull Property mqttUserProperty : userProperties) {
-                writeSpaces(xmlStreamWriter, depth + 1);
-                xmlStreamWriter.writeStartElement(MessageXML.USER_PROPERTY);
-                xmlStreamWriter.writeCharacters("\n");
-
-                writeStringEncoded(xmlStreamWriter, mqttUserProperty.getKey(), MessageXML.USER_PROPERTY_NAME, depth + 2);
-                writeStringEncoded(xmlStreamWriter, new String(Objects.requireNonNull(mqttUserProperty.getByteArrayValue())), MessageXML.USER_PROPERTY_VALUE, depth + 2);
-
-                writeSpaces(xmlStreamWriter, depth + 1);
-                xmlStreamWriter.writeEndElement();
-                xmlStreamWriter.writeCharacters("\n");
+                xmlWriter.startElement(USER_PROPERTY, depth + 1);
+                xmlWriter.newLine();
+
+                xmlWriter.writeStringEncoded(USER_PROPERTY_NAME, mqttUserProperty.getKey(), depth + 2);
+                final @NotNull byte[] value = Objects.requireNonNull(mqttUserProperty.getByteArrayValue());
+                if (TextCodec.isValidUtf8(value, 0, value.length)) {
+                    // well-formed UTF-8 would not change by decoding and encoding it again
+                    xmlWriter.writeBytes(USER_PROPERTY_VALUE, value, depth + 2);
+                } else {
+                    xmlWriter.writeStringEncoded(USER_PROPERTY_VALUE, new String(value, UTF_8), depth + 2);
+                }
+
+                xmlWriter.endElement(USER_PROPERTY, depth + 1);
+                xmlWriter.newLine();
             }
 
-            writeSpaces(xmlStreamWriter, depth);
-            xmlStreamWriter.writeEndElement();
-            xmlStreamWriter.writeCharacters("\n");
+            xmlWriter.endElement(USER_PROPERTIES, depth);
+            xmlWriter.newLine();
         }
     }
 
-    public static void writeSubscriptionIdentifiers(final @NotNull XMLStreamWriter xmlStreamWriter,
+    public static void writeSubscriptionIdentifiers(final @NotNull BackupXmlWriter xmlWriter,
                                                     final @Nullable List<Integer> subscriptionIdentifiers,
-                                                    final int depth) throws XMLStreamException {
+                                                    final int depth) {
         if (subscriptionIdentifiers != null && subscriptionIdentifiers.size() > 0) {
-            writeSpaces(xmlStreamWriter, depth);
-            xmlStreamWriter.writeStartElement(MessageXML.SUBSCRIPTION_IDENTIFIERS);
-            xmlStreamWriter.writeCharacters("\n");
+            xmlWriter.startElement(SUBSCRIPTION_IDENTIFIERS, depth);
+            xmlWriter.newLine();
 
             for (final @NotNull Integer identifier : subscriptionIdentifiers) {
-                writeNumber(xmlStreamWriter, (identifier == 0) ? null : identifier, MessageXML.SUBSCRIPTION_IDENTIFIER, depth + 1);
+                if (identifier != 0) {
+                    xmlWriter.writeNumber(SUBSCRIPTION_IDENTIFIER, identifier, depth + 1);
+                }
             }
 
-            writeSpaces(xmlStreamWriter, depth);
-            xmlStreamWriter.writeEndElement();
-            xmlStreamWriter.writeCharacters("\n");
+            xmlWriter.endElement(SUBSCRIPTION_IDENTIFIERS, depth);
+            xmlWriter.newLine();
         }
     }
 
-    public static void writeSpaces(final @NotNull XMLStreamWriter xmlStreamWriter, final int depth) throws XMLStreamException {
-        for (int x = 0; x < depth; x++) {
-            xmlStreamWriter.writeCharacters("    ");
-        }
+    static boolean isValidChar(final char c) {
+        return (VALID_CHAR_BITS[c >>> 6] & (1L << c)) != 0;
     }
 
+    /**
+     * Checks if a name has to be base64 encoded, which is the case if it contains a char which is not a valid char.
+     *
+     * @param string The name.
+     * @return Returns true if the name contains an invalid char.
+     */
     public static boolean mustEncode(final @NotNull String string) {
-        return !StringUtils.containsOnly(string, VALID_CHARS);
-    }
-
-
-    public static @NotNull String getNextFileName(final @NotNull File folder, final @NotNull String identifier) {
-
-        final @NotNull StringBuilder fileNameBuilder = new StringBuilder();
-        for (int i = 0; i < identifier.length(); i++) {
-            final char c = identifier.charAt(i);
-            if (isSafeChar(c)) {
-                fileNameBuilder.append(c);
-            } else {
-                fileNameBuilder.append('-');
+        for (int i = 0; i < string.length(); i++) {
+            final char c = string.charAt(i);
+            // a shift only uses the lower six bits of c
+            if (c < 64) {
+                if ((VALID_ASCII_LOW & (1L << c)) == 0) {
+                    return true;
+                }
+            } else if (c < 128) {
+                if ((VALID_ASCII_HIGH & (1L << c)) == 0) {
+                    return true;
+                }
+            } else if ((VALID_CHAR_BITS[c >>> 6] & (1L << c)) == 0) {
+                return true;
             }
         }
-
-        final @NotNull String fileNameClientId = fileNameBuilder.toString();
-
-        String finalFileName = null;
-        for (int i = 0; finalFileName == null; i++) {
-            if (new @NotNull File(folder, fileNameClientId + "-" + i).exists()) {
-                continue;
-            }
-            finalFileName = fileNameClientId + "-" + i;
-        }
-
-        return finalFileName;
-    }
-
-    private static boolean isSafeChar(final char c) {
-        return Character.isJavaIdentifierPart(c) || c == '-';
+        return false;
     }
 }
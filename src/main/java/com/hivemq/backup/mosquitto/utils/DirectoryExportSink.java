@@ -0,0 +1,167 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Writes the files of a backup into a folder.
+ * <p>
+ * Every open file collects its bytes in a direct buffer and hands them to its {@link FileChannel} only when the buffer
+ * is full or the file is closed, so even the many small writes of a zip stream result in a few large writes. The
+ * buffers are returned to a pool when a file is closed and are reused for the next file.
+ * <p>
+ * If requested, all written files are synced to the storage device once when the sink is closed.
+ *
+ * @since 1.0.0
+ */
+public class DirectoryExportSink implements ExportSink {
+
+    private final @NotNull Path folder;
+    private final int bufferSize;
+    private final boolean sync;
+    private final @NotNull Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final @NotNull Set<Path> createdFolders = ConcurrentHashMap.newKeySet();
+    private final @NotNull Queue<Path> writtenFiles = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Creates a DirectoryExportSink.
+     *
+     * @param folder     The folder the files are written to.
+     * @param bufferSize The size in bytes of the write buffer of every open file.
+     * @param sync       Sync all written files to the storage device when the sink is closed.
+     */
+    public DirectoryExportSink(final @NotNull Path folder, final int bufferSize, final boolean sync) {
+        Preconditions.checkArgument(bufferSize > 0, "buffer size must be positive");
+        this.folder = folder;
+        this.bufferSize = bufferSize;
+        this.sync = sync;
+    }
+
+    @Override
+    public @NotNull OutputStream open(final @NotNull String name) throws IOException {
+        final @NotNull Path file = folder.resolve(name);
+        final @Nullable Path parent = file.getParent();
+        if (parent != null && !createdFolders.contains(parent)) {
+            Files.createDirectories(parent);
+            createdFolders.add(parent);
+        }
+
+        final @NotNull FileChannel channel = FileChannel.open(file, CREATE, WRITE, TRUNCATE_EXISTING);
+        if (sync) {
+            writtenFiles.add(file);
+        }
+        @Nullable ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        return new ChannelOutputStream(channel, buffer);
+    }
+
+    @Override
+    public void close() throws IOException {
+        @Nullable Path file;
+        while ((file = writtenFiles.poll()) != null) {
+            try (final @NotNull FileChannel channel = FileChannel.open(file, WRITE)) {
+                channel.force(true);
+            }
+        }
+    }
+
+    /**
+     * A buffered stream to a file channel, the buffer goes back to the pool when the stream is closed.
+     */
+    private class ChannelOutputStream extends OutputStream {
+
+        private final @NotNull FileChannel channel;
+        private final @NotNull ByteBuffer buffer;
+        private boolean closed = false;
+
+        ChannelOutputStream(final @NotNull FileChannel channel, final @NotNull ByteBuffer buffer) {
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                flushBuffer();
+            }
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(final @NotNull byte[] bytes, final int offset, final int length) throws IOException {
+            if (length > buffer.remaining()) {
+                flushBuffer();
+                if (length >= buffer.capacity()) {
+                    // larger than the buffer, copying it into the buffer first would not save any write
+                    writeFully(ByteBuffer.wrap(bytes, offset, length));
+                    return;
+                }
+            }
+            buffer.put(bytes, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushBuffer();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                flushBuffer();
+            } finally {
+                buffer.clear();
+                buffers.add(buffer);
+                channel.close();
+            }
+        }
+
+        private void flushBuffer() throws IOException {
+            buffer.flip();
+            writeFully(buffer);
+            buffer.clear();
+        }
+
+        private void writeFully(final @NotNull ByteBuffer source) throws IOException {
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the encoding decision and the serialized content of topics, which repeat in every subscription and
+ * queued message of the same topic.
+ * <p>
+ * The parser hands out one instance per distinct topic, so a lookup mostly ends with an identity comparison. The cache
+ * is thread safe and holds every topic it has seen, which is bounded by the topics of the database.
+ *
+ * @since 1.0.0
+ */
+public class EncodedNameCache {
+
+    private final @NotNull ConcurrentHashMap<String, BackupXmlWriter.EncodedName> encodedNames = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the encoded form of a name and encodes it with the given writer if it was not seen before.
+     *
+     * @param name      The client id or topic.
+     * @param xmlWriter The writer of the calling thread.
+     * @return The encoded name.
+     */
+    public @NotNull BackupXmlWriter.EncodedName get(final @NotNull String name, final @NotNull BackupXmlWriter xmlWriter) {
+        final @Nullable BackupXmlWriter.EncodedName encodedName = encodedNames.get(name);
+        if (encodedName != null) {
+            return encodedName;
+        }
+        // encoding twice in a race is harmless, both results are equal
+        final @NotNull BackupXmlWriter.EncodedName created = xmlWriter.encodeName(name);
+        encodedNames.putIfAbsent(name, created);
+        return created;
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.List;
+
+/**
+ * The Java Flight Recorder events of the main units of work of an export. They carry the sizes and counts of their
+ * unit, so a recording shows which chunks, sessions and files the time and the allocations go to.
+ * <p>
+ * The events are only recorded while a recording is running, otherwise creating and committing them costs next to
+ * nothing.
+ *
+ * @since 1.0.0
+ */
+public final class ExportEvents {
+
+    private static final @NotNull String CATEGORY = "mosquitto2hivemq";
+
+    private static final @NotNull List<Class<? extends Event>> EVENT_TYPES = List.of(
+            ChunkDecode.class, SessionRender.class, RetainedFileWrite.class, EntryCompress.class, EntryWrite.class);
+
+    private ExportEvents() {
+    }
+
+    /**
+     * Starts a recording with the events of the export and the JVM profiling events. It is written to the file when the
+     * JVM exits.
+     *
+     * @param file The recording file.
+     * @return The running recording.
+     * @throws IOException Thrown if the JVM profiling settings can not be read or the file can not be written.
+     */
+    public static @NotNull Recording startRecording(final @NotNull Path file) throws IOException {
+        final @NotNull Recording recording;
+        try {
+            recording = new Recording(Configuration.getConfiguration("profile"));
+        } catch (final @NotNull ParseException ex) {
+            throw new IOException("Could not read the profiling settings.", ex);
+        }
+        recording.setName("mosquitto2hivemq");
+        for (final @NotNull Class<? extends Event> eventType : EVENT_TYPES) {
+            recording.enable(eventType).withoutStackTrace();
+        }
+        recording.setToDisk(true);
+        recording.setDumpOnExit(true);
+        recording.setDestination(file);
+        recording.start();
+        return recording;
+    }
+
+    /**
+     * A batch of consecutive chunks decoded from the database.
+     */
+    @Name("com.hivemq.backup.mosquitto.ChunkDecode")
+    @Label("Chunk Decode")
+    @Category({CATEGORY, "Parse"})
+    @Description("A batch of consecutive chunks decoded from the Mosquitto database")
+    public static class ChunkDecode extends Event {
+
+        @Label("Position")
+        long position;
+
+        @Label("Chunks")
+        int chunks;
+
+        @Label("Size")
+        @DataAmount
+        long size;
+
+        /**
+         * @param position The position of the first chunk in the database.
+         */
+        public ChunkDecode(final long position) {
+            this.position = position;
+            begin();
+        }
+
+        /**
+         * Counts a decoded chunk.
+         *
+         * @return The amount of chunks in the batch.
+         */
+        public int decoded() {
+            return ++chunks;
+        }
+
+        /**
+         * Commits the batch.
+         *
+         * @param end The position in the database right behind the last chunk.
+         */
+        public void finish(final long end) {
+            end();
+            if (shouldCommit()) {
+                size = end - position;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * The rendering of a single client session.
+     */
+    @Name("com.hivemq.backup.mosquitto.SessionRender")
+    @Label("Session Render")
+    @Category({CATEGORY, "Render"})
+    @Description("The XML of a client session rendered")
+    public static class SessionRender extends Event {
+
+        @Label("Client Id")
+        String clientId;
+
+        @Label("Subscriptions")
+        int subscriptions;
+
+        @Label("Queued Messages")
+        int queuedMessages;
+
+        @Label("Size")
+        @DataAmount
+        long size;
+
+        /**
+         * Starts the rendering of a session.
+         */
+        public SessionRender() {
+            begin();
+        }
+
+        /**
+         * @param clientId       The id of the client.
+         * @param subscriptions  The amount of subscriptions of the session.
+         * @param queuedMessages The amount of queued messages of the session.
+         * @param size           The size in bytes of the rendered session.
+         */
+        public void finish(final @NotNull String clientId, final int subscriptions, final int queuedMessages, final long size) {
+            end();
+            if (shouldCommit()) {
+                this.clientId = clientId;
+                this.subscriptions = subscriptions;
+                this.queuedMessages = queuedMessages;
+                this.size = size;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * The rendering of a retained message file, from its first message until it rolls over or the last message is in.
+     */
+    @Name("com.hivemq.backup.mosquitto.RetainedFileWrite")
+    @Label("Retained File Write")
+    @Category({CATEGORY, "Render"})
+    @Description("A retained message file rendered until it rolled over")
+    public static class RetainedFileWrite extends Event {
+
+        @Label("File")
+        String file;
+
+        @Label("Messages")
+        long messages;
+
+        @Label("Size")
+        @DataAmount
+        long size;
+
+        @Label("Rolled Over")
+        @Description("The file reached the maximum file size, the next messages are in another file")
+        boolean rolledOver;
+
+        /**
+         * Starts the rendering of a file.
+         */
+        public RetainedFileWrite() {
+            begin();
+        }
+
+        /**
+         * @param file       The name of the file.
+         * @param messages   The amount of messages in the file.
+         * @param size       The size in bytes of the file.
+         * @param rolledOver True if the file reached the maximum file size.
+         */
+        public void finish(final @NotNull String file, final long messages, final long size, final boolean rolledOver) {
+            end();
+            if (shouldCommit()) {
+                this.file = file;
+                this.messages = messages;
+                this.size = size;
+                this.rolledOver = rolledOver;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * The compression of a backup file into a zip entry.
+     */
+    @Name("com.hivemq.backup.mosquitto.EntryCompress")
+    @Label("Entry Compress")
+    @Category({CATEGORY, "Archive"})
+    @Description("A backup file compressed into a zip entry")
+    public static class EntryCompress extends Event {
+
+        @Label("Entry")
+        String entry;
+
+        @Label("Profile")
+        String profile;
+
+        @Label("Size")
+        @DataAmount
+        long size;
+
+        @Label("Compressed Size")
+        @DataAmount
+        long compressedSize;
+
+        /**
+         * Starts the compression of an entry.
+         */
+        public EntryCompress() {
+            begin();
+        }
+
+        /**
+         * @param entry          The name of the entry.
+         * @param profile        The compression profile the entry is compressed with.
+         * @param size           The size in bytes of the file.
+         * @param compressedSize The size in bytes of the compressed entry.
+         */
+        public void finish(final @NotNull String entry, final @NotNull String profile, final long size, final long compressedSize) {
+            end();
+            if (shouldCommit()) {
+                this.entry = entry;
+                this.profile = profile;
+                this.size = size;
+                this.compressedSize = compressedSize;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * The write of a compressed zip entry to the backup archive.
+     */
+    @Name("com.hivemq.backup.mosquitto.EntryWrite")
+    @Label("Entry Write")
+    @Category({CATEGORY, "Archive"})
+    @Description("A compressed zip entry written to the backup archive")
+    public static class EntryWrite extends Event {
+
+        @Label("Entry")
+        String entry;
+
+        @Label("Compressed Size")
+        @DataAmount
+        long compressedSize;
+
+        @Label("Copied")
+        @Description("The entry is copied from a previous backup")
+        boolean copied;
+
+        /**
+         * Starts the write of an entry.
+         */
+        public EntryWrite() {
+            begin();
+        }
+
+        /**
+         * @param entry          The name of the entry.
+         * @param compressedSize The size in bytes of the compressed entry.
+         * @param copied         True if the entry is copied from a previous backup.
+         */
+        public void finish(final @NotNull String entry, final long compressedSize, final boolean copied) {
+            end();
+            if (shouldCommit()) {
+                this.entry = entry;
+                this.compressedSize = compressedSize;
+                this.copied = copied;
+                commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.tinylog.Logger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.management.openmbean.CompositeData;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The numbers of an export run: counters, gauges which are read when the metrics are, and latency histograms, each
+ * under a dotted name like {@code phase.parse.millis}.
+ * <p>
+ * Every metric is a read-only attribute of the {@value #OBJECT_NAME} MBean while the tool runs, and all metrics are
+ * written as a flat JSON object at the end of a run. A histogram shows as its count, mean, maximum and percentiles,
+ * e.g. {@code render.session.nanos.p99}.
+ * <p>
+ * Besides the registered metrics, the JVM metrics since the start of the run are included. The allocated bytes are
+ * estimated from the heap which every garbage collection freed and the growth of the heap.
+ *
+ * @since 1.0.0
+ */
+public class ExportMetrics implements DynamicMBean {
+
+    public static final @NotNull String OBJECT_NAME = "com.hivemq.backup.mosquitto:type=ExportMetrics";
+    private static final @NotNull String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+    private static final @NotNull double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final @NotNull Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final @NotNull Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final @NotNull Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    private final @NotNull Set<String> heapPools = ManagementFactory.getMemoryPoolMXBeans().stream()
+            .filter(pool -> pool.getType() == MemoryType.HEAP)
+            .map(MemoryPoolMXBean::getName)
+            .collect(Collectors.toSet());
+    private final @NotNull LongAdder freedBytes = new LongAdder();
+    private volatile long startNanos;
+    private volatile long startHeapUsed;
+    private volatile long startGcCount;
+    private volatile long startGcMillis;
+
+    /**
+     * Creates ExportMetrics with the JVM metrics and starts a run.
+     */
+    public ExportMetrics() {
+        for (final @NotNull GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter) {
+                ((NotificationEmitter) collector).addNotificationListener(new FreedHeapListener(), null, null);
+            }
+        }
+        gauge("run.elapsed.millis", () -> TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        gauge("jvm.gc.count", () -> gcCount() - startGcCount);
+        gauge("jvm.gc.time.millis", () -> gcMillis() - startGcMillis);
+        gauge("jvm.allocated.bytes", this::allocatedBytes);
+        gauge("jvm.allocation-rate.bytes-per-second",
+                () -> (long) (allocatedBytes() * 1e9 / Math.max(System.nanoTime() - startNanos, 1)));
+        reset();
+    }
+
+    /**
+     * @param name The name of the counter.
+     * @return The counter, it is created on first use.
+     */
+    public @NotNull LongAdder counter(final @NotNull String name) {
+        return counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    /**
+     * @param name The name of the histogram.
+     * @return The histogram, it is created on first use.
+     */
+    public @NotNull LatencyHistogram histogram(final @NotNull String name) {
+        return histograms.computeIfAbsent(name, key -> new LatencyHistogram());
+    }
+
+    /**
+     * Registers a value which is read whenever the metrics are read.
+     *
+     * @param name  The name of the gauge.
+     * @param value Reads the current value.
+     */
+    public void gauge(final @NotNull String name, final @NotNull LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Adds the duration of a phase to the {@code phase.<name>.millis} counter.
+     *
+     * @param phase      The name of the phase.
+     * @param startNanos The {@link System#nanoTime()} the phase started at.
+     */
+    public void phaseFinished(final @NotNull String phase, final long startNanos) {
+        counter("phase." + phase + ".millis").add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Starts a new run, all counters and histograms are set to zero.
+     */
+    public synchronized void reset() {
+        counters.values().forEach(LongAdder::reset);
+        histograms.values().forEach(LatencyHistogram::reset);
+        freedBytes.reset();
+        startHeapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        startGcCount = gcCount();
+        startGcMillis = gcMillis();
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * @return All metrics by their name.
+     */
+    public @NotNull SortedMap<String, Long> snapshot() {
+        final @NotNull SortedMap<String, Long> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.sum()));
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        histograms.forEach((name, histogram) -> {
+            values.put(name + ".count", histogram.getCount());
+            values.put(name + ".mean", histogram.getMean());
+            values.put(name + ".max", histogram.getMax());
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                values.put(name + "." + PERCENTILE_NAMES[i], histogram.getPercentile(PERCENTILES[i]));
+            }
+        });
+        return values;
+    }
+
+    /**
+     * Writes all metrics as a JSON object, an existing file is replaced.
+     *
+     * @param file The summary file.
+     * @throws IOException Thrown if the file can not be written.
+     */
+    public void writeSummary(final @NotNull Path file) throws IOException {
+        final @NotNull SortedMap<String, Long> values = snapshot();
+        try (final @NotNull Writer writer = Files.newBufferedWriter(file, UTF_8)) {
+            writer.write("{\n");
+            int remaining = values.size();
+            for (final @NotNull Map.Entry<String, Long> value : values.entrySet()) {
+                // the names are dotted words, they need no escaping
+                writer.write("  \"" + value.getKey() + "\": " + value.getValue() + ((--remaining > 0) ? ",\n" : "\n"));
+            }
+            writer.write("}\n");
+        }
+    }
+
+    /**
+     * Makes the metrics visible over JMX. A failure is only logged, the export does not depend on it.
+     */
+    public void register() {
+        final @NotNull MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final @NotNull ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (final @NotNull JMException ex) {
+            Logger.warn("Could not register the metrics MBean: " + ex.getMessage());
+        }
+    }
+
+    @Override
+    public @NotNull Object getAttribute(final @NotNull String attribute) throws AttributeNotFoundException {
+        final @Nullable Long value = snapshot().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException("Unknown metric: " + attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public void setAttribute(final @NotNull Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("The metrics are read only: " + attribute.getName());
+    }
+
+    @Override
+    public @NotNull AttributeList getAttributes(final @NotNull String[] attributes) {
+        final @NotNull SortedMap<String, Long> values = snapshot();
+        final @NotNull AttributeList list = new AttributeList();
+        for (final @NotNull String attribute : attributes) {
+            final @Nullable Long value = values.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public @NotNull AttributeList setAttributes(final @NotNull AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public @NotNull Object invoke(final @NotNull String actionName, final @Nullable Object[] params, final @Nullable String[] signature)
+            throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName), "The metrics have no operations.");
+    }
+
+    @Override
+    public @NotNull MBeanInfo getMBeanInfo() {
+        final @NotNull MBeanAttributeInfo[] attributes = snapshot().keySet().stream()
+                .map(name -> new MBeanAttributeInfo(name, Long.class.getName(), name, true, false, false))
+                .toArray(MBeanAttributeInfo[]::new);
+        return new MBeanInfo(getClass().getName(), "Metrics of the running export.", attributes, null, null, null);
+    }
+
+    private long allocatedBytes() {
+        final long heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        return Math.max(0, freedBytes.sum() + heapUsed - startHeapUsed);
+    }
+
+    private static long gcCount() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(collector -> Math.max(0, collector.getCollectionCount()))
+                .sum();
+    }
+
+    private static long gcMillis() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(collector -> Math.max(0, collector.getCollectionTime()))
+                .sum();
+    }
+
+    /**
+     * Adds the heap every garbage collection freed to the freed bytes.
+     */
+    private class FreedHeapListener implements NotificationListener {
+
+        @Override
+        public void handleNotification(final @NotNull Notification notification, final @Nullable Object handback) {
+            if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                return;
+            }
+            final @NotNull GarbageCollectionNotificationInfo info =
+                    GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+            final @NotNull Map<String, MemoryUsage> after = info.getGcInfo().getMemoryUsageAfterGc();
+            long freed = 0;
+            for (final @NotNull Map.Entry<String, MemoryUsage> before : info.getGcInfo().getMemoryUsageBeforeGc().entrySet()) {
+                final @Nullable MemoryUsage afterUsage = after.get(before.getKey());
+                if (heapPools.contains(before.getKey()) && afterUsage != null) {
+                    freed += before.getValue().getUsed() - afterUsage.getUsed();
+                }
+            }
+            freedBytes.add(freed);
+        }
+    }
+}
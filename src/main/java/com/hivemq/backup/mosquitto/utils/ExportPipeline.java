@@ -0,0 +1,338 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import com.google.common.base.Preconditions;
+import org.jctools.queues.MpscArrayQueue;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Connects several producers of backup files with a single writer thread, which is the only thread writing to the
+ * wrapped sink.
+ * <p>
+ * Every producer writes to its own lane. A lane collects each file in a {@link SpillBuffer} of the shared
+ * {@link MemoryBudget} and hands the buffer to the writer through a bounded lock-free queue, a producer whose queue is
+ * full waits until the writer has caught up.
+ * <p>
+ * The files are written in a fixed order no matter how the producers are scheduled: all files of the first lane in the
+ * order they were closed, then all files of the second lane and so on. The writer takes the ready files of every lane
+ * off their queues right away, the files of a lane whose turn has not come yet wait in their buffers, which spill to
+ * disk once the budget is used up. So a lane with few large files does not hold back the producer of a lane with many
+ * small ones.
+ * <p>
+ * Files copied from a previous backup are only queued by name, the writer copies them when it is their turn.
+ *
+ * @since 1.0.0
+ */
+public class ExportPipeline implements Closeable {
+
+    private static final int FILE_BUFFER_SIZE = 8 * 1024;
+
+    private final @NotNull ExportSink sink;
+    private final @NotNull MemoryBudget budget;
+    private final int laneCapacity;
+    private final @NotNull List<Lane> lanes = new CopyOnWriteArrayList<>();
+    private final @NotNull Thread writer;
+    // the queues are lock-free, the lock only guards waiting for them
+    private final @NotNull ReentrantLock lock = new ReentrantLock();
+    private final @NotNull Condition filesReady = lock.newCondition();
+    private final @NotNull Condition spaceFree = lock.newCondition();
+    // the lane whose files are written, only used by the writer thread
+    private int currentLane = 0;
+    private volatile boolean closed = false;
+    private volatile @Nullable Throwable failure;
+
+    /**
+     * Creates an ExportPipeline and starts its writer thread.
+     *
+     * @param sink         The sink all files are written to, it is closed together with the pipeline.
+     * @param laneCapacity The amount of files every lane may queue for the writer.
+     * @param budget       The budget the files are buffered in until the writer takes them.
+     */
+    public ExportPipeline(final @NotNull ExportSink sink, final int laneCapacity, final @NotNull MemoryBudget budget) {
+        Preconditions.checkArgument(laneCapacity > 0, "lane capacity must be positive");
+        this.sink = sink;
+        this.budget = budget;
+        this.laneCapacity = laneCapacity;
+        this.writer = new Thread(this::drainLanes, "backup-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Creates a new lane. Closing the lane tells the writer that no more files follow.
+     *
+     * @return The sink the files of one producer are written to.
+     */
+    public @NotNull ExportSink lane() {
+        Preconditions.checkState(!closed, "pipeline is closed");
+        final @NotNull Lane lane = new Lane();
+        lanes.add(lane);
+        return lane;
+    }
+
+    /**
+     * Waits until the writer has written the files of all lanes. All lanes must be closed before, otherwise this waits
+     * forever.
+     * <p>
+     * The wrapped sink is not closed, so the owner of the sink decides whether the written files are complete.
+     *
+     * @throws IOException Thrown if a file could not be written.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        signal(filesReady);
+        try {
+            writer.join();
+        } catch (final @NotNull InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing the backup.");
+        }
+        checkFailure();
+    }
+
+    private void drainLanes() {
+        try {
+            while (true) {
+                final boolean done = isDone();
+                boolean taken = false;
+                for (final @NotNull Lane lane : lanes) {
+                    // at most one queue of files per lane, so a busy lane can not starve the others
+                    for (int i = 0; i < laneCapacity; i++) {
+                        final @Nullable PendingFile file = lane.queue.poll();
+                        if (file == null) {
+                            break;
+                        }
+                        lane.taken.add(file);
+                        taken = true;
+                    }
+                }
+                if (taken) {
+                    signal(spaceFree);
+                }
+                if (!writeInOrder() && !taken) {
+                    if (done) {
+                        return;
+                    }
+                    awaitFiles();
+                }
+            }
+        } catch (final @NotNull Throwable t) {
+            failure = t;
+            // producers waiting for space find the failure
+            signal(spaceFree);
+        }
+    }
+
+    /**
+     * Writes the taken files of the current lane and moves on to the next lane once a lane is finished and all its
+     * files are written. Only the writer thread calls it.
+     *
+     * @return True if a file was written.
+     */
+    private boolean writeInOrder() throws IOException {
+        boolean written = false;
+        while (currentLane < lanes.size()) {
+            final @NotNull Lane lane = lanes.get(currentLane);
+            while (!lane.taken.isEmpty()) {
+                write(lane.taken.poll());
+                written = true;
+            }
+            // a finished lane offers no more files, so an empty queue stays empty
+            if (!lane.finished || !lane.queue.isEmpty()) {
+                break;
+            }
+            currentLane++;
+        }
+        return written;
+    }
+
+    /**
+     * @return True if the pipeline is closed and all lanes are finished. Files may still be queued.
+     */
+    private boolean isDone() {
+        return closed && lanes.stream().allMatch(lane -> lane.finished);
+    }
+
+    /**
+     * Waits until a lane has a file ready, the lane whose files are written is finished or the last lane is finished.
+     */
+    private void awaitFiles() throws InterruptedException {
+        lock.lock();
+        try {
+            // the producers signal under the lock, so nothing added after this check goes unnoticed
+            while (!isDone() && !isCurrentLaneFinished() && lanes.stream().allMatch(lane -> lane.queue.isEmpty())) {
+                filesReady.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isCurrentLaneFinished() {
+        return currentLane < lanes.size() && lanes.get(currentLane).finished;
+    }
+
+    private void signal(final @NotNull Condition condition) {
+        lock.lock();
+        try {
+            condition.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void write(final @NotNull PendingFile file) throws IOException {
+        if (file.previous != null) {
+            sink.copy(file.previous, file.name);
+            return;
+        }
+        if (file.records > 0) {
+            sink.addRecords(file.name, file.records);
+        }
+        if (file.fingerprint != null) {
+            sink.addFingerprint(file.name, file.fingerprint);
+        }
+        sink.write(file.name, Objects.requireNonNull(file.content));
+    }
+
+    private void checkFailure() throws IOException {
+        final @Nullable Throwable cause = failure;
+        if (cause != null) {
+            throw new IOException("Could not write the backup: " + cause, cause);
+        }
+    }
+
+    /**
+     * A file which is completely written or copied from a previous backup and waits for the writer.
+     */
+    private static class PendingFile {
+
+        private final @NotNull String name;
+        private final @Nullable SpillBuffer content;
+        private final long records;
+        private final @Nullable Long fingerprint;
+        private final @Nullable PreviousBackup previous;
+
+        PendingFile(final @NotNull String name,
+                    final @Nullable SpillBuffer content,
+                    final long records,
+                    final @Nullable Long fingerprint,
+                    final @Nullable PreviousBackup previous) {
+            this.name = name;
+            this.content = content;
+            this.records = records;
+            this.fingerprint = fingerprint;
+            this.previous = previous;
+        }
+    }
+
+    /**
+     * The sink of a single producer.
+     */
+    private class Lane implements ExportSink {
+
+        private final @NotNull MpscArrayQueue<PendingFile> queue = new MpscArrayQueue<>(laneCapacity);
+        // the files the writer took off the queue, only used by the writer thread
+        private final @NotNull Deque<PendingFile> taken = new ArrayDeque<>();
+        private final @NotNull Map<String, Long> records = new ConcurrentHashMap<>();
+        private final @NotNull Map<String, Long> fingerprints = new ConcurrentHashMap<>();
+        private volatile boolean finished = false;
+
+        @Override
+        public @NotNull OutputStream open(final @NotNull String name) {
+            Preconditions.checkState(!finished, "lane is closed");
+            return new SpillBuffer(budget, FILE_BUFFER_SIZE) {
+
+                private boolean closed = false;
+
+                @Override
+                public void close() throws IOException {
+                    if (closed) {
+                        return;
+                    }
+                    closed = true;
+                    super.close();
+                    Lane.this.write(name, this);
+                }
+            };
+        }
+
+        @Override
+        public void write(final @NotNull String name, final @NotNull SpillBuffer content) throws IOException {
+            Preconditions.checkState(!finished, "lane is closed");
+            final @Nullable Long fileRecords = records.remove(name);
+            offer(new PendingFile(name, content, (fileRecords != null) ? fileRecords : 0, fingerprints.remove(name), null));
+        }
+
+        @Override
+        public void addRecords(final @NotNull String name, final long records) {
+            this.records.merge(name, records, Long::sum);
+        }
+
+        @Override
+        public void addFingerprint(final @NotNull String name, final long fingerprint) {
+            fingerprints.put(name, fingerprint);
+        }
+
+        @Override
+        public void copy(final @NotNull PreviousBackup previous, final @NotNull String name) throws IOException {
+            Preconditions.checkState(!finished, "lane is closed");
+            offer(new PendingFile(name, null, 0, null, previous));
+        }
+
+        @Override
+        public void close() {
+            finished = true;
+            signal(filesReady);
+        }
+
+        private void offer(final @NotNull PendingFile file) throws IOException {
+            if (!queue.offer(file)) {
+                lock.lock();
+                try {
+                    while (!queue.offer(file)) {
+                        checkFailure();
+                        spaceFree.await();
+                    }
+                } catch (final @NotNull InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the backup writer.");
+                } finally {
+                    lock.unlock();
+                }
+            }
+            signal(filesReady);
+        }
+    }
+}
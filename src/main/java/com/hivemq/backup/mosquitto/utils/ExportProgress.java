@@ -0,0 +1,290 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import com.hivemq.backup.mosquitto.db.ChunkType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts how far an export is: while the database is parsed, how many of its bytes are parsed and how many chunks of
+ * every type, while the backup is written, how many client sessions and retained messages are exported and how many
+ * bytes are archived.
+ * <p>
+ * The counters are updated by the exporting threads without locking. {@link #report()} is called by a single reporter
+ * and describes the progress since its last call, the estimated remaining time of a phase is its remaining work at the
+ * average rate of the phase so far.
+ *
+ * @since 1.0.0
+ */
+public class ExportProgress {
+
+    private static final @NotNull ChunkType[] CHUNK_TYPES = ChunkType.values();
+
+    private enum Phase {
+        IDLE, PARSING, EXPORTING
+    }
+
+    private final @NotNull String sessionsFolder;
+    private final @NotNull String retainedFolder;
+
+    private volatile @NotNull Phase phase = Phase.IDLE;
+    private volatile long phaseStart;
+
+    private volatile long totalBytes;
+    private volatile long parsedBytes;
+    private final @NotNull AtomicLongArray chunks = new AtomicLongArray(CHUNK_TYPES.length);
+    private final @NotNull AtomicLongArray chunkBytes = new AtomicLongArray(CHUNK_TYPES.length);
+
+    private volatile long totalSessions;
+    private volatile long totalRetainedMessages;
+    private final @NotNull LongAdder exportedSessions = new LongAdder();
+    private final @NotNull LongAdder exportedRetainedMessages = new LongAdder();
+    private final @NotNull LongAdder archivedBytes = new LongAdder();
+
+    private long lastReport;
+    private final @NotNull long[] lastChunks = new long[CHUNK_TYPES.length];
+    private long lastArchivedBytes;
+
+    /**
+     * Creates an ExportProgress.
+     *
+     * @param sessionsFolder The folder of the client session files, every record of a file in it is one session.
+     * @param retainedFolder The folder of the retained message files, every record of a file in it is one message.
+     */
+    public ExportProgress(final @NotNull String sessionsFolder, final @NotNull String retainedFolder) {
+        this.sessionsFolder = sessionsFolder;
+        this.retainedFolder = retainedFolder;
+    }
+
+    /**
+     * Starts parsing a database, the counters of an earlier export are reset.
+     *
+     * @param totalBytes The size of the database in bytes.
+     */
+    public synchronized void startParsing(final long totalBytes) {
+        this.totalBytes = totalBytes;
+        this.parsedBytes = 0;
+        for (int i = 0; i < CHUNK_TYPES.length; i++) {
+            chunks.set(i, 0);
+            chunkBytes.set(i, 0);
+            lastChunks[i] = 0;
+        }
+        start(Phase.PARSING);
+    }
+
+    /**
+     * Counts a parsed chunk. Must only be called by the parsing thread.
+     *
+     * @param type  The type of the chunk.
+     * @param start The position of the chunk in the database.
+     * @param end   The position in the database right behind the chunk.
+     */
+    public void parsed(final @NotNull ChunkType type, final long start, final long end) {
+        final int index = type.ordinal();
+        chunks.lazySet(index, chunks.get(index) + 1);
+        chunkBytes.lazySet(index, chunkBytes.get(index) + end - start);
+        parsedBytes = end;
+    }
+
+    /**
+     * Starts writing the backups of a parsed database.
+     *
+     * @param totalSessions         The amount of client sessions of all backups.
+     * @param totalRetainedMessages The amount of retained messages of all backups.
+     */
+    public synchronized void startExporting(final long totalSessions, final long totalRetainedMessages) {
+        this.totalSessions = totalSessions;
+        this.totalRetainedMessages = totalRetainedMessages;
+        exportedSessions.reset();
+        exportedRetainedMessages.reset();
+        archivedBytes.reset();
+        lastArchivedBytes = 0;
+        start(Phase.EXPORTING);
+    }
+
+    /**
+     * Counts the records of a file which is written to a backup.
+     *
+     * @param name    The name of the file.
+     * @param records The amount of records in the file.
+     */
+    public void exported(final @NotNull String name, final long records) {
+        if (name.startsWith(sessionsFolder)) {
+            exportedSessions.add(records);
+        } else if (name.startsWith(retainedFolder)) {
+            exportedRetainedMessages.add(records);
+        }
+    }
+
+    /**
+     * @param out The stream a backup archive is written to.
+     * @return A stream which counts the bytes written to the archive as archived.
+     */
+    public @NotNull OutputStream countArchived(final @NotNull OutputStream out) {
+        return new FilterOutputStream(out) {
+
+            @Override
+            public void write(final int b) throws IOException {
+                out.write(b);
+                archivedBytes.increment();
+            }
+
+            @Override
+            public void write(final @NotNull byte[] b, final int off, final int len) throws IOException {
+                out.write(b, off, len);
+                archivedBytes.add(len);
+            }
+        };
+    }
+
+    /**
+     * @param type A type of chunks.
+     * @return The amount of parsed chunks of the type.
+     */
+    public long getChunks(final @NotNull ChunkType type) {
+        return chunks.get(type.ordinal());
+    }
+
+    /**
+     * @param type A type of chunks.
+     * @return The size in bytes of all parsed chunks of the type, including their type and length.
+     */
+    public long getChunkBytes(final @NotNull ChunkType type) {
+        return chunkBytes.get(type.ordinal());
+    }
+
+    public long getExportedSessions() {
+        return exportedSessions.sum();
+    }
+
+    public long getExportedRetainedMessages() {
+        return exportedRetainedMessages.sum();
+    }
+
+    public long getArchivedBytes() {
+        return archivedBytes.sum();
+    }
+
+    /**
+     * Ends the current phase, nothing is reported until the next one starts.
+     */
+    public synchronized void finish() {
+        phase = Phase.IDLE;
+    }
+
+    /**
+     * Describes the progress of the current phase.
+     *
+     * @return A single line, null if no phase is running.
+     */
+    public synchronized @Nullable String report() {
+        final long now = System.nanoTime();
+        final double interval = Math.max(now - lastReport, 1) / 1e9;
+        final double elapsed = Math.max(now - phaseStart, 1) / 1e9;
+        lastReport = now;
+
+        switch (phase) {
+            case PARSING:
+                return reportParsing(interval, elapsed);
+            case EXPORTING:
+                return reportExporting(interval, elapsed);
+            default:
+                return null;
+        }
+    }
+
+    private @NotNull String reportParsing(final double interval, final double elapsed) {
+        final long parsed = parsedBytes;
+        final @NotNull StringBuilder line = new StringBuilder("Parsing database: ")
+                .append(formatBytes(parsed)).append(" of ").append(formatBytes(totalBytes))
+                .append(" (").append(percent(parsed, totalBytes)).append("), chunks/s:");
+        for (int i = 0; i < CHUNK_TYPES.length; i++) {
+            final long count = chunks.get(i);
+            if (count > 0) {
+                line.append(' ').append(CHUNK_TYPES[i].getShortName())
+                        .append(' ').append(Math.round((count - lastChunks[i]) / interval));
+            }
+            lastChunks[i] = count;
+        }
+        return line.append(", ETA ").append(eta(parsed, totalBytes, elapsed)).toString();
+    }
+
+    private @NotNull String reportExporting(final double interval, final double elapsed) {
+        final long sessions = exportedSessions.sum();
+        final long retainedMessages = exportedRetainedMessages.sum();
+        final long archived = archivedBytes.sum();
+        final double throughput = (archived - lastArchivedBytes) / interval;
+        lastArchivedBytes = archived;
+
+        return "Exporting: " + sessions + " of " + totalSessions + " client sessions (" + percent(sessions, totalSessions) + "), "
+                + retainedMessages + " of " + totalRetainedMessages + " retained messages (" + percent(retainedMessages, totalRetainedMessages) + "), "
+                + formatBytes(archived) + " archived at " + formatBytes((long) throughput) + "/s, "
+                + "ETA sessions " + eta(sessions, totalSessions, elapsed)
+                + ", retained messages " + eta(retainedMessages, totalRetainedMessages, elapsed);
+    }
+
+    private void start(final @NotNull Phase phase) {
+        phaseStart = System.nanoTime();
+        lastReport = phaseStart;
+        this.phase = phase;
+    }
+
+    private static @NotNull String percent(final long done, final long total) {
+        return ((total > 0) ? Math.min(100, done * 100 / total) : 100) + "%";
+    }
+
+    /**
+     * @return The remaining time at the average rate so far, "?" as long as nothing is done.
+     */
+    static @NotNull String eta(final long done, final long total, final double elapsedSeconds) {
+        if (done >= total) {
+            return "done";
+        }
+        if (done <= 0) {
+            return "?";
+        }
+        final long seconds = (long) Math.ceil((total - done) * elapsedSeconds / done);
+        if (seconds >= 3600) {
+            return String.format("%dh %02dm %02ds", seconds / 3600, seconds / 60 % 60, seconds % 60);
+        }
+        if (seconds >= 60) {
+            return String.format("%dm %02ds", seconds / 60, seconds % 60);
+        }
+        return seconds + "s";
+    }
+
+    static @NotNull String formatBytes(final long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format(Locale.ROOT, "%.1f KiB", bytes / 1024.0);
+        }
+        if (bytes < 1024L * 1024 * 1024) {
+            return String.format(Locale.ROOT, "%.1f MiB", bytes / (1024.0 * 1024));
+        }
+        return String.format(Locale.ROOT, "%.2f GiB", bytes / (1024.0 * 1024 * 1024));
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The destination all exporters write their files to.
+ * <p>
+ * Files are addressed by their name relative to the backup, e.g. {@code client-sessions/MOSQU-client-0.xml}. The
+ * returned streams are buffered, so callers write to them directly. A sink must allow several files to be written at
+ * the same time from different threads, a single stream is only used by one thread.
+ *
+ * @since 1.0.0
+ */
+public interface ExportSink extends Closeable {
+
+    /**
+     * Opens a file for writing. Missing parent folders are created, an existing file is replaced.
+     *
+     * @param name The name of the file relative to the backup, folders are separated by '/'.
+     * @return A buffered stream which writes the file when it is closed at the latest.
+     * @throws IOException Thrown if the file can not be created.
+     */
+    @NotNull OutputStream open(@NotNull String name) throws IOException;
+
+    /**
+     * Writes a file whose content is completely buffered already. The sink takes over the buffer and releases it once
+     * the content is written, so a sink which buffers files itself can keep it instead of copying the content. By
+     * default the content is written to an {@link #open(String) opened} file.
+     *
+     * @param name    The name of the file relative to the backup, folders are separated by '/'.
+     * @param content The closed buffer with the content of the file.
+     * @throws IOException Thrown if the file can not be written.
+     */
+    default void write(final @NotNull String name, final @NotNull SpillBuffer content) throws IOException {
+        try (final @NotNull OutputStream out = open(name)) {
+            content.writeTo(out);
+        } finally {
+            content.release();
+        }
+    }
+
+    /**
+     * Adds to the amount of records (client sessions or retained messages) a file contains. It must be called before
+     * the file is closed.
+     *
+     * @param name    The name of the file relative to the backup.
+     * @param records The amount of records to add.
+     */
+    default void addRecords(final @NotNull String name, final long records) {
+    }
+
+    /**
+     * Sets the fingerprint of the database content a file was rendered from, a later export reuses the file as long
+     * as the fingerprint does not change. Files without a fingerprint are always rendered again. It must be called
+     * before the file is closed.
+     *
+     * @param name        The name of the file relative to the backup.
+     * @param fingerprint The fingerprint of the file.
+     */
+    default void addFingerprint(final @NotNull String name, final long fingerprint) {
+    }
+
+    /**
+     * Writes an unchanged file of a previous backup together with its records and fingerprint. By default the file is
+     * inflated and written like any other file.
+     *
+     * @param previous The previous backup.
+     * @param name     The name of the file relative to the backup.
+     * @throws IOException Thrown if the file can not be read or written.
+     */
+    default void copy(final @NotNull PreviousBackup previous, final @NotNull String name) throws IOException {
+        try (final @NotNull InputStream in = previous.getInputStream(name);
+             final @NotNull OutputStream out = open(name)) {
+            in.transferTo(out);
+            addRecords(name, previous.getRecords(name));
+            final @Nullable Long fingerprint = previous.getFingerprint(name);
+            if (fingerprint != null) {
+                addFingerprint(name, fingerprint);
+            }
+        }
+    }
+
+    /**
+     * Completes all files written to the sink.
+     *
+     * @throws IOException Thrown if the files can not be completed.
+     */
+    @Override
+    void close() throws IOException;
+}
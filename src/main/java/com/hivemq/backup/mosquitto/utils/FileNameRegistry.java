@@ -0,0 +1,65 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out collision-free file names for identifiers (e.g. client ids) without touching the file system.
+ * <p>
+ * An identifier is reduced to file name safe characters and suffixed with the next free index of that name, so
+ * identifiers which reduce to the same name still get different file names. One registry must be used per folder.
+ * The registry is thread safe, the names depend on the order of the calls only.
+ *
+ * @since 1.0.0
+ */
+public class FileNameRegistry {
+
+    private final @NotNull ConcurrentHashMap<String, AtomicInteger> nextIndices = new ConcurrentHashMap<>();
+
+    /**
+     * Allocates the next free file name for the identifier.
+     *
+     * @param identifier The identifier the file name is derived from.
+     * @return A file name without extension, which is never returned again by this registry.
+     */
+    public @NotNull String allocate(final @NotNull String identifier) {
+        final @NotNull String safeName = toSafeName(identifier);
+        // the index never contains a '-', so "<name>-<index>" can not collide for different names
+        return safeName + "-" + nextIndices.computeIfAbsent(safeName, name -> new AtomicInteger()).getAndIncrement();
+    }
+
+    private static @NotNull String toSafeName(final @NotNull String identifier) {
+        final @NotNull StringBuilder fileNameBuilder = new StringBuilder(identifier.length());
+        for (int i = 0; i < identifier.length(); i++) {
+            final char c = identifier.charAt(i);
+            if (isSafeChar(c)) {
+                fileNameBuilder.append(c);
+            } else {
+                fileNameBuilder.append('-');
+            }
+        }
+        return fileNameBuilder.toString();
+    }
+
+    private static boolean isSafeChar(final char c) {
+        return Character.isJavaIdentifierPart(c) || c == '-';
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts durations in logarithmic buckets, so percentiles can be read at any time without keeping every value.
+ * <p>
+ * Every power of two is split into {@value #SUB_BUCKETS} buckets of equal width, a percentile is the upper bound of its
+ * bucket and therefore at most 12.5% above the exact value. Values are recorded from several threads without locking.
+ *
+ * @since 1.0.0
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final @NotNull AtomicLongArray buckets = new AtomicLongArray((Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+    private final @NotNull LongAdder count = new LongAdder();
+    private final @NotNull LongAdder sum = new LongAdder();
+    private final @NotNull AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value.
+     *
+     * @param value The value, e.g. a duration in nanoseconds. Negative values are recorded as 0.
+     */
+    public void record(final long value) {
+        final long recorded = Math.max(value, 0);
+        buckets.incrementAndGet(bucket(recorded));
+        count.increment();
+        sum.add(recorded);
+        if (recorded > max.get()) {
+            max.accumulateAndGet(recorded, Math::max);
+        }
+    }
+
+    /**
+     * @return The amount of recorded values.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return The average of all recorded values, 0 if none is recorded.
+     */
+    public long getMean() {
+        final long values = count.sum();
+        return (values > 0) ? sum.sum() / values : 0;
+    }
+
+    /**
+     * @return The largest recorded value, 0 if none is recorded.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param quantile The quantile from 0 to 1, e.g. 0.99 for the 99th percentile.
+     * @return The value which the given share of all recorded values does not exceed, 0 if none is recorded.
+     */
+    public long getPercentile(final double quantile) {
+        Preconditions.checkArgument(quantile >= 0 && quantile <= 1, "quantile must be between 0 and 1");
+        long total = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            total += buckets.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Forgets all recorded values.
+     */
+    public void reset() {
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    private static int bucket(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBound(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int shift = bucket / SUB_BUCKETS - 1;
+        final long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Limits the amount of bytes all {@link SpillBuffer}s of an export hold in memory together.
+ * <p>
+ * The budget never blocks. A buffer which does not get the memory it needs moves its content into a temporary file
+ * instead, the spill files of an export are created in one temporary folder which is removed when the budget is
+ * closed or the process is terminated.
+ *
+ * @since 1.0.0
+ */
+public class MemoryBudget implements Closeable {
+
+    private final long limit;
+    private final @NotNull AtomicLong used = new AtomicLong();
+    private @Nullable Path spillFolder;
+    private @Nullable Thread cleanup;
+    private boolean terminated = false;
+
+    /**
+     * Creates a MemoryBudget.
+     *
+     * @param limit The amount of bytes the buffers may hold in memory.
+     */
+    public MemoryBudget(final long limit) {
+        Preconditions.checkArgument(limit >= 0, "memory limit must not be negative");
+        this.limit = limit;
+    }
+
+    /**
+     * Takes bytes from the budget if enough are left.
+     *
+     * @param bytes The amount of bytes.
+     * @return True if the bytes were taken, false if they would exceed the limit.
+     */
+    public boolean tryAcquire(final long bytes) {
+        while (true) {
+            final long current = used.get();
+            if (current + bytes > limit) {
+                return false;
+            }
+            if (used.compareAndSet(current, current + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns bytes which were taken with {@link #tryAcquire(long)}.
+     *
+     * @param bytes The amount of bytes.
+     */
+    public void release(final long bytes) {
+        used.addAndGet(-bytes);
+    }
+
+    /**
+     * @return The amount of bytes which are taken at the moment.
+     */
+    public long getUsed() {
+        return used.get();
+    }
+
+    /**
+     * @return A new empty file in the spill folder of the budget.
+     * @throws IOException Thrown if the file can not be created.
+     */
+    synchronized @NotNull Path createSpillFile() throws IOException {
+        if (terminated) {
+            throw new IOException("The process is terminating.");
+        }
+        if (spillFolder == null) {
+            spillFolder = Files.createTempDirectory("mosquitto2hivemq-");
+            cleanup = new Thread(this::terminate, "spill-cleanup");
+            Runtime.getRuntime().addShutdownHook(cleanup);
+        }
+        return Files.createTempFile(spillFolder, "spill-", ".tmp");
+    }
+
+    /**
+     * Deletes the spill folder together with the files which are left in it.
+     *
+     * @throws IOException Thrown if the folder can not be deleted.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (spillFolder == null) {
+            return;
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(cleanup);
+        } catch (final @NotNull IllegalStateException ignored) {
+            // the process is terminating and the hook deletes the folder
+            return;
+        }
+        delete(spillFolder);
+        spillFolder = null;
+    }
+
+    /**
+     * Deletes the spill folder when the process is terminated, no spill file is created afterwards.
+     */
+    private synchronized void terminate() {
+        terminated = true;
+        if (spillFolder != null) {
+            try {
+                delete(spillFolder);
+            } catch (final @NotNull IOException ignored) {
+                // the process ends anyway
+            }
+        }
+    }
+
+    private static void delete(final @NotNull Path folder) throws IOException {
+        try (final @NotNull Stream<Path> files = Files.list(folder)) {
+            for (final @NotNull Path file : (Iterable<Path>) files::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(folder);
+    }
+}
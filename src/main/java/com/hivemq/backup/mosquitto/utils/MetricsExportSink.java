@@ -0,0 +1,112 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the files written to the wrapped sink and their size in bytes by the folder they are in, as the
+ * {@code files.<folder>.count} and {@code files.<folder>.bytes} counters of an {@link ExportMetrics}. Files copied
+ * from a previous backup are counted as well.
+ *
+ * @since 1.0.0
+ */
+public class MetricsExportSink implements ExportSink {
+
+    private final @NotNull ExportSink sink;
+    private final @NotNull ExportMetrics metrics;
+
+    /**
+     * Creates a MetricsExportSink.
+     *
+     * @param sink    The sink the files are written to, it is closed together with this sink.
+     * @param metrics The metrics the files are counted in.
+     */
+    public MetricsExportSink(final @NotNull ExportSink sink, final @NotNull ExportMetrics metrics) {
+        this.sink = sink;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public @NotNull OutputStream open(final @NotNull String name) throws IOException {
+        return new FilterOutputStream(sink.open(name)) {
+
+            private long size = 0;
+            private boolean closed = false;
+
+            @Override
+            public void write(final int b) throws IOException {
+                out.write(b);
+                size++;
+            }
+
+            @Override
+            public void write(final @NotNull byte[] b, final int off, final int len) throws IOException {
+                out.write(b, off, len);
+                size += len;
+            }
+
+            @Override
+            public void close() throws IOException {
+                super.close();
+                if (!closed) {
+                    closed = true;
+                    count(name, size);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void write(final @NotNull String name, final @NotNull SpillBuffer content) throws IOException {
+        final long size = content.size();
+        sink.write(name, content);
+        count(name, size);
+    }
+
+    @Override
+    public void addRecords(final @NotNull String name, final long records) {
+        sink.addRecords(name, records);
+    }
+
+    @Override
+    public void addFingerprint(final @NotNull String name, final long fingerprint) {
+        sink.addFingerprint(name, fingerprint);
+    }
+
+    @Override
+    public void copy(final @NotNull PreviousBackup previous, final @NotNull String name) throws IOException {
+        sink.copy(previous, name);
+        count(name, previous.getEntry(name).getSize());
+    }
+
+    @Override
+    public void close() throws IOException {
+        sink.close();
+    }
+
+    private void count(final @NotNull String name, final long size) {
+        final int slash = name.indexOf('/');
+        final @NotNull String folder = (slash >= 0) ? name.substring(0, slash) : name;
+        metrics.counter("files." + folder + ".count").increment();
+        metrics.counter("files." + folder + ".bytes").add(size);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import com.google.common.base.Preconditions;
+import net.openhft.hashing.LongHashFunction;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Splits the client sessions of a backup across the nodes of a HiveMQ cluster, so every node imports only its own
+ * share.
+ * <p>
+ * A client is assigned by a jump consistent hash of the xxHash of its client id. The assignment only depends on the
+ * client id and the amount of nodes, and when a node is added only the sessions which move to the new node change
+ * their node.
+ *
+ * @since 1.0.0
+ */
+public class NodeShards {
+
+    private static final @NotNull LongHashFunction HASH = LongHashFunction.xx();
+
+    private final int nodes;
+
+    /**
+     * Creates NodeShards.
+     *
+     * @param nodes The amount of nodes.
+     */
+    public NodeShards(final int nodes) {
+        Preconditions.checkArgument(nodes > 0, "node count must be positive");
+        this.nodes = nodes;
+    }
+
+    /**
+     * @return The amount of nodes.
+     */
+    public int getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @param clientId The id of a client.
+     * @return The node the session of the client belongs to, from 0 to the amount of nodes - 1.
+     */
+    public int nodeOf(final @NotNull String clientId) {
+        return jumpConsistentHash(HASH.hashChars(clientId), nodes);
+    }
+
+    /**
+     * The jump consistent hash of Lamping and Veach.
+     */
+    private static int jumpConsistentHash(long key, final int buckets) {
+        long bucket = -1;
+        long next = 0;
+        while (next < buckets) {
+            bucket = next;
+            key = key * 2862933555777941757L + 1;
+            next = (long) ((bucket + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) bucket;
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * A backup of an earlier export of the same broker. Its files are reused when the database content they were rendered
+ * from did not change since.
+ * <p>
+ * Only backups with a {@link BackupManifest} and {@link BackupFingerprints} can be used. The archive of an interrupted
+ * export has neither, its finished files are taken from its {@link BackupJournal} instead. As the resumed export has
+ * the same database and export time, all of them are reused.
+ *
+ * @since 1.0.0
+ */
+public class PreviousBackup implements Closeable {
+
+    private final @NotNull FileChannel archive;
+    private final @NotNull Map<String, BackupJournal.Entry> entries = new HashMap<>();
+    private final boolean resumed;
+
+    /**
+     * Opens a previous backup.
+     *
+     * @param backupFile The backup archive.
+     * @throws IOException Thrown if the backup, its manifest or its fingerprints can not be read.
+     */
+    public PreviousBackup(final @NotNull Path backupFile) throws IOException {
+        try (final @NotNull ZipFile zip = new ZipFile(backupFile.toFile())) {
+            final @NotNull BackupManifest manifest;
+            try (final @NotNull InputStream in = zip.getInputStream(getZipEntry(zip, BackupManifest.NAME))) {
+                manifest = BackupManifest.read(in);
+            }
+            final @NotNull BackupFingerprints fingerprints;
+            try (final @NotNull InputStream in = zip.getInputStream(getZipEntry(zip, BackupFingerprints.NAME))) {
+                fingerprints = BackupFingerprints.read(in);
+            }
+            for (final @NotNull BackupManifest.Entry file : manifest.getEntries()) {
+                final @Nullable ZipArchiveEntry zipEntry = zip.getEntry(file.getName());
+                if (zipEntry != null) {
+                    entries.put(file.getName(), new BackupJournal.Entry(file.getName(), zipEntry.getDataOffset(),
+                            zipEntry.getCompressedSize(), zipEntry.getMethod(), zipEntry.getCrc(), zipEntry.getSize(),
+                            file.getHash(), file.getRecords(), fingerprints.get(file.getName())));
+                }
+            }
+        }
+        this.archive = FileChannel.open(backupFile, StandardOpenOption.READ);
+        this.resumed = false;
+    }
+
+    /**
+     * Opens the archive of an interrupted export. Journal entries which reach beyond the end of the archive are
+     * ignored.
+     *
+     * @param partialBackup The archive of the interrupted export.
+     * @param finished      The finished entries of its journal.
+     * @throws IOException Thrown if the archive can not be read.
+     */
+    public PreviousBackup(final @NotNull Path partialBackup, final @NotNull List<BackupJournal.Entry> finished) throws IOException {
+        this.archive = FileChannel.open(partialBackup, StandardOpenOption.READ);
+        this.resumed = true;
+        final long archiveSize = archive.size();
+        for (final @NotNull BackupJournal.Entry entry : finished) {
+            if (entry.getOffset() + entry.getCompressedSize() <= archiveSize) {
+                entries.put(entry.getName(), entry);
+            }
+        }
+    }
+
+    /**
+     * @return The amount of files which can be reused.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @param name        The name of a file relative to the backup.
+     * @param fingerprint The fingerprint of the content the file would be rendered from now, null if it has none.
+     * @return True if the backup contains the file, rendered from the same content.
+     */
+    public boolean isUnchanged(final @NotNull String name, final @Nullable Long fingerprint) {
+        final @Nullable BackupJournal.Entry entry = entries.get(name);
+        if (entry == null) {
+            return false;
+        }
+        if (resumed) {
+            // same database and export time, every finished file is rendered the same again
+            return true;
+        }
+        return fingerprint != null && fingerprint.equals(entry.getFingerprint());
+    }
+
+    /**
+     * @param name The name of a file relative to the backup.
+     * @return True if the backup contains the file.
+     */
+    public boolean contains(final @NotNull String name) {
+        return entries.containsKey(name);
+    }
+
+    /**
+     * @param name The name of a file relative to the backup.
+     * @return The fingerprint of the file, null if it can not be reused.
+     */
+    public @Nullable Long getFingerprint(final @NotNull String name) {
+        final @Nullable BackupJournal.Entry entry = entries.get(name);
+        return (entry != null) ? entry.getFingerprint() : null;
+    }
+
+    /**
+     * @param name The name of a file relative to the backup.
+     * @return The amount of records in the file, 0 if it is not in the manifest.
+     */
+    public long getRecords(final @NotNull String name) {
+        final @Nullable BackupJournal.Entry entry = entries.get(name);
+        return (entry != null) ? entry.getRecords() : 0;
+    }
+
+    /**
+     * @param name The name of a file relative to the backup.
+     * @return The manifest entry of the file.
+     * @throws IOException Thrown if the file is not in the manifest.
+     */
+    public @NotNull BackupManifest.Entry getManifestEntry(final @NotNull String name) throws IOException {
+        final @NotNull BackupJournal.Entry entry = getStoredEntry(name);
+        return new BackupManifest.Entry(name, entry.getSize(), entry.getHash(), entry.getRecords());
+    }
+
+    /**
+     * @param name The name of a file relative to the backup.
+     * @return The archive entry of the file, with its method, sizes and CRC.
+     * @throws IOException Thrown if the backup does not contain the file.
+     */
+    public @NotNull ZipArchiveEntry getEntry(final @NotNull String name) throws IOException {
+        final @NotNull BackupJournal.Entry entry = getStoredEntry(name);
+        final @NotNull ZipArchiveEntry zipEntry = new ZipArchiveEntry(name);
+        zipEntry.setMethod(entry.getMethod());
+        zipEntry.setSize(entry.getSize());
+        zipEntry.setCrc(entry.getCrc());
+        zipEntry.setCompressedSize(entry.getCompressedSize());
+        return zipEntry;
+    }
+
+    /**
+     * @param name The name of a file relative to the backup.
+     * @return The inflated content of the file.
+     * @throws IOException Thrown if the file can not be read.
+     */
+    public @NotNull InputStream getInputStream(final @NotNull String name) throws IOException {
+        final @NotNull InputStream raw = getRawInputStream(name);
+        if (getStoredEntry(name).getMethod() == ZipEntry.STORED) {
+            return raw;
+        }
+        final @NotNull Inflater inflater = new Inflater(true);
+        return new InflaterInputStream(raw, inflater) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * @param name The name of a file relative to the backup.
+     * @return A stream of the content of the file as it is stored in the archive, without inflating it.
+     * @throws IOException Thrown if the file can not be found.
+     */
+    public @NotNull InputStream getRawInputStream(final @NotNull String name) throws IOException {
+        final @NotNull BackupJournal.Entry entry = getStoredEntry(name);
+        final long end = entry.getOffset() + entry.getCompressedSize();
+        return new InputStream() {
+
+            private long position = entry.getOffset();
+
+            @Override
+            public int read() throws IOException {
+                final @NotNull byte[] single = new byte[1];
+                return (read(single, 0, 1) < 0) ? -1 : (single[0] & 0xFF);
+            }
+
+            @Override
+            public int read(final @NotNull byte[] b, final int off, final int len) throws IOException {
+                if (position >= end) {
+                    return -1;
+                }
+                if (len == 0) {
+                    return 0;
+                }
+                final int read = archive.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+                if (read < 0) {
+                    throw new EOFException("File " + name + " is cut off in the previous backup.");
+                }
+                position += read;
+                return read;
+            }
+        };
+    }
+
+    /**
+     * @param name The name of a file relative to the backup.
+     * @return The content of the file as it is stored in the archive, without inflating it.
+     * @throws IOException Thrown if the file can not be read.
+     */
+    public @NotNull byte[] readRaw(final @NotNull String name) throws IOException {
+        final @NotNull BackupJournal.Entry entry = getStoredEntry(name);
+        final @NotNull ByteBuffer raw = ByteBuffer.allocate(Math.toIntExact(entry.getCompressedSize()));
+        long position = entry.getOffset();
+        while (raw.hasRemaining()) {
+            final int read = archive.read(raw, position);
+            if (read < 0) {
+                throw new EOFException("File " + name + " is cut off in the previous backup.");
+            }
+            position += read;
+        }
+        return raw.array();
+    }
+
+    @Override
+    public void close() throws IOException {
+        archive.close();
+    }
+
+    private @NotNull BackupJournal.Entry getStoredEntry(final @NotNull String name) throws IOException {
+        final @Nullable BackupJournal.Entry entry = entries.get(name);
+        if (entry == null) {
+            throw new IOException("File " + name + " is missing in the previous backup.");
+        }
+        return entry;
+    }
+
+    private static @NotNull ZipArchiveEntry getZipEntry(final @NotNull ZipFile zip, final @NotNull String name) throws IOException {
+        final @Nullable ZipArchiveEntry entry = zip.getEntry(name);
+        if (entry == null) {
+            throw new IOException("File " + name + " is missing in the previous backup.");
+        }
+        return entry;
+    }
+}
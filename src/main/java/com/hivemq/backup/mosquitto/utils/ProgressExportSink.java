@@ -0,0 +1,77 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the records of every file written to the wrapped sink in an {@link ExportProgress}, including the files
+ * copied from a previous backup.
+ *
+ * @since 1.0.0
+ */
+public class ProgressExportSink implements ExportSink {
+
+    private final @NotNull ExportSink sink;
+    private final @NotNull ExportProgress progress;
+
+    /**
+     * Creates a ProgressExportSink.
+     *
+     * @param sink     The sink the files are written to, it is closed together with this sink.
+     * @param progress The progress the records are counted in.
+     */
+    public ProgressExportSink(final @NotNull ExportSink sink, final @NotNull ExportProgress progress) {
+        this.sink = sink;
+        this.progress = progress;
+    }
+
+    @Override
+    public @NotNull OutputStream open(final @NotNull String name) throws IOException {
+        return sink.open(name);
+    }
+
+    @Override
+    public void write(final @NotNull String name, final @NotNull SpillBuffer content) throws IOException {
+        sink.write(name, content);
+    }
+
+    @Override
+    public void addRecords(final @NotNull String name, final long records) {
+        sink.addRecords(name, records);
+        progress.exported(name, records);
+    }
+
+    @Override
+    public void addFingerprint(final @NotNull String name, final long fingerprint) {
+        sink.addFingerprint(name, fingerprint);
+    }
+
+    @Override
+    public void copy(final @NotNull PreviousBackup previous, final @NotNull String name) throws IOException {
+        sink.copy(previous, name);
+        progress.exported(name, previous.getRecords(name));
+    }
+
+    @Override
+    public void close() throws IOException {
+        sink.close();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jline.terminal.Terminal;
+import org.jline.terminal.TerminalBuilder;
+import org.jline.utils.AttributedString;
+import org.jline.utils.InfoCmp;
+import org.jline.utils.Status;
+import org.tinylog.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reports an {@link ExportProgress} at a fixed interval on its own daemon thread.
+ * <p>
+ * The progress is either logged or drawn as a status line at the bottom of the terminal, which is redrawn in place
+ * while the log messages scroll above it. Without a terminal which supports a status line, the progress is logged.
+ *
+ * @since 1.0.0
+ */
+public class ProgressReporter implements Closeable {
+
+    private final @NotNull ExportProgress progress;
+    private final @NotNull ScheduledExecutorService timer;
+    private final @Nullable Terminal terminal;
+    private final @Nullable Status status;
+
+    /**
+     * Creates a ProgressReporter and starts reporting.
+     *
+     * @param progress       The progress which is reported.
+     * @param intervalMillis The time in milliseconds between two reports.
+     * @param statusLine     Draw the progress as a status line of the terminal instead of logging it.
+     */
+    public ProgressReporter(final @NotNull ExportProgress progress, final long intervalMillis, final boolean statusLine) {
+        Preconditions.checkArgument(intervalMillis > 0, "report interval must be positive");
+        this.progress = progress;
+
+        @Nullable Terminal terminal = null;
+        @Nullable Status status = null;
+        if (statusLine) {
+            terminal = openTerminal();
+            status = (terminal != null) ? Status.getStatus(terminal) : null;
+            if (status == null) {
+                Logger.warn("The terminal can not show a status line, the progress is logged instead.");
+            }
+        }
+        this.terminal = terminal;
+        this.status = status;
+
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final @NotNull Thread thread = new Thread(runnable, "progress-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleAtFixedRate(this::report, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops reporting and removes the status line.
+     */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        try {
+            timer.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (final @NotNull InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        try (terminal) {
+            show(null);
+        } catch (final @NotNull IOException ex) {
+            // the terminal is released with the process anyway
+        }
+    }
+
+    private void report() {
+        try {
+            show(progress.report());
+        } catch (final @NotNull RuntimeException ex) {
+            // a failed report must not stop the following ones
+            Logger.warn("Could not report progress: " + ex.getMessage());
+        }
+    }
+
+    private void show(final @Nullable String line) {
+        if (status != null) {
+            final @NotNull List<AttributedString> lines = (line != null) ?
+                    List.of(new AttributedString(line)) : Collections.emptyList();
+            synchronized (status) {
+                status.update(lines);
+            }
+        } else if (line != null) {
+            Logger.info(line);
+        }
+    }
+
+    private static @Nullable Terminal openTerminal() {
+        if (System.console() == null) {
+            return null;
+        }
+        try {
+            final @NotNull Terminal terminal = TerminalBuilder.builder().system(true).dumb(true).build();
+            if (terminal.getStringCapability(InfoCmp.Capability.change_scroll_region) == null) {
+                terminal.close();
+                return null;
+            }
+            return terminal;
+        } catch (final @NotNull IOException ex) {
+            return null;
+        }
+    }
+}
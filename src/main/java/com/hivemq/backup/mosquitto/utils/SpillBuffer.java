@@ -0,0 +1,210 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Collects the content of a file in memory as long as the {@link MemoryBudget} allows it and in a temporary spill
+ * file otherwise.
+ * <p>
+ * The buffer grows in memory while the budget grants the additional bytes. As soon as it does not, the content written
+ * so far is moved into a spill file together with everything written afterwards, so a single huge file or many
+ * buffered files never exceed the budget. Closing the stream completes the content, it stays readable until the buffer
+ * is {@link #release() released}.
+ * <p>
+ * A buffer is used by one thread at a time.
+ *
+ * @since 1.0.0
+ */
+public class SpillBuffer extends OutputStream {
+
+    private static final @NotNull byte[] EMPTY = new byte[0];
+    private static final int SPILL_BUFFER_SIZE = 8 * 1024;
+    // some VMs reserve header words in an array
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    private final @NotNull MemoryBudget budget;
+    private final int initialSize;
+    private @NotNull byte[] buffer = EMPTY;
+    private int count = 0;
+    private long spilledSize = 0;
+    private @Nullable Path spillFile;
+    private @Nullable OutputStream spillStream;
+    private boolean closed = false;
+    private boolean released = false;
+
+    /**
+     * Creates a SpillBuffer.
+     *
+     * @param budget      The budget the memory of the buffer is taken from.
+     * @param initialSize The size in bytes the buffer starts with once it is written to.
+     */
+    public SpillBuffer(final @NotNull MemoryBudget budget, final int initialSize) {
+        Preconditions.checkArgument(initialSize > 0, "initial size must be positive");
+        this.budget = budget;
+        this.initialSize = initialSize;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        Preconditions.checkState(!closed, "buffer is closed");
+        if (spillStream == null && count == buffer.length) {
+            grow(1);
+        }
+        if (spillStream != null) {
+            spillStream.write(b);
+            spilledSize++;
+        } else {
+            buffer[count++] = (byte) b;
+        }
+    }
+
+    @Override
+    public void write(final @NotNull byte[] b, final int off, final int len) throws IOException {
+        Preconditions.checkState(!closed, "buffer is closed");
+        if (spillStream == null && len > buffer.length - count) {
+            grow(len);
+        }
+        if (spillStream != null) {
+            spillStream.write(b, off, len);
+            spilledSize += len;
+        } else {
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Completes the content. A spilled buffer writes the rest of its content into the spill file.
+     *
+     * @throws IOException Thrown if the spill file can not be written.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (spillStream != null) {
+            spillStream.close();
+            spillStream = null;
+        }
+    }
+
+    /**
+     * @return The amount of bytes written.
+     */
+    public long size() {
+        return (spillFile != null) ? spilledSize : count;
+    }
+
+    /**
+     * @return True if the content is in a spill file instead of in memory.
+     */
+    public boolean isSpilled() {
+        return spillFile != null;
+    }
+
+    /**
+     * @return The array holding the content of a buffer which is not spilled, only the first {@link #size()} bytes
+     * belong to the content.
+     */
+    @NotNull byte[] data() {
+        Preconditions.checkState(spillFile == null, "buffer is spilled");
+        return buffer;
+    }
+
+    /**
+     * @return A stream of the completed content.
+     * @throws IOException Thrown if the spill file can not be read.
+     */
+    public @NotNull InputStream getInputStream() throws IOException {
+        Preconditions.checkState(!released, "buffer is released");
+        if (spillFile == null) {
+            return new ByteArrayInputStream(buffer, 0, count);
+        }
+        Preconditions.checkState(closed, "buffer is not closed");
+        return Files.newInputStream(spillFile);
+    }
+
+    /**
+     * Writes the completed content to a stream.
+     *
+     * @param out The stream.
+     * @throws IOException Thrown if the spill file can not be read or the stream can not be written.
+     */
+    public void writeTo(final @NotNull OutputStream out) throws IOException {
+        if (spillFile == null) {
+            Preconditions.checkState(!released, "buffer is released");
+            out.write(buffer, 0, count);
+            return;
+        }
+        try (final @NotNull InputStream in = getInputStream()) {
+            in.transferTo(out);
+        }
+    }
+
+    /**
+     * Returns the memory to the budget and deletes the spill file, the content is gone afterwards.
+     *
+     * @throws IOException Thrown if the spill file can not be deleted.
+     */
+    public void release() throws IOException {
+        if (released) {
+            return;
+        }
+        released = true;
+        budget.release(buffer.length);
+        buffer = EMPTY;
+        count = 0;
+        if (spillFile != null) {
+            close();
+            Files.deleteIfExists(spillFile);
+        }
+    }
+
+    private void grow(final int additional) throws IOException {
+        final long required = (long) count + additional;
+        final long size = Math.max(Math.max(required, initialSize), Math.min(2L * buffer.length, MAX_ARRAY_SIZE));
+        if (size <= MAX_ARRAY_SIZE && budget.tryAcquire(size - buffer.length)) {
+            buffer = Arrays.copyOf(buffer, (int) size);
+            return;
+        }
+        spill();
+    }
+
+    private void spill() throws IOException {
+        final @NotNull Path file = budget.createSpillFile();
+        final @NotNull OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), SPILL_BUFFER_SIZE);
+        out.write(buffer, 0, count);
+        spillFile = file;
+        spillStream = out;
+        spilledSize = count;
+        budget.release(buffer.length);
+        buffer = EMPTY;
+        count = 0;
+    }
+}
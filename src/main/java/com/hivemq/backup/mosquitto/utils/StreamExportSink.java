@@ -0,0 +1,61 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import com.google.common.base.Preconditions;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a single file to a stream, e.g. the backup archive to stdout. The name of the file is ignored.
+ * <p>
+ * The stream is only written front to back, so it can be a pipe or a socket.
+ *
+ * @since 1.0.0
+ */
+public class StreamExportSink implements ExportSink {
+
+    private final @NotNull OutputStream out;
+    private final int bufferSize;
+    private boolean opened = false;
+
+    /**
+     * Creates a StreamExportSink.
+     *
+     * @param out        The stream the file is written to, it is closed with the file.
+     * @param bufferSize The size in bytes of the write buffer.
+     */
+    public StreamExportSink(final @NotNull OutputStream out, final int bufferSize) {
+        Preconditions.checkArgument(bufferSize > 0, "buffer size must be positive");
+        this.out = out;
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public synchronized @NotNull OutputStream open(final @NotNull String name) {
+        Preconditions.checkState(!opened, "only one file can be written to a stream");
+        opened = true;
+        return new BufferedOutputStream(out, bufferSize);
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import org.apache.commons.io.output.TeeOutputStream;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes every file to two sinks at once, e.g. into the backup archive and into a folder which is kept.
+ *
+ * @since 1.0.0
+ */
+public class TeeExportSink implements ExportSink {
+
+    private final @NotNull ExportSink first;
+    private final @NotNull ExportSink second;
+
+    /**
+     * Creates a TeeExportSink.
+     *
+     * @param first  The first sink, it is closed first.
+     * @param second The second sink.
+     */
+    public TeeExportSink(final @NotNull ExportSink first, final @NotNull ExportSink second) {
+        this.first = first;
+        this.second = second;
+    }
+
+    @Override
+    public @NotNull OutputStream open(final @NotNull String name) throws IOException {
+        return new TeeOutputStream(first.open(name), second.open(name));
+    }
+
+    @Override
+    public void write(final @NotNull String name, final @NotNull SpillBuffer content) throws IOException {
+        try (final @NotNull OutputStream out = second.open(name)) {
+            content.writeTo(out);
+        } catch (final @NotNull IOException ex) {
+            content.release();
+            throw ex;
+        }
+        // the first sink takes over the buffer
+        first.write(name, content);
+    }
+
+    @Override
+    public void addRecords(final @NotNull String name, final long records) {
+        first.addRecords(name, records);
+        second.addRecords(name, records);
+    }
+
+    @Override
+    public void addFingerprint(final @NotNull String name, final long fingerprint) {
+        first.addFingerprint(name, fingerprint);
+        second.addFingerprint(name, fingerprint);
+    }
+
+    @Override
+    public void copy(final @NotNull PreviousBackup previous, final @NotNull String name) throws IOException {
+        first.copy(previous, name);
+        second.copy(previous, name);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (second) {
+            first.close();
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Scans and encodes the UTF-8 text of the export: ASCII and valid name char checks, UTF-8 validation and base64.
+ * <p>
+ * Every operation has a scalar implementation, which handles one byte at a time, and an accelerated one. The checks load
+ * eight bytes at once and test them with a few bit operations (SWAR), base64 uses the {@link Base64} encoder of the
+ * JDK, whose encoding loop the JVM replaces with vector instructions. {@link TextCodecBenchmark} compares them, only
+ * the implementations which were measured faster than the scalar ones are kept, and they are only used by default on
+ * the platform they were measured on. Both implementations always give the same results.
+ *
+ * @since 1.0.0
+ */
+public class TextCodec {
+
+    /**
+     * True if the accelerated implementation was measured faster on the runtime platform.
+     */
+    public static final boolean ACCELERATION_SUPPORTED =
+            Set.of("amd64", "x86_64").contains(System.getProperty("os.arch", ""));
+
+    private static final @NotNull VarHandle LONG_BIG_ENDIAN = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final long LOW_BITS = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final @NotNull Base64.Encoder BASE_64_ENCODER = Base64.getEncoder();
+    // shorter ranges were not measured faster with the JDK encoder, which needs a buffer per call
+    private static final int JDK_BASE_64_MIN_LENGTH = 64;
+    private static final @NotNull byte[] BASE_64_ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(UTF_8);
+
+    // every printable ASCII char which is not a valid name char, repeated in all eight bytes of a word
+    private static final @NotNull long[] INVALID_PRINTABLE_WORDS;
+
+    static {
+        final @NotNull List<Long> invalidWords = new ArrayList<>();
+        for (char c = '!'; c <= 0x7F; c++) {
+            if (!DataExportUtil.isValidChar(c)) {
+                invalidWords.add(LOW_BITS * c);
+            }
+        }
+        INVALID_PRINTABLE_WORDS = invalidWords.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    private static volatile boolean accelerated = ACCELERATION_SUPPORTED;
+
+    //do not instantiate
+    private TextCodec() {
+    }
+
+    /**
+     * Switches between the accelerated and the scalar implementation.
+     *
+     * @param enabled Use the accelerated implementation if true, the scalar implementation otherwise.
+     */
+    public static void setAccelerated(final boolean enabled) {
+        accelerated = enabled;
+    }
+
+    public static boolean isAccelerated() {
+        return accelerated;
+    }
+
+    /**
+     * @return True if all bytes in the range are ASCII.
+     */
+    public static boolean isAscii(final @NotNull byte[] bytes, final int offset, final int length) {
+        return accelerated ? isAsciiWords(bytes, offset, length) : isAsciiScalar(bytes, offset, length);
+    }
+
+    /**
+     * @return True if the range is well-formed UTF-8 (no overlong forms, surrogates or code points above U+10FFFF).
+     */
+    public static boolean isValidUtf8(final @NotNull byte[] bytes, final int offset, final int length) {
+        return accelerated ? isValidUtf8Words(bytes, offset, length) : isValidUtf8Scalar(bytes, offset, length);
+    }
+
+    /**
+     * Checks the UTF-8 encoded name for chars which are not valid name chars. The result is the opposite of
+     * {@link DataExportUtil#mustEncode(String)} for the decoded name.
+     *
+     * @return True if the range is well-formed UTF-8 and only contains valid name chars.
+     */
+    public static boolean isValidName(final @NotNull byte[] utf8, final int offset, final int length) {
+        return accelerated ? isValidNameWords(utf8, offset, length) : isValidNameScalar(utf8, offset, length);
+    }
+
+    /**
+     * Writes the standard base64 encoding with padding of the source range into the destination. The destination must
+     * have room for {@code (length + 2) / 3 * 4} bytes.
+     *
+     * @return The position in the destination behind the last written byte.
+     */
+    public static int encodeBase64(final @NotNull byte[] source, final int offset, final int length,
+                                   final @NotNull byte[] destination, final int position) {
+        return accelerated && length >= JDK_BASE_64_MIN_LENGTH ?
+                encodeBase64Jdk(source, offset, length, destination, position) :
+                encodeBase64Scalar(source, offset, length, destination, position);
+    }
+
+    static boolean isAsciiScalar(final @NotNull byte[] bytes, final int offset, final int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (bytes[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean isAsciiWords(final @NotNull byte[] bytes, final int offset, final int length) {
+        final int end = offset + length;
+        int i = offset;
+        for (; i + Long.BYTES <= end; i += Long.BYTES) {
+            if (((long) LONG_BIG_ENDIAN.get(bytes, i) & HIGH_BITS) != 0) {
+                return false;
+            }
+        }
+        return isAsciiScalar(bytes, i, end - i);
+    }
+
+    static boolean isValidUtf8Scalar(final @NotNull byte[] bytes, final int offset, final int length) {
+        final int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            final long next = decodeCodePoint(bytes, i, end);
+            if (next < 0) {
+                return false;
+            }
+            i = (int) next;
+        }
+        return true;
+    }
+
+    static boolean isValidUtf8Words(final @NotNull byte[] bytes, final int offset, final int length) {
+        final int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            if (i + Long.BYTES <= end && ((long) LONG_BIG_ENDIAN.get(bytes, i) & HIGH_BITS) == 0) {
+                i += Long.BYTES;
+                continue;
+            }
+            final long next = decodeCodePoint(bytes, i, end);
+            if (next < 0) {
+                return false;
+            }
+            i = (int) next;
+        }
+        return true;
+    }
+
+    static boolean isValidNameScalar(final @NotNull byte[] utf8, final int offset, final int length) {
+        final int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            final long next = decodeCodePoint(utf8, i, end);
+            if (next < 0 || !isValidCodePoint((int) (next >>> 32))) {
+                return false;
+            }
+            i = (int) next;
+        }
+        return true;
+    }
+
+    static boolean isValidNameWords(final @NotNull byte[] utf8, final int offset, final int length) {
+        final int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            if (i + Long.BYTES <= end) {
+                final long word = (long) LONG_BIG_ENDIAN.get(utf8, i);
+                if ((word & HIGH_BITS) == 0) {
+                    if (!isValidAsciiWord(word)) {
+                        return false;
+                    }
+                    i += Long.BYTES;
+                    continue;
+                }
+            }
+            final long next = decodeCodePoint(utf8, i, end);
+            if (next < 0 || !isValidCodePoint((int) (next >>> 32))) {
+                return false;
+            }
+            i = (int) next;
+        }
+        return true;
+    }
+
+    /**
+     * Checks eight ASCII bytes at once: no control char or space and none of the invalid printable chars.
+     */
+    private static boolean isValidAsciiWord(final long word) {
+        // a byte below '!' borrows when '!' is subtracted from it, the borrow shows in its high bit
+        if (((word - LOW_BITS * '!') & ~word & HIGH_BITS) != 0) {
+            return false;
+        }
+        for (final long invalidWord : INVALID_PRINTABLE_WORDS) {
+            final long matches = word ^ invalidWord;
+            if (((matches - LOW_BITS) & ~matches & HIGH_BITS) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isValidCodePoint(final int codePoint) {
+        return codePoint <= Character.MAX_VALUE && DataExportUtil.isValidChar((char) codePoint);
+    }
+
+    /**
+     * Decodes the UTF-8 sequence starting at the index.
+     *
+     * @return The code point in the upper and the index behind the sequence in the lower 32 bits, or -1 if the sequence
+     * is malformed.
+     */
+    private static long decodeCodePoint(final @NotNull byte[] bytes, final int index, final int end) {
+        final int first = bytes[index] & 0xFF;
+        if (first < 0x80) {
+            return ((long) first << 32) | (index + 1);
+        }
+        final int length;
+        final int minimum;
+        int codePoint;
+        if (first >= 0xC2 && first <= 0xDF) {
+            length = 2;
+            minimum = 0x80;
+            codePoint = first & 0x1F;
+        } else if (first >= 0xE0 && first <= 0xEF) {
+            length = 3;
+            minimum = 0x800;
+            codePoint = first & 0x0F;
+        } else if (first >= 0xF0 && first <= 0xF4) {
+            length = 4;
+            minimum = 0x10000;
+            codePoint = first & 0x07;
+        } else {
+            return -1;
+        }
+        if (index + length > end) {
+            return -1;
+        }
+        for (int i = index + 1; i < index + length; i++) {
+            final int next = bytes[i] & 0xFF;
+            if ((next & 0xC0) != 0x80) {
+                return -1;
+            }
+            codePoint = (codePoint << 6) | (next & 0x3F);
+        }
+        if (codePoint < minimum || codePoint > Character.MAX_CODE_POINT ||
+                (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+            return -1;
+        }
+        return ((long) codePoint << 32) | (index + length);
+    }
+
+    static int encodeBase64Scalar(final @NotNull byte[] source, final int offset, final int length,
+                                  final @NotNull byte[] destination, final int position) {
+        int out = position;
+        final int end = offset + length - length % 3;
+        for (int i = offset; i < end; i += 3) {
+            final int bits = (source[i] & 0xFF) << 16 | (source[i + 1] & 0xFF) << 8 | (source[i + 2] & 0xFF);
+            destination[out++] = BASE_64_ALPHABET[bits >>> 18];
+            destination[out++] = BASE_64_ALPHABET[(bits >>> 12) & 0x3F];
+            destination[out++] = BASE_64_ALPHABET[(bits >>> 6) & 0x3F];
+            destination[out++] = BASE_64_ALPHABET[bits & 0x3F];
+        }
+        final int rest = length % 3;
+        if (rest == 1) {
+            final int bits = (source[end] & 0xFF) << 16;
+            destination[out++] = BASE_64_ALPHABET[bits >>> 18];
+            destination[out++] = BASE_64_ALPHABET[(bits >>> 12) & 0x3F];
+            destination[out++] = '=';
+            destination[out++] = '=';
+        } else if (rest == 2) {
+            final int bits = (source[end] & 0xFF) << 16 | (source[end + 1] & 0xFF) << 8;
+            destination[out++] = BASE_64_ALPHABET[bits >>> 18];
+            destination[out++] = BASE_64_ALPHABET[(bits >>> 12) & 0x3F];
+            destination[out++] = BASE_64_ALPHABET[(bits >>> 6) & 0x3F];
+            destination[out++] = '=';
+        }
+        return out;
+    }
+
+    static int encodeBase64Jdk(final @NotNull byte[] source, final int offset, final int length,
+                               final @NotNull byte[] destination, final int position) {
+        // the encoder only takes whole arrays, so a range goes through a buffer
+        final @NotNull ByteBuffer encoded = BASE_64_ENCODER.encode(ByteBuffer.wrap(source, offset, length));
+        final int encodedLength = encoded.remaining();
+        encoded.get(destination, position, encodedLength);
+        return position + encodedLength;
+    }
+}
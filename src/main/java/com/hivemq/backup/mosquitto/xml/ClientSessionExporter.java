@@ -17,32 +17,34 @@
 package com.hivemq.backup.mosquitto.xml;
 
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.hivemq.backup.mosquitto.db.ChunkClient;
 import com.hivemq.backup.mosquitto.db.ChunkClientMessage;
 import com.hivemq.backup.mosquitto.db.ChunkMsgStore;
 import com.hivemq.backup.mosquitto.db.ChunkSubscription;
 import com.hivemq.backup.mosquitto.format.*;
+import com.hivemq.backup.mosquitto.utils.BackupFingerprints;
+import com.hivemq.backup.mosquitto.utils.BackupXmlWriter;
+import com.hivemq.backup.mosquitto.utils.BackupXmlWriter.Tag;
 import com.hivemq.backup.mosquitto.utils.DataExportUtil;
-import org.apache.commons.io.FileUtils;
+import com.hivemq.backup.mosquitto.utils.EncodedNameCache;
+import com.hivemq.backup.mosquitto.utils.ExportEvents;
+import com.hivemq.backup.mosquitto.utils.ExportSink;
+import com.hivemq.backup.mosquitto.utils.FileNameRegistry;
+import com.hivemq.backup.mosquitto.utils.LatencyHistogram;
+import com.hivemq.backup.mosquitto.utils.PreviousBackup;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.tinylog.Logger;
 
-import javax.xml.stream.XMLOutputFactory;
-import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.XMLStreamWriter;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.file.Path;
-import java.util.Comparator;
-import java.util.List;
-import java.util.Objects;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.stream.Collectors;
 
-import static com.hivemq.backup.mosquitto.format.GlobalXML.EXPORTED_AT;
-import static com.hivemq.backup.mosquitto.utils.DataExportUtil.BASE_64;
-import static com.hivemq.backup.mosquitto.utils.DataExportUtil.getNextFileName;
-import static java.nio.charset.StandardCharsets.UTF_8;
-
 /**
  * @author Florian Limpöck
  * @author Lukas Brand
@@ -50,240 +52,482 @@ import static java.nio.charset.StandardCharsets.UTF_8;
  */
 public class ClientSessionExporter {
 
-    private final XMLOutputFactory factory = XMLOutputFactory.newInstance();
+    private static final int SESSION_BUFFER_SIZE = 64 * 1024;
+    private static final int RENDER_WINDOW_PER_WORKER = 64;
+    private static final int FRAGMENT_BUFFER_SIZE = 8 * 1024;
+    // larger payloads are encoded straight into the session instead of into a cached fragment
+    private static final int MAX_FRAGMENT_PAYLOAD = 1024 * 1024;
+    public static final @NotNull String SESSIONS_FOLDER = "client-sessions/";
+    private static final long SESSION_NEVER_EXPIRES = 0xFFFF_FFFFL;
+    private static final @NotNull Future<OutputStream> REUSED = CompletableFuture.completedFuture(null);
+
+    private static final @NotNull Tag ROOT_ELEMENT = Tag.of(ClientSessionXML.ROOT_ELEMENT);
+    private static final @NotNull Tag CLIENT_ID = Tag.of(ClientSessionXML.CLIENT_ID);
+    private static final @NotNull Tag CLIENT_ID_BASE_64 = Tag.of(ClientSessionXML.CLIENT_ID_BASE_64);
+    private static final @NotNull Tag DISCONNECTED_SINCE = Tag.of(ClientSessionXML.DISCONNECTED_SINCE);
+    private static final @NotNull Tag SESSION_EXPIRY = Tag.of(ClientSessionXML.SESSION_EXPIRY);
+    private static final @NotNull Tag HIVEMQ_VERSION = Tag.of(GlobalXML.HIVEMQ_VERSION);
+    private static final @NotNull Tag EXPORTED_AT = Tag.of(GlobalXML.EXPORTED_AT);
+    private static final @NotNull Tag SUBSCRIPTIONS_ELEMENT = Tag.of(SubscriptionXML.ROOT_ELEMENT);
+    private static final @NotNull Tag SUBSCRIPTION_ELEMENT = Tag.of(SubscriptionXML.SUBSCRIPTION_ELEMENT);
+    private static final @NotNull Tag NO_LOCAL = Tag.of(SubscriptionXML.NO_LOCAL);
+    private static final @NotNull Tag RETAIN_AS_PUBLISHED = Tag.of(SubscriptionXML.RETAIN_AS_PUBLISHED);
+    private static final @NotNull Tag RETAIN_HANDLING = Tag.of(SubscriptionXML.RETAIN_HANDLING);
+    private static final @NotNull Tag QUEUED_MESSAGES_ELEMENT = Tag.of(QueuedMessageXML.ROOT_ELEMENT);
+    private static final @NotNull Tag QUEUED_MESSAGE_ELEMENT = Tag.of(QueuedMessageXML.QUEUED_MESSAGE_ELEMENT);
+    private static final @NotNull Tag TYPE = Tag.of(QueuedMessageXML.TYPE);
+    private static final @NotNull Tag FROM_RETAINED_MESSAGE = Tag.of(QueuedMessageXML.FROM_RETAINED_MESSAGE);
+    private static final @NotNull Tag PACKET_ID = Tag.of(MessageXML.PACKET_ID);
+    private static final @NotNull Tag PUBLISH_ID = Tag.of(MessageXML.PUBLISH_ID);
+    private static final @NotNull Tag CLUSTER_ID = Tag.of(MessageXML.CLUSTER_ID);
+    private static final @NotNull Tag TOPIC_BASE_64 = Tag.of(MessageXML.TOPIC_BASE_64);
+    private static final @NotNull Tag TOPIC = Tag.of(MessageXML.TOPIC);
+    private static final @NotNull Tag RESPONSE_TOPIC = Tag.of(MessageXML.RESPONSE_TOPIC);
+    private static final @NotNull Tag CONTENT_TYPE = Tag.of(MessageXML.CONTENT_TYPE);
+    private static final @NotNull Tag MESSAGE = Tag.of(MessageXML.MESSAGE);
+    private static final @NotNull Tag CORRELATION_DATA = Tag.of(MessageXML.CORRELATION_DATA);
+    private static final @NotNull Tag RETAINED = Tag.of(MessageXML.RETAINED);
+    private static final @NotNull Tag DUPLICATE_DELIVERY = Tag.of(MessageXML.DUPLICATE_DELIVERY);
+    private static final @NotNull Tag TIMESTAMP = Tag.of(MessageXML.TIMESTAMP);
+    private static final @NotNull Tag QOS = Tag.of(MessageXML.QOS);
+    private static final @NotNull Tag MESSAGE_EXPIRY = Tag.of(MessageXML.MESSAGE_EXPIRY);
+    private static final @NotNull Tag PAYLOAD_FORMAT_INDICATOR = Tag.of(MessageXML.PAYLOAD_FORMAT_INDICATOR);
+    private static final @NotNull Tag SUBSCRIPTION_IDENTIFIER = Tag.of(MessageXML.SUBSCRIPTION_IDENTIFIER);
+
     private final String clusterId;
     private final String hiveMqVersion;
-    private final Path fileSaveLocation;
+    private final ExportSink sink;
     private final long timestamp;
-    @SuppressWarnings("FieldCanBeLocal")
-    private long SESSION_EXPIRE_ON_DISCONNECT = 0;
+    private final int threads;
+    private final boolean prettyPrint;
+    private final @NotNull MessageFragmentCache fragmentCache;
+    private final @Nullable PreviousBackup previous;
+    private final @NotNull LatencyHistogram renderTimes;
+    private final @NotNull EncodedNameCache encodedTopics = new EncodedNameCache();
+    private static final long SESSION_EXPIRE_ON_DISCONNECT = 0;
 
     /**
      * Creates a ClientSessionExporter.
      *
-     * @param timestamp        Creation timestamp.
-     * @param fileSaveLocation The folder the client sessions get saved to.
-     * @param clusterId        The HiveMQ cluster id.
-     * @param hiveMqVersion    The used HiveMQ version.
+     * @param timestamp         Creation timestamp.
+     * @param sink              The sink the client sessions get saved to.
+     * @param clusterId         The HiveMQ cluster id.
+     * @param hiveMqVersion     The used HiveMQ version.
+     * @param threads           The amount of worker threads the client sessions are split across.
+     * @param fragmentCacheSize The maximum size in bytes of the cached queued message fragments.
+     * @param prettyPrint       Write line breaks and indentation between the XML elements.
+     * @param previous          A previous backup whose unchanged client sessions are copied, null to render all.
+     * @param renderTimes       The histogram the render time of every client session is recorded in, in nanoseconds.
      */
     public ClientSessionExporter(final long timestamp,
-                                 final @NotNull Path fileSaveLocation,
+                                 final @NotNull ExportSink sink,
                                  final @NotNull String clusterId,
-                                 final @NotNull String hiveMqVersion) {
+                                 final @NotNull String hiveMqVersion,
+                                 final int threads,
+                                 final long fragmentCacheSize,
+                                 final boolean prettyPrint,
+                                 final @Nullable PreviousBackup previous,
+                                 final @NotNull LatencyHistogram renderTimes) {
+        Preconditions.checkArgument(threads > 0, "thread count must be positive");
         this.timestamp = timestamp;
-        this.fileSaveLocation = fileSaveLocation;
+        this.sink = sink;
         this.clusterId = clusterId;
         this.hiveMqVersion = hiveMqVersion;
+        this.threads = threads;
+        this.prettyPrint = prettyPrint;
+        this.fragmentCache = new MessageFragmentCache(fragmentCacheSize);
+        this.previous = previous;
+        this.renderTimes = renderTimes;
+    }
+
+    /**
+     * @param client A client of the database.
+     * @return True if the session of the client outlives its connection, only those sessions are exported.
+     */
+    public static boolean isPersistent(final @NotNull ChunkClient client) {
+        return client.getSessionExpiryInterval() != SESSION_EXPIRE_ON_DISCONNECT;
     }
 
     /**
      * Writes all client sessions to XML.
+     * <p>
+     * The sessions are rendered on the worker threads but closed in client order, so neither the created files nor
+     * their order depend on the amount of threads or their scheduling. Every worker renders straight into the file it
+     * opened, the sink decides how much of the rendered sessions it keeps in memory. A session whose fingerprint matches the same
+     * file of the previous backup is copied instead of rendered.
      *
      * @param clients       All client sessions.
      * @param subscriptions All client subscriptions.
      * @param clientMsgs    All client messages.
      * @param msgStore      All stored messages.
+     * @throws IOException Thrown if a session can not be rendered or written.
      */
     public void writeToXml(final @NotNull List<ChunkClient> clients,
                            final @NotNull List<ChunkSubscription> subscriptions,
                            final @NotNull List<ChunkClientMessage> clientMsgs,
-                           final @NotNull List<ChunkMsgStore> msgStore) {
+                           final @NotNull List<ChunkMsgStore> msgStore) throws IOException {
 
-        try {
-            for (final @NotNull ChunkClient client : clients) {
+        final @NotNull List<ChunkClient> persistentClients = new ArrayList<>();
+        for (final @NotNull ChunkClient client : clients) {
+            Preconditions.checkNotNull(client, "client session must not be null");
+
+            // persistent only
+            if (isPersistent(client)) {
+                persistentClients.add(client);
+            }
+        }
 
-                final @NotNull String clientID = client.getClientId();
+        if (persistentClients.isEmpty()) {
+            return;
+        }
+
+        final @NotNull Map<String, List<ChunkSubscription>> subscriptionsByClient = subscriptions.stream()
+                .collect(Collectors.groupingBy(ChunkSubscription::getClientId));
+        final @NotNull Map<String, List<ChunkClientMessage>> messagesByClient = clientMsgs.stream()
+                .collect(Collectors.groupingBy(ChunkClientMessage::getClientId));
+        final @NotNull Map<Long, ChunkMsgStore> messagesByStoreId = new HashMap<>();
+        for (final @NotNull ChunkMsgStore message : msgStore) {
+            messagesByStoreId.putIfAbsent(message.getStoreId(), message);
+        }
+
+        // only messages which are queued for several clients are worth caching
+        final @NotNull Map<Long, Integer> referenceCounts = new HashMap<>();
+        for (final @NotNull ChunkClientMessage clientMessage : clientMsgs) {
+            referenceCounts.merge(clientMessage.getStoreId(), 1, Integer::sum);
+        }
+        final @NotNull Set<Long> fanOutStoreIds = new HashSet<>();
+        referenceCounts.forEach((storeId, count) -> {
+            final @Nullable ChunkMsgStore message = messagesByStoreId.get(storeId);
+            if (count > 1 && message != null && message.getPayload().length <= MAX_FRAGMENT_PAYLOAD) {
+                fanOutStoreIds.add(storeId);
+            }
+        });
 
-                Preconditions.checkNotNull(client, "client session must not be null");
+        final @NotNull FileNameRegistry fileNameRegistry = new FileNameRegistry();
+        final @NotNull List<String> sessionFiles = new ArrayList<>(persistentClients.size());
+        for (final @NotNull ChunkClient client : persistentClients) {
+            sessionFiles.add(clusterId + "-" + fileNameRegistry.allocate(client.getClientId()) + ".xml");
+        }
 
-                // persistent only
-                if (client.getSessionExpiryInterval() == SESSION_EXPIRE_ON_DISCONNECT) {
+        final int workers = Math.min(threads, persistentClients.size());
+        final @NotNull ThreadLocal<SessionWriter> sessionWriters = ThreadLocal.withInitial(
+                () -> new SessionWriter(subscriptionsByClient, messagesByClient, messagesByStoreId, fanOutStoreIds));
+        final @NotNull ExecutorService executorService = (workers == 1) ?
+                MoreExecutors.newDirectExecutorService() : Executors.newFixedThreadPool(workers);
+        final int window = workers * RENDER_WINDOW_PER_WORKER;
+
+        // the workers only render, the sessions are written here in client order
+        final @NotNull Long[] fingerprints = new Long[persistentClients.size()];
+        int reused = 0;
+        try {
+            final @NotNull Deque<Future<OutputStream>> pending = new ArrayDeque<>(window);
+            int next = 0;
+            for (int i = 0; i < persistentClients.size(); i++) {
+                while (next < persistentClients.size() && pending.size() < window) {
+                    final @NotNull ChunkClient client = persistentClients.get(next);
+                    final @NotNull String fileName = SESSIONS_FOLDER + sessionFiles.get(next);
+                    fingerprints[next] = fingerprint(client, subscriptionsByClient, messagesByClient, messagesByStoreId);
+                    if (previous != null && previous.isUnchanged(fileName, fingerprints[next])) {
+                        pending.add(REUSED);
+                    } else {
+                        pending.add(executorService.submit(() -> {
+                            final long start = System.nanoTime();
+                            final @NotNull ExportEvents.SessionRender renderEvent = new ExportEvents.SessionRender();
+                            final @NotNull OutputStream session = sink.open(fileName);
+                            final long size = sessionWriters.get().render(client, session);
+                            renderTimes.record(System.nanoTime() - start);
+                            renderEvent.finish(client.getClientId(),
+                                    subscriptionsByClient.getOrDefault(client.getClientId(), List.of()).size(),
+                                    messagesByClient.getOrDefault(client.getClientId(), List.of()).size(),
+                                    size);
+                            return session;
+                        }));
+                    }
+                    next++;
+                }
+                final @Nullable OutputStream session = Objects.requireNonNull(pending.poll()).get();
+                final @NotNull String fileName = SESSIONS_FOLDER + sessionFiles.get(i);
+                if (session == null) {
+                    sink.copy(Objects.requireNonNull(previous), fileName);
+                    reused++;
                     continue;
                 }
+                try (session) {
+                    sink.addRecords(fileName, 1);
+                    if (fingerprints[i] != null) {
+                        sink.addFingerprint(fileName, fingerprints[i]);
+                    }
+                }
+            }
+            if (previous != null) {
+                Logger.info("Reused " + reused + " of " + persistentClients.size() + " client sessions of the previous backup.");
+            }
 
-                final @NotNull File sessionsFolder = new File(fileSaveLocation.toFile(), "client-sessions");
+        } catch (final @NotNull InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while rendering the client sessions.");
+        } catch (final @NotNull ExecutionException ex) {
+            throw new IOException("Could not render a client session: " + ex.getCause(), ex.getCause());
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    /**
+     * The fingerprint of a session covers the bytes of its client chunk, its subscription chunks and the chunks of its
+     * queued messages. Sessions which expire or contain expiring messages get none, they are always rendered again
+     * because their XML depends on the time of the export.
+     *
+     * @return The fingerprint of the session, null if it must not be reused.
+     */
+    private @Nullable Long fingerprint(final @NotNull ChunkClient client,
+                                       final @NotNull Map<String, List<ChunkSubscription>> subscriptionsByClient,
+                                       final @NotNull Map<String, List<ChunkClientMessage>> messagesByClient,
+                                       final @NotNull Map<Long, ChunkMsgStore> messagesByStoreId) {
+        if (client.getSessionExpiryInterval() != SESSION_NEVER_EXPIRES) {
+            return null;
+        }
+        long fingerprint = BackupFingerprints.mix(prettyPrint ? 1 : 0, client.getFingerprint());
+        for (final @NotNull ChunkSubscription subscription : subscriptionsByClient.getOrDefault(client.getClientId(), List.of())) {
+            fingerprint = BackupFingerprints.mix(fingerprint, subscription.getFingerprint());
+        }
+        for (final @NotNull ChunkClientMessage clientMessage : messagesByClient.getOrDefault(client.getClientId(), List.of())) {
+            final @Nullable ChunkMsgStore message = messagesByStoreId.get(clientMessage.getStoreId());
+            if (message == null || message.getExpiryTime() != 0) {
+                return null;
+            }
+            fingerprint = BackupFingerprints.mix(fingerprint, clientMessage.getFingerprint());
+            fingerprint = BackupFingerprints.mix(fingerprint, message.getFingerprint());
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Renders client sessions on a single thread. Every worker uses its own instance, so the XML writers are never
+     * shared.
+     */
+    private class SessionWriter {
+
+        private final @NotNull BackupXmlWriter xmlWriter = new BackupXmlWriter(SESSION_BUFFER_SIZE, prettyPrint);
+        private final @NotNull BackupXmlWriter fragmentWriter = new BackupXmlWriter(FRAGMENT_BUFFER_SIZE, prettyPrint);
+        private final @NotNull Map<String, List<ChunkSubscription>> subscriptionsByClient;
+        private final @NotNull Map<String, List<ChunkClientMessage>> messagesByClient;
+        private final @NotNull Map<Long, ChunkMsgStore> messagesByStoreId;
+        private final @NotNull Set<Long> fanOutStoreIds;
+
+        SessionWriter(final @NotNull Map<String, List<ChunkSubscription>> subscriptionsByClient,
+                      final @NotNull Map<String, List<ChunkClientMessage>> messagesByClient,
+                      final @NotNull Map<Long, ChunkMsgStore> messagesByStoreId,
+                      final @NotNull Set<Long> fanOutStoreIds) {
+            this.subscriptionsByClient = subscriptionsByClient;
+            this.messagesByClient = messagesByClient;
+            this.messagesByStoreId = messagesByStoreId;
+            this.fanOutStoreIds = fanOutStoreIds;
+        }
 
-                FileUtils.forceMkdir(sessionsFolder);
+        /**
+         * @return The size of the rendered session in bytes.
+         */
+        long render(final @NotNull ChunkClient client, final @NotNull OutputStream out) throws IOException {
+            xmlWriter.setOutput(out);
+            try {
+                renderToBuffer(client);
+                xmlWriter.flush();
+            } catch (final @NotNull UncheckedIOException ex) {
+                throw ex.getCause();
+            } finally {
+                xmlWriter.setOutput(null);
+            }
+            return xmlWriter.size();
+        }
 
-                final @NotNull String fileName = getNextFileName(sessionsFolder, clientID);
+        private void renderToBuffer(final @NotNull ChunkClient client) {
+            final @NotNull String clientID = client.getClientId();
 
-                try (final @NotNull FileOutputStream fileOutputStream = new FileOutputStream(new @NotNull File(sessionsFolder, clusterId + "-" + fileName + ".xml"))) {
-                    final @NotNull XMLStreamWriter xmlStreamWriter = factory.createXMLStreamWriter(fileOutputStream);
-                    try {
-                        xmlStreamWriter.writeStartDocument(); //  <?xml version="1.0" ?>
-                        xmlStreamWriter.writeCharacters("\n");
-                        xmlStreamWriter.writeStartElement(ClientSessionXML.ROOT_ELEMENT);
+            xmlWriter.reset();
+            xmlWriter.startDocument(); //  <?xml version="1.0" ?>
+            xmlWriter.newLine();
+            xmlWriter.startElementWithAttributes(ROOT_ELEMENT);
 
-                        writeClientSessionAttributes(xmlStreamWriter, client, timestamp);
-                        writeSubscriptionInfo(xmlStreamWriter, clientID, subscriptions);
-                        writeQueuedMessagesInfo(xmlStreamWriter, clientID, clientMsgs, msgStore);
+            writeClientSessionAttributes(xmlWriter, client, timestamp);
+            writeSubscriptionInfo(xmlWriter, subscriptionsByClient.getOrDefault(clientID, List.of()));
+            writeQueuedMessagesInfo(messagesByClient.getOrDefault(clientID, List.of()));
 
-                        xmlStreamWriter.writeEndElement();
+            xmlWriter.endElement(ROOT_ELEMENT, 0);
+        }
 
-                    } finally {
-                        xmlStreamWriter.close();
-                    }
-                }
+        private void writeQueuedMessagesInfo(final @NotNull List<ChunkClientMessage> clientMessages) {
 
+            if (clientMessages.isEmpty()) {
+                return;
             }
 
-        } catch (final @NotNull IOException | @NotNull XMLStreamException ex) {
-            ex.printStackTrace();
-        }
-    }
+            xmlWriter.startElement(QUEUED_MESSAGES_ELEMENT, 1);
+            xmlWriter.newLine();
+            xmlWriter.newLine();
 
+            final @NotNull List<ChunkClientMessage> orderedMessages = clientMessages.stream().
+                    sorted(Comparator.comparingInt(ChunkClientMessage::getMid)).collect(Collectors.toList());
 
-    private void writeSubscriptionInfo(final @NotNull XMLStreamWriter xmlStreamWriter,
-                                       final @NotNull String clientId,
-                                       final @NotNull List<ChunkSubscription> allSubscriptions) throws XMLStreamException {
+            for (final @NotNull ChunkClientMessage clientMessage : orderedMessages) {
+                writeQueued(clientMessage, Objects.requireNonNull(messagesByStoreId.get(clientMessage.getStoreId())));
+            }
 
-        final @NotNull List<ChunkSubscription> subscriptions = allSubscriptions.stream()
-                .filter(chunkSubscription -> chunkSubscription.getClientId().equals(clientId))
-                .collect(Collectors.toList());
+            xmlWriter.endElement(QUEUED_MESSAGES_ELEMENT, 1);
+            xmlWriter.newLine();
+            xmlWriter.newLine();
 
-        if (subscriptions.isEmpty()) {
-            return;
         }
 
-        DataExportUtil.writeSpaces(xmlStreamWriter, 1);
-        xmlStreamWriter.writeStartElement(SubscriptionXML.ROOT_ELEMENT);
-        xmlStreamWriter.writeCharacters("\n");
-        xmlStreamWriter.writeCharacters("\n");
+        private void writeQueued(final @NotNull ChunkClientMessage clientMessage,
+                                 final @NotNull ChunkMsgStore message) {
 
-        for (final @NotNull ChunkSubscription subscription : subscriptions) {
-            writeSubscription(xmlStreamWriter, subscription);
-        }
+            xmlWriter.startElement(QUEUED_MESSAGE_ELEMENT, 2);
+            xmlWriter.newLine();
 
-        DataExportUtil.writeSpaces(xmlStreamWriter, 1);
-        xmlStreamWriter.writeEndElement();
-        xmlStreamWriter.writeCharacters("\n");
-        xmlStreamWriter.writeCharacters("\n");
+            // the fragments of a message referenced by several clients are rendered once and spliced in afterwards
+            final @Nullable MessageFragmentCache.Fragments fragments = fanOutStoreIds.contains(message.getStoreId()) ?
+                    fragmentCache.get(message.getStoreId(), () -> renderFragments(message)) : null;
 
-    }
+            if (fragments != null) {
+                xmlWriter.writeRaw(fragments.getHead());
+            } else {
+                writeQueuedHead(xmlWriter, message);
+            }
 
+            xmlWriter.writeBoolean(DUPLICATE_DELIVERY, clientMessage.getRetainDuplicate(), 3);
+            xmlWriter.writeNumber(TIMESTAMP, timestamp, 3);
+            xmlWriter.writeNumber(QOS, clientMessage.getQos(), 3);
 
-    private void writeQueuedMessagesInfo(final @NotNull XMLStreamWriter xmlStreamWriter,
-                                         final @NotNull String clientID,
-                                         final @NotNull List<ChunkClientMessage> allClientMessages,
-                                         final @NotNull List<ChunkMsgStore> messages) throws XMLStreamException {
+            if (fragments != null) {
+                xmlWriter.writeRaw(fragments.getTail());
+            } else {
+                writeQueuedTail(xmlWriter, message);
+            }
 
-        final @NotNull List<ChunkClientMessage> clientMessages = allClientMessages.stream().filter(msg -> msg.getClientId().equals(clientID)).collect(Collectors.toList());
+            DataExportUtil.writeSubscriptionIdentifiers(xmlWriter, clientMessage.getSubscriptionIdentifier(), 3);
+
+            xmlWriter.endElement(QUEUED_MESSAGE_ELEMENT, 2);
+            xmlWriter.newLine();
+            xmlWriter.newLine();
 
-        if (clientMessages.isEmpty()) {
-            return;
         }
 
-        DataExportUtil.writeSpaces(xmlStreamWriter, 1);
-        xmlStreamWriter.writeStartElement(QueuedMessageXML.ROOT_ELEMENT);
-        xmlStreamWriter.writeCharacters("\n");
-        xmlStreamWriter.writeCharacters("\n");
+        private @NotNull MessageFragmentCache.Fragments renderFragments(final @NotNull ChunkMsgStore message) {
+            fragmentWriter.reset();
+            writeQueuedHead(fragmentWriter, message);
+            final @NotNull byte[] head = fragmentWriter.toByteArray();
 
-        final @NotNull List<ChunkClientMessage> orderedMessages = clientMessages.stream().
-                sorted(Comparator.comparingInt(ChunkClientMessage::getMid)).collect(Collectors.toList());
+            fragmentWriter.reset();
+            writeQueuedTail(fragmentWriter, message);
+            final @NotNull byte[] tail = fragmentWriter.toByteArray();
 
-        for (final @NotNull ChunkClientMessage clientMessage : orderedMessages) {
-            writeQueued(xmlStreamWriter, clientMessage, Objects.requireNonNull(messages.stream().filter(chunkMsgStore -> clientMessage.getStoreId() == chunkMsgStore.getStoreId()).findFirst().orElse(null)));
+            return new MessageFragmentCache.Fragments(head, tail);
         }
+    }
 
-        DataExportUtil.writeSpaces(xmlStreamWriter, 1);
-        xmlStreamWriter.writeEndElement();
-        xmlStreamWriter.writeCharacters("\n");
-        xmlStreamWriter.writeCharacters("\n");
-
+    /**
+     * Writes all elements of a queued message in front of the duplicate delivery flag. They only depend on the stored
+     * message.
+     */
+    private void writeQueuedHead(final @NotNull BackupXmlWriter xmlWriter,
+                                 final @NotNull ChunkMsgStore message) {
+
+        xmlWriter.writeNumber(EXPORTED_AT, timestamp, 3);
+        xmlWriter.writeString(TYPE, QueuedMessageXML.QueuedMessageType.PUBLISH.getName(), 3);
+        xmlWriter.writeNumber(PACKET_ID, 0, 3);
+        xmlWriter.writeBoolean(FROM_RETAINED_MESSAGE, message.getRetain(), 3);
+        xmlWriter.writeNumber(PUBLISH_ID, message.getStoreId(), 3);
+        xmlWriter.writeString(CLUSTER_ID, "MOSQU", 3);
+
+        xmlWriter.writeName(TOPIC_BASE_64, TOPIC, encodedTopics.get(message.getTopic(), xmlWriter), 3);
+
+        xmlWriter.writeStringEncoded(RESPONSE_TOPIC, message.getResponseTopic(), 3);
+        xmlWriter.writeStringEncoded(CONTENT_TYPE, message.getContentType(), 3);
+        xmlWriter.writeBytes(MESSAGE, message.getPayload(), 3);
+        xmlWriter.writeBytes(CORRELATION_DATA, message.getCorrelationData(), 3);
+        xmlWriter.writeBoolean(RETAINED, message.getRetain(), 3);
     }
 
+    /**
+     * Writes all elements of a queued message between the qos and the subscription identifiers. They only depend on
+     * the stored message.
+     */
+    private void writeQueuedTail(final @NotNull BackupXmlWriter xmlWriter,
+                                 final @NotNull ChunkMsgStore message) {
 
-    private void writeQueued(final @NotNull XMLStreamWriter xmlStreamWriter,
-                             final @NotNull ChunkClientMessage clientMessage,
-                             final @NotNull ChunkMsgStore message) throws XMLStreamException {
+        xmlWriter.writeNumber(MESSAGE_EXPIRY, (message.getExpiryTime() == 0) ? 4_294_967_296L : (message.getExpiryTime() - timestamp / 1000), 3);
+        if (message.getPayloadFormatIndicator() != null) {
+            xmlWriter.writeNumber(PAYLOAD_FORMAT_INDICATOR, message.getPayloadFormatIndicator().getCode(), 3);
+        }
+        DataExportUtil.writeUserProperties(xmlWriter, message.getUserProperties(), 3);
+    }
 
-        DataExportUtil.writeSpaces(xmlStreamWriter, 2);
-        xmlStreamWriter.writeStartElement(QueuedMessageXML.QUEUED_MESSAGE_ELEMENT);
-        xmlStreamWriter.writeCharacters("\n");
+    private void writeSubscriptionInfo(final @NotNull BackupXmlWriter xmlWriter,
+                                       final @NotNull List<ChunkSubscription> subscriptions) {
 
-        DataExportUtil.writeNumber(xmlStreamWriter, System.currentTimeMillis(), EXPORTED_AT, 3);
-        DataExportUtil.writeString(xmlStreamWriter, QueuedMessageXML.QueuedMessageType.PUBLISH.getName(), QueuedMessageXML.TYPE, 3);
-        DataExportUtil.writeNumber(xmlStreamWriter, 0, MessageXML.PACKET_ID, 3);
-        DataExportUtil.writeBoolean(xmlStreamWriter, message.getRetain(), QueuedMessageXML.FROM_RETAINED_MESSAGE, 3);
-        DataExportUtil.writeNumber(xmlStreamWriter, message.getStoreId(), MessageXML.PUBLISH_ID, 3);
-        DataExportUtil.writeString(xmlStreamWriter, "MOSQU", MessageXML.CLUSTER_ID, 3);
+        if (subscriptions.isEmpty()) {
+            return;
+        }
 
-        final boolean mustEncode = DataExportUtil.mustEncode(message.getTopic());
-        DataExportUtil.writeBoolean(xmlStreamWriter, mustEncode, MessageXML.TOPIC_BASE_64, 3);
-        if (mustEncode) {
-            DataExportUtil.writeStringEncoded(xmlStreamWriter, message.getTopic(), MessageXML.TOPIC, 3);
-        } else {
-            DataExportUtil.writeString(xmlStreamWriter, message.getTopic(), MessageXML.TOPIC, 3);
+        xmlWriter.startElement(SUBSCRIPTIONS_ELEMENT, 1);
+        xmlWriter.newLine();
+        xmlWriter.newLine();
+
+        for (final @NotNull ChunkSubscription subscription : subscriptions) {
+            writeSubscription(xmlWriter, subscription);
         }
 
-        DataExportUtil.writeStringEncoded(xmlStreamWriter, message.getResponseTopic(), MessageXML.RESPONSE_TOPIC, 3);
-        DataExportUtil.writeStringEncoded(xmlStreamWriter, message.getContentType(), MessageXML.CONTENT_TYPE, 3);
-        DataExportUtil.writeBytes(xmlStreamWriter, message.getPayload(), MessageXML.MESSAGE, 3);
-        DataExportUtil.writeBytes(xmlStreamWriter, message.getCorrelationData(), MessageXML.CORRELATION_DATA, 3);
-        DataExportUtil.writeBoolean(xmlStreamWriter, message.getRetain(), MessageXML.RETAINED, 3);
-        DataExportUtil.writeBoolean(xmlStreamWriter, clientMessage.getRetainDuplicate(), MessageXML.DUPLICATE_DELIVERY, 3);
-        DataExportUtil.writeNumber(xmlStreamWriter, timestamp, MessageXML.TIMESTAMP, 3);
-        DataExportUtil.writeNumber(xmlStreamWriter, clientMessage.getQos(), MessageXML.QOS, 3);
-        DataExportUtil.writeNumber(xmlStreamWriter, (message.getExpiryTime() == 0) ? 4_294_967_296L : (message.getExpiryTime() - timestamp / 1000), MessageXML.MESSAGE_EXPIRY, 3);
-        DataExportUtil.writeNumber(xmlStreamWriter, message.getPayloadFormatIndicator() != null ? message.getPayloadFormatIndicator().getCode() : null, MessageXML.PAYLOAD_FORMAT_INDICATOR, 3);
-        DataExportUtil.writeUserProperties(xmlStreamWriter, message.getUserProperties(), 3);
-        DataExportUtil.writeSubscriptionIdentifiers(xmlStreamWriter, clientMessage.getSubscriptionIdentifier(), 3);
-
-        DataExportUtil.writeSpaces(xmlStreamWriter, 2);
-        xmlStreamWriter.writeEndElement();
-        xmlStreamWriter.writeCharacters("\n");
-        xmlStreamWriter.writeCharacters("\n");
+        xmlWriter.endElement(SUBSCRIPTIONS_ELEMENT, 1);
+        xmlWriter.newLine();
+        xmlWriter.newLine();
 
     }
 
-    private void writeClientSessionAttributes(final @NotNull XMLStreamWriter xmlStreamWriter,
+
+    private void writeClientSessionAttributes(final @NotNull BackupXmlWriter xmlWriter,
                                               final @NotNull ChunkClient client,
-                                              final long timestamp) throws XMLStreamException {
+                                              final long timestamp) {
 
         final boolean mustEncode = DataExportUtil.mustEncode(client.getClientId());
-        xmlStreamWriter.writeAttribute(ClientSessionXML.CLIENT_ID_BASE_64, String.valueOf(mustEncode));
+        xmlWriter.writeAttribute(CLIENT_ID_BASE_64, mustEncode);
         if (mustEncode) {
-            xmlStreamWriter.writeAttribute(ClientSessionXML.CLIENT_ID, BASE_64.encode(client.getClientId().getBytes(UTF_8)));
+            xmlWriter.writeAttributeEncoded(CLIENT_ID, client.getClientId());
         } else {
-            xmlStreamWriter.writeAttribute(ClientSessionXML.CLIENT_ID, client.getClientId());
+            xmlWriter.writeAttribute(CLIENT_ID, client.getClientId());
         }
         if (!client.isConnected()) {
-            xmlStreamWriter.writeAttribute(ClientSessionXML.DISCONNECTED_SINCE, String.valueOf(timestamp));
+            xmlWriter.writeAttribute(DISCONNECTED_SINCE, timestamp);
         }
-        xmlStreamWriter.writeAttribute(ClientSessionXML.SESSION_EXPIRY, String.valueOf(client.getSessionExpiryInterval()));
-        xmlStreamWriter.writeAttribute(GlobalXML.HIVEMQ_VERSION, hiveMqVersion);
-        xmlStreamWriter.writeAttribute(EXPORTED_AT, String.valueOf(System.currentTimeMillis()));
+        xmlWriter.writeAttribute(SESSION_EXPIRY, client.getSessionExpiryInterval());
+        xmlWriter.writeAttribute(HIVEMQ_VERSION, hiveMqVersion);
+        xmlWriter.writeAttribute(EXPORTED_AT, timestamp);
+        xmlWriter.closeStartTag();
 
-        xmlStreamWriter.writeCharacters("\n");
-        xmlStreamWriter.writeCharacters("\n");
+        xmlWriter.newLine();
+        xmlWriter.newLine();
     }
 
-    private void writeSubscription(final @NotNull XMLStreamWriter xmlStreamWriter, final @NotNull ChunkSubscription subscription) throws XMLStreamException {
+    private void writeSubscription(final @NotNull BackupXmlWriter xmlWriter, final @NotNull ChunkSubscription subscription) {
 
-        DataExportUtil.writeSpaces(xmlStreamWriter, 2);
-        xmlStreamWriter.writeStartElement(SubscriptionXML.SUBSCRIPTION_ELEMENT);
-        xmlStreamWriter.writeCharacters("\n");
+        xmlWriter.startElement(SUBSCRIPTION_ELEMENT, 2);
+        xmlWriter.newLine();
 
-        DataExportUtil.writeNumber(xmlStreamWriter, System.currentTimeMillis(), EXPORTED_AT, 3);
+        xmlWriter.writeNumber(EXPORTED_AT, timestamp, 3);
 
-        final boolean mustEncode = DataExportUtil.mustEncode(subscription.getTopic());
-        DataExportUtil.writeBoolean(xmlStreamWriter, mustEncode, MessageXML.TOPIC_BASE_64, 3);
-        if (mustEncode) {
-            DataExportUtil.writeStringEncoded(xmlStreamWriter, subscription.getTopic(), MessageXML.TOPIC, 3);
-        } else {
-            DataExportUtil.writeString(xmlStreamWriter, subscription.getTopic(), MessageXML.TOPIC, 3);
-        }
+        xmlWriter.writeName(TOPIC_BASE_64, TOPIC, encodedTopics.get(subscription.getTopic(), xmlWriter), 3);
 
-        DataExportUtil.writeNumber(xmlStreamWriter, subscription.getQos(), MessageXML.QOS, 3);
-        DataExportUtil.writeBoolean(xmlStreamWriter, subscription.isNoLocal(), SubscriptionXML.NO_LOCAL, 3);
-        DataExportUtil.writeBoolean(xmlStreamWriter, subscription.isRetainAsPublished(), SubscriptionXML.RETAIN_AS_PUBLISHED, 3);
-        DataExportUtil.writeNumber(xmlStreamWriter, subscription.getRetainHandling(), SubscriptionXML.RETAIN_HANDLING, 3);
-        DataExportUtil.writeNumber(xmlStreamWriter, (subscription.getIdentifier() == 0) ? null : subscription.getIdentifier(), MessageXML.SUBSCRIPTION_IDENTIFIER, 3);
+        xmlWriter.writeNumber(QOS, subscription.getQos(), 3);
+        xmlWriter.writeBoolean(NO_LOCAL, subscription.isNoLocal(), 3);
+        xmlWriter.writeBoolean(RETAIN_AS_PUBLISHED, subscription.isRetainAsPublished(), 3);
+        xmlWriter.writeNumber(RETAIN_HANDLING, subscription.getRetainHandling(), 3);
+        if (subscription.getIdentifier() != 0) {
+            xmlWriter.writeNumber(SUBSCRIPTION_IDENTIFIER, subscription.getIdentifier(), 3);
+        }
 
-        DataExportUtil.writeSpaces(xmlStreamWriter, 2);
-        xmlStreamWriter.writeEndElement();
-        xmlStreamWriter.writeCharacters("\n");
-        xmlStreamWriter.writeCharacters("\n");
+        xmlWriter.endElement(SUBSCRIPTION_ELEMENT, 2);
+        xmlWriter.newLine();
+        xmlWriter.newLine();
 
     }
 }
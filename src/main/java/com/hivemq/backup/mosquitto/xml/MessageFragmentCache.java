@@ -0,0 +1,94 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.xml;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Caches the serialized XML fragments of queued messages by their store id.
+ * <p>
+ * Mosquitto stores a message once and lets every subscriber refer to it, so the same topic, payload and properties
+ * would be serialized again for every client. The cache is bounded by the size of the cached bytes and evicts the
+ * least recently used fragments first. It is safe to use from several export workers.
+ *
+ * @since 1.0.0
+ */
+class MessageFragmentCache {
+
+    private final @NotNull Cache<Long, Fragments> cache;
+
+    /**
+     * Creates a MessageFragmentCache.
+     *
+     * @param maxSize The maximum amount of cached bytes.
+     */
+    MessageFragmentCache(final long maxSize) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxSize)
+                .weigher((Long storeId, Fragments fragments) -> fragments.getHead().length + fragments.getTail().length)
+                .build();
+    }
+
+    /**
+     * Returns the fragments of a stored message and renders them if they are not cached.
+     *
+     * @param storeId  The store id of the message.
+     * @param renderer Renders the fragments of the message.
+     * @return The fragments of the message.
+     */
+    @NotNull Fragments get(final long storeId, final @NotNull Callable<Fragments> renderer) {
+        try {
+            return cache.get(storeId, renderer);
+        } catch (final @NotNull ExecutionException | @NotNull UncheckedExecutionException ex) {
+            Throwables.throwIfUnchecked(ex.getCause());
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    /**
+     * The serialized parts of a queued message which only depend on the stored message.
+     */
+    static class Fragments {
+
+        private final @NotNull byte[] head;
+        private final @NotNull byte[] tail;
+
+        /**
+         * @param head All elements in front of the duplicate delivery flag.
+         * @param tail All elements between the qos and the subscription identifiers.
+         */
+        Fragments(final @NotNull byte[] head, final @NotNull byte[] tail) {
+            this.head = head;
+            this.tail = tail;
+        }
+
+        @NotNull byte[] getHead() {
+            return head;
+        }
+
+        @NotNull byte[] getTail() {
+            return tail;
+        }
+    }
+}
@@ -22,22 +22,25 @@ import com.hivemq.backup.mosquitto.db.ChunkMsgStore;
 import com.hivemq.backup.mosquitto.format.GlobalXML;
 import com.hivemq.backup.mosquitto.format.MessageXML;
 import com.hivemq.backup.mosquitto.format.RetainedMessageXML;
+import com.hivemq.backup.mosquitto.utils.BackupFingerprints;
+import com.hivemq.backup.mosquitto.utils.BackupXmlWriter;
+import com.hivemq.backup.mosquitto.utils.BackupXmlWriter.Tag;
 import com.hivemq.backup.mosquitto.utils.DataExportUtil;
-import org.apache.commons.io.FileUtils;
+import com.hivemq.backup.mosquitto.utils.ExportEvents;
+import com.hivemq.backup.mosquitto.utils.ExportSink;
+import com.hivemq.backup.mosquitto.utils.PreviousBackup;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.tinylog.Logger;
 
-import javax.xml.stream.XMLOutputFactory;
-import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.XMLStreamWriter;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.file.Path;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
-
-import static com.hivemq.backup.mosquitto.format.GlobalXML.EXPORTED_AT;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Florian Limpöck
@@ -47,158 +50,286 @@ import static com.hivemq.backup.mosquitto.format.GlobalXML.EXPORTED_AT;
 
 public class RetainedMessagesExporter {
 
-    private final @NotNull XMLOutputFactory factory = XMLOutputFactory.newInstance();
+    public static final @NotNull String RETAINED_FOLDER = "retained-messages/";
+    private static final int MESSAGE_BUFFER_SIZE = 8 * 1024;
+
+    private static final @NotNull Tag ROOT_ELEMENT = Tag.of(RetainedMessageXML.ROOT_ELEMENT);
+    private static final @NotNull Tag RETAINED_MESSAGE_ELEMENT = Tag.of(RetainedMessageXML.RETAINED_MESSAGE_ELEMENT);
+    private static final @NotNull Tag HIVEMQ_VERSION = Tag.of(GlobalXML.HIVEMQ_VERSION);
+    private static final @NotNull Tag EXPORTED_AT = Tag.of(GlobalXML.EXPORTED_AT);
+    private static final @NotNull Tag TOPIC_BASE_64 = Tag.of(MessageXML.TOPIC_BASE_64);
+    private static final @NotNull Tag TOPIC = Tag.of(MessageXML.TOPIC);
+    private static final @NotNull Tag TIMESTAMP = Tag.of(MessageXML.TIMESTAMP);
+    private static final @NotNull Tag MESSAGE = Tag.of(MessageXML.MESSAGE);
+    private static final @NotNull Tag QOS = Tag.of(MessageXML.QOS);
+    private static final @NotNull Tag MESSAGE_EXPIRY = Tag.of(MessageXML.MESSAGE_EXPIRY);
+    private static final @NotNull Tag CONTENT_TYPE = Tag.of(MessageXML.CONTENT_TYPE);
+    private static final @NotNull Tag RESPONSE_TOPIC = Tag.of(MessageXML.RESPONSE_TOPIC);
+    private static final @NotNull Tag CORRELATION_DATA = Tag.of(MessageXML.CORRELATION_DATA);
+    private static final @NotNull Tag PAYLOAD_FORMAT_INDICATOR = Tag.of(MessageXML.PAYLOAD_FORMAT_INDICATOR);
+
     private final long timestamp;
-    private final @NotNull Path fileSaveLocation;
+    private final @NotNull ExportSink sink;
     private final @NotNull String clusterId;
     private final @NotNull String hiveMqVersion;
     private final int maxFileSize;
-
-    private int filesWritten = 0;
-    private int filesDone = 0;
-
-    private @Nullable XMLStreamWriter xmlStreamWriter;
-    private FileOutputStream fileOutputStream;
+    private final int shards;
+    private final boolean prettyPrint;
+    private final @Nullable PreviousBackup previous;
+    private final @NotNull AtomicInteger reusedFiles = new AtomicInteger();
 
     /**
      * Creates a RetainedMessagesExporter.
      *
      * @param timestamp        Creation timestamp.
-     * @param fileSaveLocation The folder the retained messages get saved to.
+     * @param sink             The sink the retained messages get saved to.
      * @param clusterId        The HiveMQ cluster id.
      * @param hiveMqVersion    The used HiveMQ version.
      * @param maxFileSize      The maximum file size for a retained message XML file.
+     * @param shards           The amount of shards which are written in parallel.
+     * @param prettyPrint      Write line breaks and indentation between the XML elements.
+     * @param previous         A previous backup whose unchanged retained message files are copied, null to render all.
      */
     public RetainedMessagesExporter(final long timestamp,
-                                    final @NotNull Path fileSaveLocation,
+                                    final @NotNull ExportSink sink,
                                     final @NotNull String clusterId,
                                     final @NotNull String hiveMqVersion,
-                                    final int maxFileSize) {
+                                    final int maxFileSize,
+                                    final int shards,
+                                    final boolean prettyPrint,
+                                    final @Nullable PreviousBackup previous) {
+        Preconditions.checkArgument(shards > 0, "shard count must be positive");
         this.timestamp = timestamp;
-        this.fileSaveLocation = fileSaveLocation;
+        this.sink = sink;
         this.clusterId = clusterId;
         this.hiveMqVersion = hiveMqVersion;
         this.maxFileSize = maxFileSize;
+        this.shards = shards;
+        this.prettyPrint = prettyPrint;
+        this.previous = previous;
     }
 
     /**
      * Writes all retained messages to XML.
+     * <p>
+     * With a single shard the files are named {@code <clusterId>-retained-messages-<n>.xml}. With several shards every
+     * shard writes a contiguous part of the messages to {@code <clusterId>-retained-messages-<shard>-<n>.xml}.
+     * <p>
+     * The fingerprint of a file covers the chunks of the messages it contains in their order. A file of the previous
+     * backup is copied when the next messages have the same fingerprints, files with expiring messages are always
+     * rendered again.
      *
      * @param retainedMessages All retained messages.
+     * @throws IOException Thrown if a file can not be rendered or written.
      */
     @VisibleForTesting
-    public void writeToXml(final @Nullable List<ChunkMsgStore> retainedMessages) {
+    public void writeToXml(final @Nullable List<ChunkMsgStore> retainedMessages) throws IOException {
 
         if (retainedMessages == null || retainedMessages.size() == 0) {
             return;
         }
 
-        final @NotNull File retainedFolder = new File(fileSaveLocation.toFile(), "retained-messages");
-        final @NotNull String filePrefix = clusterId + "-retained-messages-";
-
-        try {
-            int index = ++filesWritten;
-            //check if written files equals the amount of done files, then create new stream writer
-            if (filesDone == index - 1) {
-
-                FileUtils.forceMkdir(retainedFolder);
+        final int shardCount = Math.min(shards, retainedMessages.size());
+        writeShards(retainedMessages, shardCount);
+        if (previous != null) {
+            Logger.info("Reused " + reusedFiles.get() + " retained message files of the previous backup.");
+        }
+    }
 
-                fileOutputStream = new FileOutputStream(new File(retainedFolder, filePrefix + index + ".xml"));
+    private void writeShards(final @NotNull List<ChunkMsgStore> retainedMessages, final int shardCount) throws IOException {
 
-                xmlStreamWriter = factory.createXMLStreamWriter(fileOutputStream);
-                xmlStreamWriter.writeStartDocument(); //  <?xml version="1.0" ?>
-                xmlStreamWriter.writeCharacters("\n");
+        if (shardCount == 1) {
+            writeShard(retainedMessages, RETAINED_FOLDER + clusterId + "-retained-messages-");
+            return;
+        }
 
-                xmlStreamWriter.writeStartElement(RetainedMessageXML.ROOT_ELEMENT);
-                xmlStreamWriter.writeAttribute(GlobalXML.HIVEMQ_VERSION, hiveMqVersion);
-                xmlStreamWriter.writeAttribute(EXPORTED_AT, String.valueOf(timestamp));
-                xmlStreamWriter.writeCharacters("\n");
+        final int shardSize = (retainedMessages.size() + shardCount - 1) / shardCount;
+        final @NotNull List<Callable<Void>> tasks = new ArrayList<>(shardCount);
+        for (int shard = 0; shard * shardSize < retainedMessages.size(); shard++) {
+            final @NotNull List<ChunkMsgStore> shardMessages =
+                    retainedMessages.subList(shard * shardSize, Math.min((shard + 1) * shardSize, retainedMessages.size()));
+            final @NotNull String filePrefix = RETAINED_FOLDER + clusterId + "-retained-messages-" + (shard + 1) + "-";
+            tasks.add(() -> {
+                writeShard(shardMessages, filePrefix);
+                return null;
+            });
+        }
 
-            } else {
-                //decrease file count again since the current is not full yet.
-                index = --filesWritten;
+        final @NotNull ExecutorService executorService = Executors.newFixedThreadPool(shardCount);
+        try {
+            for (final @NotNull Future<Void> future : executorService.invokeAll(tasks)) {
+                future.get();
             }
+        } catch (final @NotNull InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while rendering the retained messages.");
+        } catch (final @NotNull ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Could not render the retained messages: " + ex.getCause(), ex.getCause());
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
 
-            Preconditions.checkNotNull(fileOutputStream, "The output stream must never be null here");
-            Preconditions.checkNotNull(xmlStreamWriter, "The stream writer must never be null here");
-
-            for (final @Nullable ChunkMsgStore retainedMessage : retainedMessages) {
+    /**
+     * Writes the messages into consecutive files. Every message is rendered into the buffer of the XML writer, which is
+     * written to the file after the message and whenever it is full. A new file is started as soon as the current one
+     * exceeds the maximum file size.
+     */
+    private void writeShard(final @NotNull List<ChunkMsgStore> retainedMessages, final @NotNull String filePrefix) throws IOException {
+
+        final @NotNull BackupXmlWriter xmlWriter = new BackupXmlWriter(MESSAGE_BUFFER_SIZE, prettyPrint);
+        int index = 0;
+        long fileSize = 0;
+        long fileRecords = 0;
+        long fileFingerprint = 0;
+        boolean fileExpires = false;
+        @NotNull String fileName = "";
+        @Nullable OutputStream fileOutputStream = null;
+        @NotNull ExportEvents.RetainedFileWrite fileEvent = new ExportEvents.RetainedFileWrite();
+
+        int position = 0;
+        while (position < retainedMessages.size()) {
+            final @Nullable ChunkMsgStore retainedMessage = retainedMessages.get(position);
+
+            //we don't need tombstones.
+            if (retainedMessage == null /*|| retainedMessage.isDeleted()*/) {
+                position++;
+                continue;
+            }
 
-                //we don't need tombstones.
-                if (retainedMessage == null /*|| retainedMessage.isDeleted()*/) {
-                    // we don't want to iterate over tombstones again
+            xmlWriter.reset();
+            if (fileOutputStream == null) {
+                index++;
+                fileName = filePrefix + index + ".xml";
+                final int reusable = reusableMessages(retainedMessages, position, fileName);
+                if (reusable > 0) {
+                    sink.copy(Objects.requireNonNull(previous), fileName);
+                    reusedFiles.incrementAndGet();
+                    position += reusable;
                     continue;
                 }
+                fileOutputStream = sink.open(fileName);
+                xmlWriter.setOutput(fileOutputStream);
+                fileEvent = new ExportEvents.RetainedFileWrite();
+                fileSize = 0;
+                fileRecords = 0;
+                fileFingerprint = fingerprintSeed();
+                fileExpires = false;
+                writeStart(xmlWriter);
+            }
 
-                writeRetainedMessage(Objects.requireNonNull(xmlStreamWriter), retainedMessage, timestamp);
-
-                final @NotNull File file = new File(retainedFolder, filePrefix + index + ".xml");
-
-                if (file.length() > maxFileSize) {
-                    xmlStreamWriter.writeCharacters("\n");
-                    xmlStreamWriter.writeEndElement();
-                    xmlStreamWriter.close();
-                    fileOutputStream.close();
-                    filesDone = index;
-                    if (retainedMessages.isEmpty()) {
-                        return;
-                    }
-                    writeToXml(retainedMessages);
-                    break;
-                }
+            writeRetainedMessage(xmlWriter, retainedMessage, timestamp);
+            fileFingerprint = BackupFingerprints.mix(fileFingerprint, retainedMessage.getFingerprint());
+            fileExpires |= retainedMessage.getExpiryTime() != 0;
+            position++;
+
+            xmlWriter.flush();
+            fileSize += xmlWriter.size();
+            fileRecords++;
+            if (fileSize > maxFileSize) {
+                xmlWriter.reset();
+                writeEnd(xmlWriter);
+                xmlWriter.flush();
+                finishFile(fileName, fileRecords, fileExpires ? null : fileFingerprint);
+                fileOutputStream.close();
+                fileOutputStream = null;
+                fileEvent.finish(fileName, fileRecords, fileSize, true);
             }
-            xmlStreamWriter.writeCharacters("\n");
-            xmlStreamWriter.writeEndElement();
-            xmlStreamWriter.close();
+        }
+
+        if (fileOutputStream != null) {
+            xmlWriter.reset();
+            writeEnd(xmlWriter);
+            xmlWriter.flush();
+            finishFile(fileName, fileRecords, fileExpires ? null : fileFingerprint);
             fileOutputStream.close();
+            fileEvent.finish(fileName, fileRecords, fileSize, false);
+        }
+    }
 
-        } catch (final @NotNull Exception ex) {
-            ex.printStackTrace();
-            if (xmlStreamWriter != null && fileOutputStream != null) {
-                try {
-                    xmlStreamWriter.close();
-                } catch (final XMLStreamException e) {
-                    e.printStackTrace();
-                }
-                try {
-                    fileOutputStream.close();
-                } catch (final IOException e) {
-                    e.printStackTrace();
-                }
+    private void finishFile(final @NotNull String fileName, final long records, final @Nullable Long fingerprint) {
+        sink.addRecords(fileName, records);
+        if (fingerprint != null) {
+            sink.addFingerprint(fileName, fingerprint);
+        }
+    }
+
+    private long fingerprintSeed() {
+        return prettyPrint ? 1 : 0;
+    }
+
+    /**
+     * Checks if a file of the previous backup contains exactly the next messages, unchanged.
+     *
+     * @return The amount of list positions the file covers, including tombstones, 0 if it has to be rendered again.
+     */
+    private int reusableMessages(final @NotNull List<ChunkMsgStore> retainedMessages,
+                                 final int start,
+                                 final @NotNull String fileName) {
+
+        if (previous == null || !previous.contains(fileName)) {
+            return 0;
+        }
+        final long records = previous.getRecords(fileName);
+        long fingerprint = fingerprintSeed();
+        boolean expires = false;
+        long found = 0;
+        int position = start;
+        while (found < records && position < retainedMessages.size()) {
+            final @Nullable ChunkMsgStore retainedMessage = retainedMessages.get(position++);
+            if (retainedMessage == null) {
+                continue;
             }
+            fingerprint = BackupFingerprints.mix(fingerprint, retainedMessage.getFingerprint());
+            expires |= retainedMessage.getExpiryTime() != 0;
+            found++;
         }
+        return (found == records && previous.isUnchanged(fileName, expires ? null : fingerprint)) ? position - start : 0;
     }
 
-    private void writeRetainedMessage(final @NotNull XMLStreamWriter xmlStreamWriter, final @NotNull ChunkMsgStore retainedMessage, final long timestamp) throws XMLStreamException {
+    private void writeStart(final @NotNull BackupXmlWriter xmlWriter) {
+        xmlWriter.startDocument(); //  <?xml version="1.0" ?>
+        xmlWriter.newLine();
+
+        xmlWriter.startElementWithAttributes(ROOT_ELEMENT);
+        xmlWriter.writeAttribute(HIVEMQ_VERSION, hiveMqVersion);
+        xmlWriter.writeAttribute(EXPORTED_AT, timestamp);
+        xmlWriter.closeStartTag();
+        xmlWriter.newLine();
+    }
+
+    private void writeEnd(final @NotNull BackupXmlWriter xmlWriter) {
+        xmlWriter.newLine();
+        xmlWriter.endElement(ROOT_ELEMENT, 0);
+    }
+
+    private void writeRetainedMessage(final @NotNull BackupXmlWriter xmlWriter, final @NotNull ChunkMsgStore retainedMessage, final long timestamp) {
+
+        xmlWriter.newLine();
+        xmlWriter.startElement(RETAINED_MESSAGE_ELEMENT, 1);
+        xmlWriter.newLine();
 
-        xmlStreamWriter.writeCharacters("\n");
-        DataExportUtil.writeSpaces(xmlStreamWriter, 1);
-        xmlStreamWriter.writeStartElement(RetainedMessageXML.RETAINED_MESSAGE_ELEMENT);
-        xmlStreamWriter.writeCharacters("\n");
+        xmlWriter.writeNumber(EXPORTED_AT, timestamp, 2);
 
-        DataExportUtil.writeNumber(xmlStreamWriter, timestamp, EXPORTED_AT, 2);
+        xmlWriter.writeName(TOPIC_BASE_64, TOPIC, retainedMessage.getTopic(), 2);
 
-        final boolean mustEncode = DataExportUtil.mustEncode(retainedMessage.getTopic());
-        DataExportUtil.writeBoolean(xmlStreamWriter, mustEncode, MessageXML.TOPIC_BASE_64, 2);
-        if (mustEncode) {
-            DataExportUtil.writeStringEncoded(xmlStreamWriter, retainedMessage.getTopic(), MessageXML.TOPIC, 2);
-        } else {
-            DataExportUtil.writeString(xmlStreamWriter, retainedMessage.getTopic(), MessageXML.TOPIC, 2);
+        xmlWriter.writeNumber(TIMESTAMP, timestamp, 2);
+        xmlWriter.writeBytes(MESSAGE, retainedMessage.getPayload(), 2);
+        xmlWriter.writeNumber(QOS, retainedMessage.getQos(), 2);
+        xmlWriter.writeNumber(MESSAGE_EXPIRY, (retainedMessage.getExpiryTime() == 0) ? 4_294_967_296L : (retainedMessage.getExpiryTime() - timestamp / 1000), 2);
+        xmlWriter.writeStringEncoded(CONTENT_TYPE, retainedMessage.getContentType(), 2);
+        xmlWriter.writeStringEncoded(RESPONSE_TOPIC, retainedMessage.getResponseTopic(), 2);
+        xmlWriter.writeBytes(CORRELATION_DATA, retainedMessage.getCorrelationData(), 2);
+        if (retainedMessage.getPayloadFormatIndicator() != null) {
+            xmlWriter.writeNumber(PAYLOAD_FORMAT_INDICATOR, retainedMessage.getPayloadFormatIndicator().getCode(), 2);
         }
+        DataExportUtil.writeUserProperties(xmlWriter, retainedMessage.getUserProperties(), 2);
 
-        DataExportUtil.writeNumber(xmlStreamWriter, timestamp, MessageXML.TIMESTAMP, 2);
-        DataExportUtil.writeBytes(xmlStreamWriter, retainedMessage.getPayload(), MessageXML.MESSAGE, 2);
-        DataExportUtil.writeNumber(xmlStreamWriter, retainedMessage.getQos(), MessageXML.QOS, 2);
-        DataExportUtil.writeNumber(xmlStreamWriter, (retainedMessage.getExpiryTime() == 0) ? 4_294_967_296L : (retainedMessage.getExpiryTime() - timestamp / 1000), MessageXML.MESSAGE_EXPIRY, 2);
-        DataExportUtil.writeStringEncoded(xmlStreamWriter, retainedMessage.getContentType(), MessageXML.CONTENT_TYPE, 2);
-        DataExportUtil.writeStringEncoded(xmlStreamWriter, retainedMessage.getResponseTopic(), MessageXML.RESPONSE_TOPIC, 2);
-        DataExportUtil.writeBytes(xmlStreamWriter, retainedMessage.getCorrelationData(), MessageXML.CORRELATION_DATA, 2);
-        DataExportUtil.writeNumber(xmlStreamWriter, retainedMessage.getPayloadFormatIndicator() != null ? retainedMessage.getPayloadFormatIndicator().getCode() : null, MessageXML.PAYLOAD_FORMAT_INDICATOR, 2);
-        DataExportUtil.writeUserProperties(xmlStreamWriter, retainedMessage.getUserProperties(), 2);
-
-        DataExportUtil.writeSpaces(xmlStreamWriter, 1);
-        xmlStreamWriter.writeEndElement();
-        xmlStreamWriter.writeCharacters("\n");
+        xmlWriter.endElement(RETAINED_MESSAGE_ELEMENT, 1);
+        xmlWriter.newLine();
 
     }
 
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto;
+
+import com.hivemq.backup.mosquitto.extension.TemporaryFolderExtension;
+import com.hivemq.backup.mosquitto.util.MosquittoDbBuilder;
+import com.hivemq.backup.mosquitto.util.XmlExtractorUtil;
+import com.hivemq.backup.mosquitto.utils.BackupFingerprints;
+import com.hivemq.backup.mosquitto.utils.BackupManifest;
+import com.hivemq.backup.mosquitto.utils.BackupVerifier;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that files which exceed the buffer memory are streamed into the backup with the same content, whether they
+ * are rendered, stored without compression or copied from a previous backup.
+ *
+ * @since 1.0.0
+ */
+@ExtendWith(TemporaryFolderExtension.class)
+class TestBufferMemory {
+
+    private static final int LARGE_PAYLOAD = 3 * 1024 * 1024;
+
+    private Path currentTemporaryFolder;
+
+    @RegisterExtension
+    TemporaryFolderExtension temporaryFolder = new TemporaryFolderExtension(this.getClass().getResource(".").getPath());
+
+    @BeforeEach
+    void setup() throws IOException {
+        currentTemporaryFolder = temporaryFolder.newFolder().toPath();
+    }
+
+    @Test
+    void bufferMemory_exceeded_filesAreStreamedUnchanged() throws Exception {
+        final Path db = database().write(currentTemporaryFolder.resolve("mosquitto.db"));
+
+        final SortedMap<String, String> expected = createVerifiedBackup(db, "buffered");
+        assertTrue(expected.get("client-sessions/MOSQU-large-client-0.xml").length() > LARGE_PAYLOAD);
+        // every file is spilled
+        assertEquals(expected, createVerifiedBackup(db, "spilled", "-bm", "0"));
+        // only the large session is spilled and stored as it is
+        assertEquals(expected, createVerifiedBackup(db, "stored", "-bm", "1000000", "-c", "STORE"));
+    }
+
+    @Test
+    void previous_largeFile_isStreamedFromThePreviousBackup() throws Exception {
+        final Path db = database().write(currentTemporaryFolder.resolve("mosquitto.db"));
+
+        final List<Path> first = XmlExtractorUtil.createBackups(db, currentTemporaryFolder.resolve("first"), "-bm", "0");
+        assertEquals(1, first.size());
+        final List<Path> second = XmlExtractorUtil.createBackups(db, currentTemporaryFolder.resolve("second"),
+                "-p", first.get(0).toString());
+        assertEquals(1, second.size());
+
+        assertTrue(new BackupVerifier(second.get(0), 2).verify());
+        final String largeSession = "client-sessions/MOSQU-large-client-0.xml";
+        assertEquals(XmlExtractorUtil.readBackup(first.get(0), false).get(largeSession),
+                XmlExtractorUtil.readBackup(second.get(0), false).get(largeSession));
+    }
+
+    private SortedMap<String, String> createVerifiedBackup(final Path db, final String folder, final String... options) throws Exception {
+        final List<Path> backups = XmlExtractorUtil.createBackups(db, currentTemporaryFolder.resolve(folder), options);
+        assertEquals(1, backups.size());
+        assertTrue(new BackupVerifier(backups.get(0), 2).verify());
+        final SortedMap<String, String> files = XmlExtractorUtil.readBackup(backups.get(0));
+        // their hashes cover the export times
+        files.remove(BackupManifest.NAME);
+        files.remove(BackupFingerprints.NAME);
+        return files;
+    }
+
+    /**
+     * A small broker and a client with a queued message that is larger than the buffer memory of the tests and
+     * compresses badly.
+     */
+    private static MosquittoDbBuilder database() {
+        final Random random = new Random(1);
+        final StringBuilder payload = new StringBuilder(LARGE_PAYLOAD);
+        for (int i = 0; i < LARGE_PAYLOAD; i++) {
+            payload.append((char) ('!' + random.nextInt(90)));
+        }
+        return MosquittoDbBuilder.broker(20, 5)
+                .msgStore(1000, "large/topic", payload.toString(), false)
+                .clientMessage(1000, 1, "large-client", 1)
+                .client("large-client", MosquittoDbBuilder.SESSION_NEVER_EXPIRES);
+    }
+}
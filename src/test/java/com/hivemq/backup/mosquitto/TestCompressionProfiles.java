@@ -0,0 +1,137 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto;
+
+import com.hivemq.backup.mosquitto.extension.TemporaryFolderExtension;
+import com.hivemq.backup.mosquitto.util.MosquittoDbBuilder;
+import com.hivemq.backup.mosquitto.util.XmlExtractorUtil;
+import com.hivemq.backup.mosquitto.utils.BackupFingerprints;
+import com.hivemq.backup.mosquitto.utils.BackupManifest;
+import com.hivemq.backup.mosquitto.utils.BackupVerifier;
+import com.hivemq.backup.mosquitto.utils.CompressionProfile;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that every compression profile creates a readable backup with the same files and that the AUTO profile
+ * switches to the chosen profile once it has sampled enough entries.
+ *
+ * @since 1.0.0
+ */
+@ExtendWith(TemporaryFolderExtension.class)
+class TestCompressionProfiles {
+
+    private Path currentTemporaryFolder;
+
+    @RegisterExtension
+    TemporaryFolderExtension temporaryFolder = new TemporaryFolderExtension(this.getClass().getResource(".").getPath());
+
+    @BeforeEach
+    void setup() throws IOException {
+        currentTemporaryFolder = temporaryFolder.newFolder().toPath();
+    }
+
+    @ParameterizedTest
+    @EnumSource(CompressionProfile.class)
+    void compression_everyProfile_readableBackupWithSameFiles(final CompressionProfile profile) throws Exception {
+        final Path db = MosquittoDbBuilder.broker(50, 5).write(currentTemporaryFolder.resolve("mosquitto.db"));
+
+        final Path expected = createVerifiedBackup(db, "expected", "-c", CompressionProfile.STORE.name());
+        final Path backup = createVerifiedBackup(db, profile.name(), "-c", profile.name());
+        assertEquals(xmlFiles(expected), xmlFiles(backup));
+
+        final Set<Integer> methods = methods(backup);
+        if (profile == CompressionProfile.STORE) {
+            assertEquals(Set.of(ZipEntry.STORED), methods);
+        } else {
+            assertTrue(methods.contains(ZipEntry.DEFLATED), methods.toString());
+        }
+    }
+
+    @Test
+    void compression_auto_switchesToChosenProfileAfterSampling() throws Exception {
+        // more than the 8 MiB AUTO samples, in entries of 1 MiB which compress badly
+        final Random random = new Random(1);
+        final MosquittoDbBuilder builder = MosquittoDbBuilder.broker(10, 5);
+        for (int i = 0; i < 16; i++) {
+            final StringBuilder payload = new StringBuilder();
+            for (int j = 0; j < 1024 * 1024; j++) {
+                payload.append((char) ('!' + random.nextInt(90)));
+            }
+            builder.msgStore(1000 + i, "large/topic", payload.toString(), false)
+                    .clientMessage(1000 + i, 1, "large-client-" + i, 1)
+                    .client("large-client-" + i, MosquittoDbBuilder.SESSION_NEVER_EXPIRES);
+        }
+        final Path db = builder.write(currentTemporaryFolder.resolve("mosquitto.db"));
+
+        // with an unlimited bandwidth not compressing at all is the fastest
+        final Path backup = createVerifiedBackup(db, "auto", "-c", CompressionProfile.AUTO.name(),
+                "--target-bandwidth", String.valueOf(Long.MAX_VALUE / 2));
+        // the sampled entries are written with the fast profile, the entries afterwards are stored
+        assertEquals(Set.of(ZipEntry.STORED, ZipEntry.DEFLATED), methods(backup));
+    }
+
+    private Path createVerifiedBackup(final Path db, final String folder, final String... options) throws Exception {
+        final List<Path> backups = XmlExtractorUtil.createBackups(db, currentTemporaryFolder.resolve(folder), options);
+        assertEquals(1, backups.size());
+        assertTrue(new BackupVerifier(backups.get(0), 2).verify());
+        return backups.get(0);
+    }
+
+    private static SortedMap<String, String> xmlFiles(final Path backup) throws IOException {
+        final SortedMap<String, String> files = XmlExtractorUtil.readBackup(backup);
+        // their hashes cover the export times
+        files.remove(BackupManifest.NAME);
+        files.remove(BackupFingerprints.NAME);
+        return files;
+    }
+
+    /**
+     * @return The compression methods of the files of a backup.
+     */
+    private static Set<Integer> methods(final Path backup) throws IOException {
+        final Set<Integer> methods = new HashSet<>();
+        try (final ZipFile zip = new ZipFile(backup.toFile())) {
+            final Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                if (!entry.isDirectory()) {
+                    methods.add(entry.getMethod());
+                }
+            }
+        }
+        return methods;
+    }
+}
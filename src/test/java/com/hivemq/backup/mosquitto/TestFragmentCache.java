@@ -0,0 +1,114 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto;
+
+import com.hivemq.backup.mosquitto.extension.TemporaryFolderExtension;
+import com.hivemq.backup.mosquitto.util.MosquittoDbBuilder;
+import com.hivemq.backup.mosquitto.util.XmlExtractorUtil;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the cached fragments of messages which are queued for several clients give the same client sessions as
+ * messages which are rendered for every client.
+ *
+ * @since 1.0.0
+ */
+@ExtendWith(TemporaryFolderExtension.class)
+class TestFragmentCache {
+
+    private static final int SHARED_CLIENTS = 8;
+
+    private Path currentTemporaryFolder;
+
+    @RegisterExtension
+    TemporaryFolderExtension temporaryFolder = new TemporaryFolderExtension(this.getClass().getResource(".").getPath());
+
+    @BeforeEach
+    void setup() throws IOException {
+        currentTemporaryFolder = temporaryFolder.newFolder().toPath();
+    }
+
+    @Test
+    void fragmentCache_sharedMessages_sameXmlAsWithoutCache() throws IOException {
+        final Path db = database().write(currentTemporaryFolder.resolve("mosquitto.db"));
+
+        final SortedMap<String, String> uncached = xmlFiles(db, "uncached", "-fc", "0");
+        for (int i = 0; i < SHARED_CLIENTS; i++) {
+            final String session = uncached.get("client-sessions/MOSQU-shared-" + i + "-0.xml");
+            assertTrue(session.contains(base64("shared-payload-1")) && session.contains(base64("shared-payload-2")), session);
+        }
+        assertEquals(uncached, xmlFiles(db, "cached"));
+        // a cache which is too small for the fragments of both messages
+        assertEquals(uncached, xmlFiles(db, "small", "-fc", "600"));
+        assertEquals(uncached, xmlFiles(db, "threads", "-t", "4"));
+    }
+
+    @Test
+    void fragmentCache_negativeSize_noBackup() throws IOException {
+        final Path db = database().write(currentTemporaryFolder.resolve("mosquitto.db"));
+
+        assertEquals(List.of(), XmlExtractorUtil.createBackups(db, currentTemporaryFolder.resolve("negative"), "-fc", "-1"));
+    }
+
+    private SortedMap<String, String> xmlFiles(final Path db, final String folder, final String... options) throws IOException {
+        final List<Path> backups = XmlExtractorUtil.createBackups(db, currentTemporaryFolder.resolve(folder), options);
+        assertEquals(1, backups.size());
+        final SortedMap<String, String> xmlFiles = new TreeMap<>();
+        for (final Map.Entry<String, String> file : XmlExtractorUtil.readBackup(backups.get(0)).entrySet()) {
+            if (file.getKey().endsWith(".xml")) {
+                xmlFiles.put(file.getKey(), file.getValue());
+            }
+        }
+        return xmlFiles;
+    }
+
+    private static String base64(final String payload) {
+        return Base64.getEncoder().encodeToString(payload.getBytes(UTF_8));
+    }
+
+    /**
+     * A small broker and two messages which are queued for several clients, each with its own packet id and QoS.
+     */
+    private static MosquittoDbBuilder database() {
+        final MosquittoDbBuilder db = MosquittoDbBuilder.broker(10, 2)
+                .msgStore(1000, "shared/topic", "shared-payload-1", false)
+                .msgStore(1001, "shared/topic with space", "shared-payload-2", false);
+        for (int i = 0; i < SHARED_CLIENTS; i++) {
+            final String clientId = "shared-" + i;
+            db.clientMessage(1000, 10 + i, clientId, i % 3)
+                    .clientMessage(1001, 100 + i, clientId, (i + 1) % 3)
+                    .subscription(clientId, "shared/#", 2)
+                    .client(clientId, MosquittoDbBuilder.SESSION_NEVER_EXPIRES);
+        }
+        return db;
+    }
+}
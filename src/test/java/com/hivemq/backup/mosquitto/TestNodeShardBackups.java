@@ -0,0 +1,84 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto;
+
+import com.hivemq.backup.mosquitto.extension.TemporaryFolderExtension;
+import com.hivemq.backup.mosquitto.util.MosquittoDbBuilder;
+import com.hivemq.backup.mosquitto.util.XmlExtractorUtil;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Checks that the backups of the nodes together hold exactly the client sessions of the single node backup.
+ *
+ * @since 1.0.0
+ */
+@ExtendWith(TemporaryFolderExtension.class)
+class TestNodeShardBackups {
+
+    private Path currentTemporaryFolder;
+
+    @RegisterExtension
+    TemporaryFolderExtension temporaryFolder = new TemporaryFolderExtension(this.getClass().getResource(".").getPath());
+
+    @BeforeEach
+    void setup() throws IOException {
+        currentTemporaryFolder = temporaryFolder.newFolder().toPath();
+    }
+
+    @Test
+    void nodeShards_unionOfNodeBackups_equalsSingleNodeBackup() throws IOException {
+        final Path db = MosquittoDbBuilder.broker(200, 20).write(currentTemporaryFolder.resolve("mosquitto.db"));
+
+        final List<Path> singleNode = XmlExtractorUtil.createBackups(db, currentTemporaryFolder.resolve("single"));
+        assertEquals(1, singleNode.size());
+        final SortedMap<String, String> singleNodeBackup = XmlExtractorUtil.readBackup(singleNode.get(0));
+        final List<String> expectedSessions = XmlExtractorUtil.contents(singleNodeBackup, "client-sessions/");
+        assertEquals(200, expectedSessions.size());
+
+        final List<Path> nodes = XmlExtractorUtil.createBackups(db, currentTemporaryFolder.resolve("nodes"), "-ns", "3");
+        assertEquals(3, nodes.size());
+        final List<String> sessions = new ArrayList<>();
+        for (final Path node : nodes) {
+            final List<String> nodeSessions = XmlExtractorUtil.contents(XmlExtractorUtil.readBackup(node), "client-sessions/");
+            assertFalse(nodeSessions.isEmpty(), node + " holds no client sessions");
+            sessions.addAll(nodeSessions);
+        }
+        // every session is in exactly one node backup
+        Collections.sort(sessions);
+        assertEquals(expectedSessions, sessions);
+
+        // the retained messages are only in the backup of the first node
+        assertEquals(XmlExtractorUtil.contents(singleNodeBackup, "retained-messages/"),
+                XmlExtractorUtil.contents(XmlExtractorUtil.readBackup(nodes.get(0)), "retained-messages/"));
+        for (final Path node : nodes.subList(1, nodes.size())) {
+            assertEquals(List.of(), XmlExtractorUtil.contents(XmlExtractorUtil.readBackup(node), "retained-messages/"));
+        }
+    }
+}
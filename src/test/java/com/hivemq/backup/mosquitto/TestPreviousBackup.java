@@ -0,0 +1,118 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto;
+
+import com.hivemq.backup.mosquitto.extension.TemporaryFolderExtension;
+import com.hivemq.backup.mosquitto.util.MosquittoDbBuilder;
+import com.hivemq.backup.mosquitto.util.XmlExtractorUtil;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.List;
+import java.util.SortedMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks which client sessions a backup copies from the previous backup ({@code -p}).
+ *
+ * @since 1.0.0
+ */
+@ExtendWith(TemporaryFolderExtension.class)
+class TestPreviousBackup {
+
+    private static final int CLIENTS = 20;
+
+    private Path currentTemporaryFolder;
+
+    @RegisterExtension
+    TemporaryFolderExtension temporaryFolder = new TemporaryFolderExtension(this.getClass().getResource(".").getPath());
+
+    @BeforeEach
+    void setup() throws IOException {
+        currentTemporaryFolder = temporaryFolder.newFolder().toPath();
+    }
+
+    @Test
+    void previous_unchangedSessions_areCopied_expiringSessionsAreRenderedAgain() throws Exception {
+        final Path firstDb = database(false).write(currentTemporaryFolder.resolve("first.db"));
+        final Path secondDb = database(true).write(currentTemporaryFolder.resolve("second.db"));
+
+        final List<Path> first = XmlExtractorUtil.createBackups(firstDb, currentTemporaryFolder.resolve("first"));
+        assertEquals(1, first.size());
+        // the reused sessions keep their export time, the rendered ones get the time of the second export
+        Thread.sleep(1100);
+        final List<Path> second = XmlExtractorUtil.createBackups(secondDb, currentTemporaryFolder.resolve("second"),
+                "-p", first.get(0).toString());
+        assertEquals(1, second.size());
+
+        final SortedMap<String, String> firstFiles = XmlExtractorUtil.readBackup(first.get(0), false);
+        final SortedMap<String, String> secondFiles = XmlExtractorUtil.readBackup(second.get(0), false);
+        assertEquals(firstFiles.keySet(), secondFiles.keySet());
+
+        for (int i = 1; i < CLIENTS; i++) {
+            final String name = sessionFile("client-" + i);
+            assertEquals(firstFiles.get(name), secondFiles.get(name), name + " is not reused");
+        }
+        // changed since the first backup
+        final String changed = secondFiles.get(sessionFile("client-0"));
+        assertNotEquals(firstFiles.get(sessionFile("client-0")), changed);
+        assertTrue(changed.contains(Base64.getEncoder().encodeToString("payload-0-3".getBytes(UTF_8))), changed);
+        // unchanged, but their XML depends on the time of the export
+        assertNotEquals(firstFiles.get(sessionFile("expiring-session")), secondFiles.get(sessionFile("expiring-session")));
+        assertNotEquals(firstFiles.get(sessionFile("expiring-message")), secondFiles.get(sessionFile("expiring-message")));
+
+        // apart from the export times the second backup is the same as a backup without -p
+        final List<Path> fresh = XmlExtractorUtil.createBackups(secondDb, currentTemporaryFolder.resolve("fresh"));
+        final SortedMap<String, String> reusedFiles = XmlExtractorUtil.readBackup(second.get(0));
+        final SortedMap<String, String> freshFiles = XmlExtractorUtil.readBackup(fresh.get(0));
+        // the remaining expiry of the message counts down between the two exports
+        reusedFiles.remove(sessionFile("expiring-message"));
+        freshFiles.remove(sessionFile("expiring-message"));
+        assertEquals(XmlExtractorUtil.contents(freshFiles, "client-sessions/"), XmlExtractorUtil.contents(reusedFiles, "client-sessions/"));
+        assertEquals(XmlExtractorUtil.contents(freshFiles, "retained-messages/"), XmlExtractorUtil.contents(reusedFiles, "retained-messages/"));
+    }
+
+    /**
+     * The broker with a session which expires and one with a message which expires, the second database queues another
+     * message for the first client.
+     */
+    private static MosquittoDbBuilder database(final boolean changed) {
+        final long expiryTime = System.currentTimeMillis() / 1000 + 3600;
+        final MosquittoDbBuilder db = MosquittoDbBuilder.broker(CLIENTS, 5)
+                .msgStore(1000, "expiring", "expiring-session", false).clientMessage(1000, 1, "expiring-session", 1)
+                .client("expiring-session", 3600)
+                .msgStore(1001, "expiring", "expiring-message", false, expiryTime).clientMessage(1001, 1, "expiring-message", 1)
+                .client("expiring-message", MosquittoDbBuilder.SESSION_NEVER_EXPIRES);
+        if (changed) {
+            db.msgStore(1002, "topic/0", "payload-0-3", false).clientMessage(1002, 3, "client-0", 1);
+        }
+        return db;
+    }
+
+    private static String sessionFile(final String clientId) {
+        return "client-sessions/MOSQU-" + clientId + "-0.xml";
+    }
+}
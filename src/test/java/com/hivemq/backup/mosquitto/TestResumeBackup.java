@@ -0,0 +1,123 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto;
+
+import com.hivemq.backup.mosquitto.extension.TemporaryFolderExtension;
+import com.hivemq.backup.mosquitto.util.MosquittoDbBuilder;
+import com.hivemq.backup.mosquitto.util.XmlExtractorUtil;
+import com.hivemq.backup.mosquitto.utils.BackupJournal;
+import com.hivemq.backup.mosquitto.utils.BackupNames;
+import com.hivemq.backup.mosquitto.utils.BackupVerifier;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.StringJoiner;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that an interrupted backup is completed from its journal ({@code --resume}).
+ *
+ * @since 1.0.0
+ */
+@ExtendWith(TemporaryFolderExtension.class)
+class TestResumeBackup {
+
+    private Path currentTemporaryFolder;
+
+    @RegisterExtension
+    TemporaryFolderExtension temporaryFolder = new TemporaryFolderExtension(this.getClass().getResource(".").getPath());
+
+    @BeforeEach
+    void setup() throws IOException {
+        currentTemporaryFolder = temporaryFolder.newFolder().toPath();
+    }
+
+    @Test
+    void resume_interruptedBackup_isCompletedAndVerifies() throws Exception {
+        final Path db = MosquittoDbBuilder.broker(300, 20).write(currentTemporaryFolder.resolve("mosquitto.db"));
+        final Path output = currentTemporaryFolder.resolve("backup");
+
+        // a folder where a kept session file belongs interrupts the export, whenever within the next minutes it starts
+        final long now = System.currentTimeMillis();
+        for (long time = now - 1000; time < now + 180_000; time += 1000) {
+            final String exportFolder = BackupNames.convertTimeStamp(time).format(DateTimeFormatter.ofPattern(BackupNames.EXPORT_DATE_FORMAT));
+            Files.createDirectories(output.resolve(exportFolder).resolve("client-sessions/MOSQU-client-250-0.xml"));
+        }
+        // a failed export exits the process
+        final Process export = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", classPath(), XmlFromMosquittoDB.class.getName(),
+                "-i", db.toString(), "-o", output.toString(), "-pi", "0", "-k", "-t", "1")
+                .inheritIO()
+                .start();
+        assertEquals(1, export.waitFor());
+
+        final Path journal = BackupJournal.findLatest(output);
+        assertNotNull(journal, "the interrupted backup has no journal");
+        final long finishedEntries;
+        try (final Stream<String> lines = Files.lines(journal)) {
+            finishedEntries = lines.filter(line -> line.startsWith("entry ")).count();
+        }
+        assertTrue(finishedEntries > 0, "the interrupted backup has no finished entries");
+
+        final List<Path> resumed = XmlExtractorUtil.createBackups(db, output, "--resume");
+        assertEquals(1, resumed.size());
+        assertEquals(journal.getParent(), resumed.get(0).getParent());
+        assertFalse(Files.exists(journal));
+        try (final Stream<Path> files = Files.list(journal.getParent())) {
+            assertTrue(files.noneMatch(file -> file.toString().endsWith(".partial")));
+        }
+        assertTrue(new BackupVerifier(resumed.get(0), 2).verify());
+
+        final List<Path> fresh = XmlExtractorUtil.createBackups(db, currentTemporaryFolder.resolve("fresh"));
+        final SortedMap<String, String> resumedFiles = XmlExtractorUtil.readBackup(resumed.get(0));
+        final SortedMap<String, String> freshFiles = XmlExtractorUtil.readBackup(fresh.get(0));
+        assertEquals(300, XmlExtractorUtil.contents(resumedFiles, "client-sessions/").size());
+        assertEquals(XmlExtractorUtil.contents(freshFiles, "client-sessions/"), XmlExtractorUtil.contents(resumedFiles, "client-sessions/"));
+        assertEquals(XmlExtractorUtil.contents(freshFiles, "retained-messages/"), XmlExtractorUtil.contents(resumedFiles, "retained-messages/"));
+    }
+
+    /**
+     * @return The class path of the tests, also if they are run by a class loader of their own.
+     */
+    private static String classPath() throws URISyntaxException {
+        final StringJoiner classPath = new StringJoiner(File.pathSeparator);
+        classPath.add(System.getProperty("java.class.path"));
+        if (TestResumeBackup.class.getClassLoader() instanceof URLClassLoader) {
+            for (final URL url : ((URLClassLoader) TestResumeBackup.class.getClassLoader()).getURLs()) {
+                classPath.add(Path.of(url.toURI()).toString());
+            }
+        }
+        return classPath.toString();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto;
+
+import com.hivemq.backup.mosquitto.extension.TemporaryFolderExtension;
+import com.hivemq.backup.mosquitto.util.MosquittoDbBuilder;
+import com.hivemq.backup.mosquitto.util.XmlExtractorUtil;
+import com.hivemq.backup.mosquitto.utils.BackupVerifier;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the retained message shards roll over into several files which together hold every retained message
+ * once, and that the manifest of such a backup verifies.
+ *
+ * @since 1.0.0
+ */
+@ExtendWith(TemporaryFolderExtension.class)
+class TestRetainedMessageFiles {
+
+    private static final int RETAINED_MESSAGES = 60;
+
+    private Path currentTemporaryFolder;
+
+    @RegisterExtension
+    TemporaryFolderExtension temporaryFolder = new TemporaryFolderExtension(this.getClass().getResource(".").getPath());
+
+    @BeforeEach
+    void setup() throws IOException {
+        currentTemporaryFolder = temporaryFolder.newFolder().toPath();
+    }
+
+    @Test
+    void retainedShards_smallMaxFileSize_rollOverAndVerify() throws Exception {
+        final Path db = MosquittoDbBuilder.broker(10, RETAINED_MESSAGES).write(currentTemporaryFolder.resolve("mosquitto.db"));
+
+        final List<Path> backups = XmlExtractorUtil.createBackups(db, currentTemporaryFolder.resolve("backup"), "-rs", "3", "-xs", "2000");
+        assertEquals(1, backups.size());
+        assertTrue(new BackupVerifier(backups.get(0), 2).verify());
+
+        final SortedMap<String, String> files = XmlExtractorUtil.readBackup(backups.get(0), false);
+        final List<String> topics = new ArrayList<>();
+        for (int shard = 1; shard <= 3; shard++) {
+            final String shardPrefix = "retained-messages/MOSQU-retained-messages-" + shard + "-";
+            int shardFiles = 0;
+            for (final Map.Entry<String, String> file : files.entrySet()) {
+                if (!file.getKey().startsWith(shardPrefix)) {
+                    continue;
+                }
+                shardFiles++;
+                // every file of a shard is a complete document of its own
+                final Element root = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                        .parse(new ByteArrayInputStream(file.getValue().getBytes(UTF_8))).getDocumentElement();
+                assertEquals("retained-messages", root.getTagName());
+                final NodeList topicElements = root.getElementsByTagName("topic");
+                for (int i = 0; i < topicElements.getLength(); i++) {
+                    topics.add(topicElements.item(i).getTextContent());
+                }
+            }
+            assertTrue(shardFiles > 1, "shard " + shard + " did not roll over");
+        }
+
+        final List<String> expected = new ArrayList<>();
+        for (int i = 0; i < RETAINED_MESSAGES; i++) {
+            expected.add("retained/" + i);
+        }
+        Collections.sort(expected);
+        Collections.sort(topics);
+        assertEquals(expected, topics);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto;
+
+import com.hivemq.backup.mosquitto.extension.TemporaryFolderExtension;
+import com.hivemq.backup.mosquitto.util.MosquittoDbBuilder;
+import com.hivemq.backup.mosquitto.util.XmlExtractorUtil;
+import com.hivemq.backup.mosquitto.utils.BackupVerifier;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that a backup written to stdout is a complete backup and that the log messages go to stderr. The export runs
+ * in its own process, so its stdout is a pipe like in a shell pipeline.
+ *
+ * @since 1.0.0
+ */
+@ExtendWith(TemporaryFolderExtension.class)
+class TestStreamBackup {
+
+    private static final byte[] ZIP_SIGNATURE = {'P', 'K', 3, 4};
+
+    private Path currentTemporaryFolder;
+
+    @RegisterExtension
+    TemporaryFolderExtension temporaryFolder = new TemporaryFolderExtension(this.getClass().getResource(".").getPath());
+
+    @BeforeEach
+    void setup() throws IOException {
+        currentTemporaryFolder = temporaryFolder.newFolder().toPath();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"--stream", "-o=-"})
+    void stream_stdout_onlyHoldsTheBackup(final String streamOption) throws Exception {
+        final Path db = MosquittoDbBuilder.broker(50, 5).write(currentTemporaryFolder.resolve("mosquitto.db"));
+        final Path stdout = currentTemporaryFolder.resolve("stdout.backup");
+        final Path stderr = currentTemporaryFolder.resolve("stderr.log");
+        // the default output folder
+        final Path workingFolder = Files.createDirectory(currentTemporaryFolder.resolve("working"));
+
+        final Process process = new ProcessBuilder(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"),
+                XmlFromMosquittoDB.class.getName(),
+                "-i", db.toString(), streamOption, "-pi", "0")
+                .directory(workingFolder.toFile())
+                .redirectOutput(stdout.toFile())
+                .redirectError(stderr.toFile())
+                .start();
+        assertTrue(process.waitFor(60, TimeUnit.SECONDS));
+        assertEquals(0, process.exitValue());
+
+        final String log = Files.readString(stderr, UTF_8);
+        assertTrue(log.contains("INFO: Backup written to stdout."), log);
+        final byte[] backup = Files.readAllBytes(stdout);
+        assertArrayEquals(ZIP_SIGNATURE, Arrays.copyOf(backup, ZIP_SIGNATURE.length));
+        assertFalse(new String(backup, ISO_8859_1).contains("INFO:"));
+
+        assertTrue(new BackupVerifier(stdout, 2).verify());
+        final List<Path> expected = XmlExtractorUtil.createBackups(db, currentTemporaryFolder.resolve("folder"));
+        assertEquals(xmlFiles(expected.get(0)), xmlFiles(stdout));
+        // nothing is written to the output folder
+        try (final Stream<Path> files = Files.list(workingFolder)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    private static SortedMap<String, String> xmlFiles(final Path backup) throws IOException {
+        final SortedMap<String, String> files = XmlExtractorUtil.readBackup(backup);
+        files.keySet().removeIf(name -> !name.endsWith(".xml"));
+        return files;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto;
+
+import com.hivemq.backup.mosquitto.extension.TemporaryFolderExtension;
+import com.hivemq.backup.mosquitto.util.MosquittoDbBuilder;
+import com.hivemq.backup.mosquitto.util.XmlExtractorUtil;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the client sessions rendered by several threads are the same as the ones rendered by a single thread and
+ * are written in the same order.
+ *
+ * @since 1.0.0
+ */
+@ExtendWith(TemporaryFolderExtension.class)
+class TestThreadedExport {
+
+    private Path currentTemporaryFolder;
+
+    @RegisterExtension
+    TemporaryFolderExtension temporaryFolder = new TemporaryFolderExtension(this.getClass().getResource(".").getPath());
+
+    @BeforeEach
+    void setup() throws IOException {
+        currentTemporaryFolder = temporaryFolder.newFolder().toPath();
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {2, 4})
+    void threads_severalThreads_sameFilesAsSingleThread(final int threads) throws IOException {
+        final Path db = MosquittoDbBuilder.broker(500, 20).write(currentTemporaryFolder.resolve("mosquitto.db"));
+
+        final List<Path> singleThread = XmlExtractorUtil.createBackups(db, currentTemporaryFolder.resolve("single"), "-t", "1");
+        final List<Path> severalThreads = XmlExtractorUtil.createBackups(db, currentTemporaryFolder.resolve("several"), "-t", String.valueOf(threads));
+        assertEquals(1, singleThread.size());
+        assertEquals(1, severalThreads.size());
+
+        final SortedMap<String, String> expected = xmlFiles(singleThread.get(0));
+        assertEquals(500, expected.keySet().stream().filter(name -> name.startsWith("client-sessions/")).count());
+        assertEquals(expected, xmlFiles(severalThreads.get(0)));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 4})
+    void threads_repeatedExports_sameEntryOrder(final int threads) throws IOException {
+        final Path db = MosquittoDbBuilder.broker(500, 20).write(currentTemporaryFolder.resolve("mosquitto.db"));
+
+        final List<Path> singleThread = XmlExtractorUtil.createBackups(db, currentTemporaryFolder.resolve("single"), "-t", "1");
+        final List<Path> first = XmlExtractorUtil.createBackups(db, currentTemporaryFolder.resolve("first"), "-t", String.valueOf(threads));
+        final List<Path> second = XmlExtractorUtil.createBackups(db, currentTemporaryFolder.resolve("second"), "-t", String.valueOf(threads));
+
+        final List<String> expected = XmlExtractorUtil.entryNames(singleThread.get(0));
+        assertEquals(expected, XmlExtractorUtil.entryNames(first.get(0)));
+        assertEquals(expected, XmlExtractorUtil.entryNames(second.get(0)));
+
+        // all retained messages come before the client sessions
+        final int firstRetained = indexOf(expected, "retained-messages/");
+        final int firstSession = indexOf(expected, "client-sessions/");
+        assertTrue(firstRetained >= 0 && firstRetained < firstSession);
+        assertEquals(-1, indexOf(expected.subList(firstSession, expected.size()), "retained-messages/"));
+    }
+
+    private static int indexOf(final List<String> names, final String prefix) {
+        for (int i = 0; i < names.size(); i++) {
+            if (names.get(i).startsWith(prefix)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The xml files of a backup, without the manifest and fingerprints which cover the export times.
+     */
+    private static SortedMap<String, String> xmlFiles(final Path backup) throws IOException {
+        final SortedMap<String, String> xmlFiles = new TreeMap<>();
+        for (final Map.Entry<String, String> file : XmlExtractorUtil.readBackup(backup).entrySet()) {
+            if (file.getKey().endsWith(".xml")) {
+                xmlFiles.put(file.getKey(), file.getValue());
+            }
+        }
+        return xmlFiles;
+    }
+}
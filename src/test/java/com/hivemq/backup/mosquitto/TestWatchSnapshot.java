@@ -0,0 +1,71 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto;
+
+import com.hivemq.backup.mosquitto.extension.TemporaryFolderExtension;
+import com.hivemq.backup.mosquitto.util.MosquittoDbBuilder;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Checks that watch mode only exports snapshots which Mosquitto has completely written.
+ *
+ * @since 1.0.0
+ */
+@ExtendWith(TemporaryFolderExtension.class)
+class TestWatchSnapshot {
+
+    private Path currentTemporaryFolder;
+
+    @RegisterExtension
+    TemporaryFolderExtension temporaryFolder = new TemporaryFolderExtension(this.getClass().getResource(".").getPath());
+
+    @BeforeEach
+    void setup() throws IOException {
+        currentTemporaryFolder = temporaryFolder.newFolder().toPath();
+    }
+
+    @Test
+    void readCompleteSnapshot_completeSnapshot_isRead() throws Exception {
+        final Path db = MosquittoDbBuilder.broker(5, 2).write(currentTemporaryFolder.resolve("mosquitto.db"));
+
+        assertArrayEquals(Files.readAllBytes(db), XmlFromMosquittoDB.readCompleteSnapshot(db));
+    }
+
+    @Test
+    void readCompleteSnapshot_truncatedSnapshot_isSkipped() throws Exception {
+        final byte[] complete = MosquittoDbBuilder.broker(5, 2).build();
+        final Path db = Files.write(currentTemporaryFolder.resolve("mosquitto.db"), Arrays.copyOf(complete, complete.length - 3));
+
+        assertNull(XmlFromMosquittoDB.readCompleteSnapshot(db));
+    }
+
+    @Test
+    void readCompleteSnapshot_missingSnapshot_isSkipped() throws Exception {
+        assertNull(XmlFromMosquittoDB.readCompleteSnapshot(currentTemporaryFolder.resolve("mosquitto.db")));
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.db;
+
+import com.hivemq.backup.mosquitto.util.MosquittoDbBuilder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static com.hivemq.backup.mosquitto.db.QueuedMessageLimit.OverflowPolicy.DROP_NEWEST;
+import static com.hivemq.backup.mosquitto.db.QueuedMessageLimit.OverflowPolicy.DROP_OLDEST;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks which queued and retained messages of a database the {@link Chunk} keeps and when a database is complete.
+ *
+ * @since 1.0.0
+ */
+class TestChunk {
+
+    @Test
+    void queuedMessages_unlimited_keepsAll() {
+        final Chunk chunk = parse(queuedMessages(65530), QueuedMessageLimit.UNLIMITED);
+        assertEquals(List.of(1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L, 10L), storeIds(chunk, "client"));
+        assertEquals(List.of(1L), storeIds(chunk, "other"));
+    }
+
+    @Test
+    void queuedMessages_dropOldest_keepsLastStored() {
+        final Chunk chunk = parse(queuedMessages(1), new QueuedMessageLimit(3, DROP_OLDEST, false));
+        assertEquals(List.of(8L, 9L, 10L), storeIds(chunk, "client"));
+        assertEquals(List.of(1L), storeIds(chunk, "other"));
+    }
+
+    @Test
+    void queuedMessages_dropNewest_keepsFirstStored() {
+        final Chunk chunk = parse(queuedMessages(1), new QueuedMessageLimit(3, DROP_NEWEST, false));
+        assertEquals(List.of(1L, 2L, 3L), storeIds(chunk, "client"));
+        assertEquals(List.of(1L), storeIds(chunk, "other"));
+    }
+
+    // the message ids pass the sign bit of a short or wrap from 65535 to 1 after the fifth message
+    @ParameterizedTest
+    @ValueSource(ints = {32763, 65531})
+    void queuedMessages_wrappedMessageIds_dropOldest_keepsLastStored(final int firstMid) {
+        final Chunk chunk = parse(queuedMessages(firstMid), new QueuedMessageLimit(3, DROP_OLDEST, false));
+        assertEquals(List.of(8L, 9L, 10L), storeIds(chunk, "client"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {32763, 65531})
+    void queuedMessages_wrappedMessageIds_dropNewest_keepsFirstStored(final int firstMid) {
+        final Chunk chunk = parse(queuedMessages(firstMid), new QueuedMessageLimit(3, DROP_NEWEST, false));
+        assertEquals(List.of(1L, 2L, 3L), storeIds(chunk, "client"));
+    }
+
+    @Test
+    void queuedMessages_discardQos0_dropsQos0BeforeTheLimit() {
+        final Chunk chunk = parse(queuedMessages(1), new QueuedMessageLimit(3, DROP_OLDEST, true));
+        // the even store ids are queued with QoS 0
+        assertEquals(List.of(5L, 7L, 9L), storeIds(chunk, "client"));
+        assertEquals(List.of(1L), storeIds(chunk, "other"));
+    }
+
+    @Test
+    void retainedMessages_duplicateTopics_keepsHighestStoreId() {
+        final byte[] db = new MosquittoDbBuilder()
+                .msgStore(1, "a", "a-1", true)
+                .msgStore(2, "b", "b-2", true)
+                .msgStore(3, "a", "a-3", true)
+                .msgStore(4, "c", "c-4", true)
+                .msgStore(5, "b", "b-5", true)
+                // the retain chunks are not in the order of their store ids
+                .retain(3).retain(2).retain(5).retain(1).retain(4)
+                // a retain chunk without a stored message is skipped
+                .retain(6)
+                .build();
+        final Chunk chunk = parse(db, QueuedMessageLimit.UNLIMITED);
+
+        final List<ChunkMsgStore> retained = chunk.getRetainedMessages();
+        assertEquals(List.of("a", "b", "c"), retained.stream().map(ChunkMsgStore::getTopic).collect(Collectors.toList()));
+        assertEquals(List.of(3L, 5L, 4L), retained.stream().map(ChunkMsgStore::getStoreId).collect(Collectors.toList()));
+        assertSame(retained, chunk.getRetainedMessages());
+    }
+
+    @Test
+    void isComplete_wholeDatabase_true() {
+        assertTrue(Chunk.isComplete(MosquittoDbBuilder.broker(3, 2).build()));
+        assertTrue(Chunk.isComplete(new MosquittoDbBuilder().build()));
+    }
+
+    @Test
+    void isComplete_truncatedDatabase_false() {
+        final byte[] oneClient = new MosquittoDbBuilder().client("a", MosquittoDbBuilder.SESSION_NEVER_EXPIRES).build();
+        final byte[] db = new MosquittoDbBuilder().client("a", MosquittoDbBuilder.SESSION_NEVER_EXPIRES)
+                .client("b", MosquittoDbBuilder.SESSION_NEVER_EXPIRES).build();
+        assertArrayEquals(oneClient, Arrays.copyOf(db, oneClient.length));
+
+        // the last chunk is cut off anywhere
+        assertTrue(Chunk.isComplete(Arrays.copyOf(db, oneClient.length)));
+        for (int length = oneClient.length + 1; length < db.length; length++) {
+            assertFalse(Chunk.isComplete(Arrays.copyOf(db, length)), "length " + length);
+        }
+        // the header is cut off
+        assertFalse(Chunk.isComplete(Arrays.copyOf(db, 10)));
+    }
+
+    @Test
+    void isComplete_otherHeader_false() {
+        final byte[] db = MosquittoDbBuilder.broker(3, 2).build();
+        db[3] = 'M';
+        assertFalse(Chunk.isComplete(db));
+    }
+
+    /**
+     * Ten messages for one client and one for another, with message ids counting up from the first message id.
+     */
+    private static byte[] queuedMessages(final int firstMid) {
+        final MosquittoDbBuilder db = new MosquittoDbBuilder()
+                .client("client", MosquittoDbBuilder.SESSION_NEVER_EXPIRES)
+                .client("other", MosquittoDbBuilder.SESSION_NEVER_EXPIRES);
+        for (int storeId = 1; storeId <= 10; storeId++) {
+            db.msgStore(storeId, "topic", "payload-" + storeId, false);
+        }
+        int mid = firstMid;
+        for (int storeId = 1; storeId <= 10; storeId++) {
+            db.clientMessage(storeId, mid, "client", storeId % 2);
+            mid = (mid == 65535) ? 1 : mid + 1;
+        }
+        db.clientMessage(1, 1, "other", 1);
+        return db.build();
+    }
+
+    private static Chunk parse(final byte[] db, final QueuedMessageLimit limit) {
+        final Chunk chunk = new Chunk(false, limit);
+        chunk.createChunksFromBinary(db, false);
+        return chunk;
+    }
+
+    private static List<Long> storeIds(final Chunk chunk, final String clientId) {
+        return chunk.getChunkClientMessages().stream()
+                .filter(message -> message.getClientId().equals(clientId))
+                .map(ChunkClientMessage::getStoreId)
+                .collect(Collectors.toList());
+    }
+}
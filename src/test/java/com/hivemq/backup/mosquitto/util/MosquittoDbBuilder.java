@@ -0,0 +1,146 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Builds a Mosquitto database with the chunks the tests need, without properties.
+ *
+ * @since 1.0.0
+ */
+public class MosquittoDbBuilder {
+
+    public static final int SESSION_NEVER_EXPIRES = -1;
+
+    private static final byte[] FILE_HEADER = {0x00, (byte) 0xB5, 0x00, 'm', 'o', 's', 'q', 'u', 'i', 't', 't', 'o', ' ', 'd', 'b'};
+    private static final int DB_VERSION = 6;
+
+    private final @NotNull ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+
+    public MosquittoDbBuilder() {
+        final ByteBuffer cfg = buffer(Long.BYTES + 8);
+        cfg.order(ByteOrder.LITTLE_ENDIAN).putLong(0).order(ByteOrder.BIG_ENDIAN);
+        cfg.put((byte) 0).put((byte) Long.BYTES);
+        chunk(1, cfg);
+    }
+
+    /**
+     * A broker with persistent clients, each with a subscription and two queued messages, and retained messages.
+     */
+    public static @NotNull MosquittoDbBuilder broker(final int clients, final int retainedMessages) {
+        final MosquittoDbBuilder db = new MosquittoDbBuilder();
+        long storeId = 1;
+        for (int i = 0; i < retainedMessages; i++) {
+            db.msgStore(storeId, "retained/" + i, "retained-payload-" + i, true).retain(storeId);
+            storeId++;
+        }
+        for (int i = 0; i < clients; i++) {
+            final String clientId = "client-" + i;
+            db.msgStore(storeId, "topic/" + i, "payload-" + i, false).clientMessage(storeId, 1, clientId, 1);
+            db.msgStore(storeId + 1, "topic/" + i, "payload-" + i + "-2", false).clientMessage(storeId + 1, 2, clientId, 2);
+            db.subscription(clientId, "topic/" + i, 1).client(clientId, SESSION_NEVER_EXPIRES);
+            storeId += 2;
+        }
+        return db;
+    }
+
+    public @NotNull MosquittoDbBuilder msgStore(final long storeId, final @NotNull String topic, final @NotNull String payload, final boolean retain) {
+        return msgStore(storeId, topic, payload, retain, 0);
+    }
+
+    public @NotNull MosquittoDbBuilder msgStore(final long storeId,
+                                                final @NotNull String topic,
+                                                final @NotNull String payload,
+                                                final boolean retain,
+                                                final long expiryTime) {
+        final byte[] topicBytes = topic.getBytes(UTF_8);
+        final byte[] payloadBytes = payload.getBytes(UTF_8);
+        final byte[] source = "publisher".getBytes(UTF_8);
+        final ByteBuffer body = buffer(2 * Long.BYTES + Integer.BYTES + 5 * Short.BYTES + 2 + source.length + topicBytes.length + payloadBytes.length);
+        body.order(ByteOrder.LITTLE_ENDIAN).putLong(storeId).putLong(expiryTime).order(ByteOrder.BIG_ENDIAN);
+        body.putInt(payloadBytes.length).putShort((short) 0).putShort((short) source.length).putShort((short) 0)
+                .putShort((short) topicBytes.length).putShort((short) 0).put((byte) 1).put((byte) (retain ? 1 : 0));
+        body.put(source).put(topicBytes).put(payloadBytes);
+        return chunk(2, body);
+    }
+
+    public @NotNull MosquittoDbBuilder clientMessage(final long storeId, final int mid, final @NotNull String clientId, final int qos) {
+        final byte[] id = clientId.getBytes(UTF_8);
+        final ByteBuffer body = buffer(Long.BYTES + 2 * Short.BYTES + 4 + id.length);
+        body.order(ByteOrder.LITTLE_ENDIAN).putLong(storeId).order(ByteOrder.BIG_ENDIAN);
+        body.putShort((short) mid).putShort((short) id.length).put((byte) qos).put((byte) 0).put((byte) 0).put((byte) 1).put(id);
+        return chunk(3, body);
+    }
+
+    public @NotNull MosquittoDbBuilder retain(final long storeId) {
+        final ByteBuffer body = buffer(Long.BYTES);
+        body.order(ByteOrder.LITTLE_ENDIAN).putLong(storeId);
+        return chunk(4, body);
+    }
+
+    public @NotNull MosquittoDbBuilder subscription(final @NotNull String clientId, final @NotNull String topic, final int qos) {
+        final byte[] id = clientId.getBytes(UTF_8);
+        final byte[] topicBytes = topic.getBytes(UTF_8);
+        final ByteBuffer body = buffer(Integer.BYTES + 2 * Short.BYTES + 4 + id.length + topicBytes.length);
+        body.putInt(0).putShort((short) id.length).putShort((short) topicBytes.length).put((byte) qos).put((byte) 0)
+                .putShort((short) 0).put(id).put(topicBytes);
+        return chunk(5, body);
+    }
+
+    public @NotNull MosquittoDbBuilder client(final @NotNull String clientId, final int sessionExpiryInterval) {
+        final byte[] id = clientId.getBytes(UTF_8);
+        final ByteBuffer body = buffer(Long.BYTES + Integer.BYTES + 2 * Short.BYTES + id.length);
+        body.order(ByteOrder.LITTLE_ENDIAN).putLong(0).order(ByteOrder.BIG_ENDIAN);
+        body.putInt(sessionExpiryInterval).putShort((short) 0).putShort((short) id.length).put(id);
+        return chunk(6, body);
+    }
+
+    public @NotNull byte[] build() {
+        final ByteBuffer header = buffer(FILE_HEADER.length + 2 * Integer.BYTES);
+        header.put(FILE_HEADER).putInt(0).putInt(DB_VERSION);
+        final ByteArrayOutputStream db = new ByteArrayOutputStream();
+        db.writeBytes(header.array());
+        db.writeBytes(chunks.toByteArray());
+        return db.toByteArray();
+    }
+
+    public @NotNull Path write(final @NotNull Path file) throws IOException {
+        return Files.write(file, build());
+    }
+
+    private @NotNull MosquittoDbBuilder chunk(final int type, final @NotNull ByteBuffer body) {
+        final ByteBuffer header = buffer(2 * Integer.BYTES);
+        header.putInt(type).putInt(body.capacity());
+        chunks.writeBytes(header.array());
+        chunks.writeBytes(body.array());
+        return this;
+    }
+
+    private static @NotNull ByteBuffer buffer(final int size) {
+        return ByteBuffer.allocate(size);
+    }
+}
@@ -20,13 +20,23 @@ import com.hivemq.backup.mosquitto.XmlFromMosquittoDB;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.List;
 import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 /**
  * @author Lukas Brand
@@ -45,9 +55,98 @@ public class XmlExtractorUtil {
         final @NotNull String mosquittoFolder = outputFolder + "/mosquitto";
         XmlFromMosquittoDB.main("-i", mosquittoFile.toString(), "-o", mosquittoFolder + "/backup");
         final @NotNull Stream<Path> walk = Files.walk(Paths.get(mosquittoFolder + "/backup"));
+        // the export summary lies next to the backup
         final @NotNull List<String> result = walk.filter(Files::isRegularFile).map(Path::toString)
+                .filter(file -> file.endsWith(".backup"))
                 .collect(Collectors.toList());
         return CopyUtil.unZip(Objects.requireNonNull(CopyUtil.fetchFirstMatchFromList(result, "backup")), mosquittoFolder);
     }
 
+    /**
+     * Runs the export of a Mosquitto database.
+     *
+     * @param mosquittoFile The Mosquitto database.
+     * @param outputFolder  The output folder of the export.
+     * @param options       Further command line options.
+     * @return All backups in the output folder, sorted by their path.
+     */
+    public static @NotNull List<Path> createBackups(final @NotNull Path mosquittoFile,
+                                                    final @NotNull Path outputFolder,
+                                                    final @NotNull String... options) throws IOException {
+        final List<String> args = new ArrayList<>(List.of("-i", mosquittoFile.toString(), "-o", outputFolder.toString(), "-pi", "0"));
+        Collections.addAll(args, options);
+        XmlFromMosquittoDB.main(args.toArray(String[]::new));
+        return findBackups(outputFolder);
+    }
+
+    /**
+     * @return All backups in the folder and its sub folders, sorted by their path.
+     */
+    public static @NotNull List<Path> findBackups(final @NotNull Path folder) throws IOException {
+        if (!Files.exists(folder)) {
+            return List.of();
+        }
+        try (final Stream<Path> walk = Files.walk(folder)) {
+            return walk.filter(file -> file.toString().endsWith(".backup")).sorted().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Reads the files of a backup. The export times in the XML files are replaced by {@code <time>}, so the files of
+     * different exports of the same database are equal.
+     *
+     * @return The content of every file by its name.
+     */
+    public static @NotNull SortedMap<String, String> readBackup(final @NotNull Path backupFile) throws IOException {
+        return readBackup(backupFile, true);
+    }
+
+    /**
+     * Reads the files of a backup.
+     *
+     * @param withoutExportTimes Whether the export times in the XML files are replaced by {@code <time>}.
+     * @return The content of every file by its name.
+     */
+    public static @NotNull SortedMap<String, String> readBackup(final @NotNull Path backupFile, final boolean withoutExportTimes) throws IOException {
+        final SortedMap<String, String> files = new TreeMap<>();
+        try (final ZipFile zip = new ZipFile(backupFile.toFile())) {
+            final Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                try (final InputStream in = zip.getInputStream(entry)) {
+                    final String content = new String(in.readAllBytes(), UTF_8);
+                    files.put(entry.getName(), withoutExportTimes && entry.getName().endsWith(".xml") ? content.replaceAll("\\d{12,}", "<time>") : content);
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * @return The names of the files of a backup in the order they were written.
+     */
+    public static @NotNull List<String> entryNames(final @NotNull Path backupFile) throws IOException {
+        final List<String> names = new ArrayList<>();
+        try (final ZipFile zip = new ZipFile(backupFile.toFile())) {
+            final Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                names.add(entries.nextElement().getName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return The contents of the files of a backup whose names start with the prefix, sorted.
+     */
+    public static @NotNull List<String> contents(final @NotNull SortedMap<String, String> backup, final @NotNull String prefix) {
+        return backup.entrySet().stream()
+                .filter(file -> file.getKey().startsWith(prefix))
+                .map(file -> file.getValue())
+                .sorted()
+                .collect(Collectors.toList());
+    }
 }
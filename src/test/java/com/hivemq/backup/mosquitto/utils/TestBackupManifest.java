@@ -0,0 +1,58 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that the {@link BackupManifest.Hasher} hashes content passed in pieces like the manifest hashes content in
+ * memory.
+ *
+ * @since 1.0.0
+ */
+class TestBackupManifest {
+
+    @Test
+    void hasher_wholeContent_matchesHash() {
+        final Random random = new Random(42);
+        for (int length = 0; length < 200; length++) {
+            final byte[] data = new byte[length];
+            random.nextBytes(data);
+            final BackupManifest.Hasher hasher = BackupManifest.hasher();
+            hasher.update(data, 0, length);
+            assertEquals(BackupManifest.hash(data, 0, length), hasher.getValue(), "length " + length);
+        }
+    }
+
+    @Test
+    void hasher_pieces_matchHash() {
+        final Random random = new Random(7);
+        final byte[] data = new byte[100_003];
+        random.nextBytes(data);
+        for (final int piece : new int[]{1, 3, 31, 32, 33, 1000, 65536}) {
+            final BackupManifest.Hasher hasher = BackupManifest.hasher();
+            for (int offset = 0; offset < data.length; offset += piece) {
+                hasher.update(data, offset, Math.min(piece, data.length - offset));
+            }
+            assertEquals(BackupManifest.hash(data, 0, data.length), hasher.getValue(), "piece " + piece);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Checks that the {@link CompressionSampler} chooses a profile once the sample size is reached and weighs the
+ * compression time against the transfer time.
+ *
+ * @since 1.0.0
+ */
+class TestCompressionSampler {
+
+    // per 1000 sampled bytes: the output size and the compression time of STORE, FAST, BALANCED and MAX
+    private static final long[] OUTPUT = {1000, 500, 400, 390};
+    private static final long[] TIME = {1_000, 100_000, 400_000, 2_000_000};
+
+    @Test
+    void sample_belowSampleSize_noProfile() {
+        final CompressionSampler sampler = new CompressionSampler(10_000, 1024 * 1024, 1);
+        for (int i = 0; i < 9; i++) {
+            sampler.sample(1000, OUTPUT, TIME);
+        }
+        assertNull(sampler.getSelected());
+    }
+
+    @Test
+    void sample_sampleSizeReached_profileStaysChosen() {
+        final CompressionSampler sampler = new CompressionSampler(10_000, 1024 * 1024, 1);
+        for (int i = 0; i < 10; i++) {
+            sampler.sample(1000, OUTPUT, TIME);
+        }
+        assertEquals(CompressionProfile.FAST, sampler.getSelected());
+
+        // later entries do not change the choice
+        sampler.sample(1_000_000, new long[]{1_000_000, 1, 1, 1}, new long[]{1, 1, 1, 1});
+        assertEquals(CompressionProfile.FAST, sampler.getSelected());
+    }
+
+    @Test
+    void sample_bandwidth_weighsTransferAgainstCompression() {
+        assertEquals(CompressionProfile.STORE, sampleUntilChosen(Long.MAX_VALUE / 2, 1));
+        assertEquals(CompressionProfile.MAX, sampleUntilChosen(1, 1));
+        // a medium bandwidth with enough threads makes the slower compression affordable
+        assertEquals(CompressionProfile.FAST, sampleUntilChosen(1024 * 1024, 1));
+        assertEquals(CompressionProfile.BALANCED, sampleUntilChosen(1024 * 1024, 16));
+    }
+
+    private static CompressionProfile sampleUntilChosen(final long targetBandwidth, final int compressionThreads) {
+        final CompressionSampler sampler = new CompressionSampler(1000, targetBandwidth, compressionThreads);
+        sampler.sample(1000, OUTPUT, TIME);
+        return sampler.getSelected();
+    }
+}
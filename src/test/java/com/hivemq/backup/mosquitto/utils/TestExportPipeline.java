@@ -0,0 +1,106 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+/**
+ * Checks that the {@link ExportPipeline} takes the files of a lane while an earlier lane has none ready, that it writes
+ * them in the order of the lanes and that a failed write reaches the producers.
+ *
+ * @since 1.0.0
+ */
+class TestExportPipeline {
+
+    @Test
+    void lane_idleLane_doesNotBlockLaterLanes() throws IOException {
+        final RecordingSink sink = new RecordingSink();
+        final ExportPipeline pipeline = new ExportPipeline(sink, 2, new MemoryBudget(1024 * 1024));
+        final ExportSink idleLane = pipeline.lane();
+        final ExportSink busyLane = pipeline.lane();
+
+        // far more files than the queue of the busy lane holds, while the idle lane has none
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            for (int i = 0; i < 100; i++) {
+                writeFile(busyLane, "busy-" + i);
+            }
+        });
+        writeFile(idleLane, "idle");
+        idleLane.close();
+        busyLane.close();
+        pipeline.close();
+
+        // the files of the earlier lane come first
+        assertEquals(101, sink.names.size());
+        assertEquals("idle", sink.names.get(0));
+        for (int i = 0; i < 100; i++) {
+            assertEquals("busy-" + i, sink.names.get(i + 1));
+        }
+    }
+
+    @Test
+    void close_failedWrite_isThrown() throws IOException {
+        final ExportPipeline pipeline = new ExportPipeline(new RecordingSink() {
+            @Override
+            public OutputStream open(final String name) throws IOException {
+                throw new IOException("disk full");
+            }
+        }, 2, new MemoryBudget(1024 * 1024));
+        final ExportSink lane = pipeline.lane();
+
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> assertThrows(IOException.class, () -> {
+            for (int i = 0; i < 100; i++) {
+                writeFile(lane, "file-" + i);
+            }
+        }));
+        lane.close();
+        assertThrows(IOException.class, pipeline::close);
+    }
+
+    private static void writeFile(final ExportSink lane, final String name) throws IOException {
+        try (final OutputStream out = lane.open(name)) {
+            out.write(name.getBytes());
+        }
+    }
+
+    private static class RecordingSink implements ExportSink {
+
+        final List<String> names = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public OutputStream open(final String name) throws IOException {
+            names.add(name);
+            return new ByteArrayOutputStream();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the percentiles of the {@link LatencyHistogram} stay within the width of their bucket.
+ *
+ * @since 1.0.0
+ */
+class TestLatencyHistogram {
+
+    @Test
+    void getPercentile_empty_isZero() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(0.99));
+        assertEquals(0, histogram.getMax());
+    }
+
+    @Test
+    void getPercentile_smallValues_areExact() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 8; i++) {
+            histogram.record(i);
+        }
+        assertEquals(3, histogram.getPercentile(0.5));
+        assertEquals(7, histogram.getPercentile(1));
+    }
+
+    @Test
+    void getPercentile_uniformValues_withinBucketWidth() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100_000; i++) {
+            histogram.record(i * 1_000L);
+        }
+        assertEquals(100_000, histogram.getCount());
+        assertEquals(50_000_500, histogram.getMean());
+        assertEquals(100_000_000, histogram.getMax());
+        assertWithin(50_000_000, histogram.getPercentile(0.5));
+        assertWithin(90_000_000, histogram.getPercentile(0.9));
+        assertWithin(99_000_000, histogram.getPercentile(0.99));
+        assertEquals(100_000_000, histogram.getPercentile(1));
+    }
+
+    @Test
+    void reset_forgetsValues() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+        histogram.reset();
+        histogram.record(100);
+        assertEquals(1, histogram.getCount());
+        assertEquals(100, histogram.getMax());
+        assertEquals(100, histogram.getPercentile(0.5));
+    }
+
+    private static void assertWithin(final long expected, final long actual) {
+        assertTrue(actual >= expected && actual <= expected * 1.125, "percentile " + actual + " for " + expected);
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the {@link NodeShards} spread the clients evenly and move as few clients as possible when a node is
+ * added.
+ *
+ * @since 1.0.0
+ */
+class TestNodeShards {
+
+    private static final int CLIENTS = 10_000;
+
+    @Test
+    void nodeOf_singleNode_isAlwaysZero() {
+        final NodeShards shards = new NodeShards(1);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, shards.nodeOf("client-" + i));
+        }
+    }
+
+    @Test
+    void nodeOf_spreadsClientsEvenly() {
+        final NodeShards shards = new NodeShards(4);
+        final int[] clients = new int[4];
+        for (int i = 0; i < CLIENTS; i++) {
+            clients[shards.nodeOf("client-" + i)]++;
+        }
+        for (final int nodeClients : clients) {
+            assertTrue(Math.abs(nodeClients - CLIENTS / 4) < CLIENTS / 40, "uneven node: " + nodeClients);
+        }
+    }
+
+    @Test
+    void nodeOf_addedNode_onlyTakesClients() {
+        final NodeShards three = new NodeShards(3);
+        final NodeShards four = new NodeShards(4);
+        int moved = 0;
+        for (int i = 0; i < CLIENTS; i++) {
+            final int before = three.nodeOf("client-" + i);
+            final int after = four.nodeOf("client-" + i);
+            if (before != after) {
+                assertEquals(3, after);
+                moved++;
+            }
+        }
+        assertTrue(Math.abs(moved - CLIENTS / 4) < CLIENTS / 40, "moved clients: " + moved);
+    }
+}
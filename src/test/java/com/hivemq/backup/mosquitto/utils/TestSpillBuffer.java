@@ -0,0 +1,113 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that a {@link SpillBuffer} stays within its {@link MemoryBudget} and keeps its content when it spills.
+ *
+ * @since 1.0.0
+ */
+class TestSpillBuffer {
+
+    @Test
+    void write_withinBudget_staysInMemory() throws IOException {
+        try (final MemoryBudget budget = new MemoryBudget(64 * 1024)) {
+            final SpillBuffer buffer = new SpillBuffer(budget, 1024);
+            final byte[] content = randomBytes(10_000);
+            buffer.write(content);
+            buffer.close();
+
+            assertFalse(buffer.isSpilled());
+            assertEquals(content.length, buffer.size());
+            assertTrue(budget.getUsed() >= content.length);
+            assertArrayEquals(content, readAll(buffer));
+
+            buffer.release();
+            assertEquals(0, budget.getUsed());
+        }
+    }
+
+    @Test
+    void write_exceedingBudget_spillsWholeContent() throws IOException {
+        try (final MemoryBudget budget = new MemoryBudget(16 * 1024)) {
+            final SpillBuffer buffer = new SpillBuffer(budget, 1024);
+            final byte[] content = randomBytes(100_000);
+            for (int offset = 0; offset < content.length; offset += 777) {
+                buffer.write(content, offset, Math.min(777, content.length - offset));
+            }
+            buffer.write(content[0]);
+            buffer.close();
+
+            assertTrue(buffer.isSpilled());
+            assertEquals(content.length + 1, buffer.size());
+            assertEquals(0, budget.getUsed());
+            final byte[] read = readAll(buffer);
+            assertEquals(content.length + 1, read.length);
+            for (int i = 0; i < content.length; i++) {
+                assertEquals(content[i], read[i]);
+            }
+            assertEquals(content[0], read[content.length]);
+            buffer.release();
+        }
+    }
+
+    @Test
+    void write_exhaustedBudget_spillsOtherBuffers() throws IOException {
+        try (final MemoryBudget budget = new MemoryBudget(4096)) {
+            final SpillBuffer first = new SpillBuffer(budget, 4096);
+            first.write(randomBytes(4000));
+            first.close();
+            final SpillBuffer second = new SpillBuffer(budget, 4096);
+            final byte[] content = randomBytes(100);
+            second.write(content);
+            second.close();
+
+            assertFalse(first.isSpilled());
+            assertTrue(second.isSpilled());
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            second.writeTo(out);
+            assertArrayEquals(content, out.toByteArray());
+            first.release();
+            second.release();
+            assertEquals(0, budget.getUsed());
+        }
+    }
+
+    private static byte[] readAll(final SpillBuffer buffer) throws IOException {
+        try (final InputStream in = buffer.getInputStream()) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static byte[] randomBytes(final int length) {
+        final byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
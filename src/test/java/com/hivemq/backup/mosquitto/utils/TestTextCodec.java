@@ -0,0 +1,164 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that the accelerated and the scalar implementation of the {@link TextCodec} give identical results.
+ *
+ * @since 1.0.0
+ */
+class TestTextCodec {
+
+    private static final int[] NAME_CODE_POINTS = "abcXYZ019-_/+#$\"'`´€§ &<>;:|~^\t\näß漢😀".codePoints().toArray();
+
+    private final Random random = new Random(4711);
+
+    @AfterEach
+    void restoreDefault() {
+        TextCodec.setAccelerated(TextCodec.ACCELERATION_SUPPORTED);
+    }
+
+    @Test
+    void base64_matchesJdkEncoder() {
+        for (int length = 0; length < 200; length++) {
+            final byte[] source = randomBytes(length + 5);
+            final int offset = random.nextInt(5);
+            final byte[] expected = Base64.getEncoder().encode(Arrays.copyOfRange(source, offset, offset + length));
+
+            final byte[] scalar = new byte[expected.length + 3];
+            final byte[] jdk = new byte[expected.length + 3];
+            assertEquals(expected.length + 3, TextCodec.encodeBase64Scalar(source, offset, length, scalar, 3));
+            assertEquals(expected.length + 3, TextCodec.encodeBase64Jdk(source, offset, length, jdk, 3));
+            assertArrayEquals(expected, Arrays.copyOfRange(scalar, 3, scalar.length));
+            assertArrayEquals(expected, Arrays.copyOfRange(jdk, 3, jdk.length));
+        }
+    }
+
+    @Test
+    void ascii_wordsMatchScalar() {
+        for (int length = 0; length < 64; length++) {
+            final byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = (byte) random.nextInt(0x80);
+            }
+            assertEquals(true, TextCodec.isAsciiScalar(bytes, 0, length));
+            assertEquals(true, TextCodec.isAsciiWords(bytes, 0, length));
+
+            // a single non ASCII byte at every position
+            for (int position = 0; position < length; position++) {
+                final byte original = bytes[position];
+                bytes[position] = (byte) (0x80 | random.nextInt(0x80));
+                assertEquals(false, TextCodec.isAsciiScalar(bytes, 0, length));
+                assertEquals(false, TextCodec.isAsciiWords(bytes, 0, length));
+                bytes[position] = original;
+            }
+        }
+    }
+
+    @Test
+    void utf8_wordsMatchScalarAndJdkDecoder() {
+        for (int i = 0; i < 20_000; i++) {
+            final byte[] bytes = (i % 2 == 0) ? randomName(random.nextInt(40)).getBytes(UTF_8) : randomBytes(random.nextInt(40));
+            if (i % 3 == 0 && bytes.length > 0) {
+                bytes[random.nextInt(bytes.length)] = (byte) random.nextInt(256);
+            }
+            final boolean expected = isWellFormed(bytes);
+            assertEquals(expected, TextCodec.isValidUtf8Scalar(bytes, 0, bytes.length), () -> Arrays.toString(bytes));
+            assertEquals(expected, TextCodec.isValidUtf8Words(bytes, 0, bytes.length), () -> Arrays.toString(bytes));
+        }
+    }
+
+    @Test
+    void validName_wordsMatchScalarAndMustEncode() {
+        for (int i = 0; i < 20_000; i++) {
+            final String name = randomName(random.nextInt(40));
+            final byte[] utf8 = name.getBytes(UTF_8);
+            final boolean expected = !DataExportUtil.mustEncode(name);
+            assertEquals(expected, TextCodec.isValidNameScalar(utf8, 0, utf8.length), name);
+            assertEquals(expected, TextCodec.isValidNameWords(utf8, 0, utf8.length), name);
+        }
+    }
+
+    @Test
+    void xmlWriter_sameOutputForBothImplementations() {
+        for (int i = 0; i < 2_000; i++) {
+            final String name = randomName(random.nextInt(40));
+            final byte[] payload = randomBytes(random.nextInt(100));
+            assertArrayEquals(render(name, payload, false), render(name, payload, true), name);
+        }
+        // an unpaired surrogate can not be written as UTF-8, so the name must be base64 encoded
+        final String unpaired = "topic/\uD800";
+        assertArrayEquals(render(unpaired, new byte[0], false), render(unpaired, new byte[0], true));
+        assertEquals(true, new String(render(unpaired, new byte[0], true), UTF_8).contains("<topic-base64>true</topic-base64>"));
+    }
+
+    private static byte[] render(final String name, final byte[] payload, final boolean accelerated) {
+        TextCodec.setAccelerated(accelerated);
+        final BackupXmlWriter writer = new BackupXmlWriter(64, true);
+        final BackupXmlWriter.Tag base64 = BackupXmlWriter.Tag.of("topic-base64");
+        final BackupXmlWriter.Tag topic = BackupXmlWriter.Tag.of("topic");
+        writer.writeName(base64, topic, name, 1);
+        writer.writeName(base64, topic, writer.encodeName(name), 1);
+        writer.writeBytes(BackupXmlWriter.Tag.of("message"), payload, 1);
+        return writer.toByteArray();
+    }
+
+    private String randomName(final int length) {
+        final StringBuilder name = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            // mostly valid chars, so the words are not rejected by their first char
+            if (random.nextInt(10) == 0) {
+                name.appendCodePoint(NAME_CODE_POINTS[random.nextInt(NAME_CODE_POINTS.length)]);
+            } else {
+                name.appendCodePoint(NAME_CODE_POINTS[random.nextInt(16)]);
+            }
+        }
+        return name.toString();
+    }
+
+    private byte[] randomBytes(final int length) {
+        final byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static boolean isWellFormed(final byte[] bytes) {
+        try {
+            UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(bytes));
+            return true;
+        } catch (final CharacterCodingException ex) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2019 HiveMQ and the HiveMQ Community
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.hivemq.backup.mosquitto.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Compares the scalar and the accelerated implementation of the {@link TextCodec} and the alternatives which were
+ * considered for them on the inputs of an export: short names, longer UTF-8 text and payloads of different sizes.
+ * <p>
+ * The inputs are generated with a fixed seed, every case is warmed up and then timed in several rounds, the median of
+ * the rounds is printed in nanoseconds per operation. Run it with {@code ./gradlew benchmarkTextCodec}.
+ *
+ * @since 1.0.0
+ */
+public class TextCodecBenchmark {
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 11;
+    private static final long ROUND_NANOS = 200_000_000L;
+
+    // keeps the results alive, so the JIT can not drop the timed work
+    private static volatile long sink;
+
+    public static void main(final String[] args) {
+        final Random random = new Random(4711);
+        final List<byte[]> names = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            names.add(("devices/building-" + random.nextInt(100) + "/floor-" + random.nextInt(20) + "/sensor-" + random.nextInt(1000)).getBytes(UTF_8));
+        }
+        final List<byte[]> texts = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            texts.add(("Temperatur im Büro " + i + " beträgt " + random.nextInt(40) + " °C, Luftfeuchte " + random.nextInt(100) + " %").getBytes(UTF_8));
+        }
+
+        final Map<String, Operation> isAscii = new LinkedHashMap<>();
+        isAscii.put("scalar", bytes -> TextCodec.isAsciiScalar(bytes, 0, bytes.length) ? 1 : 0);
+        isAscii.put("words", bytes -> TextCodec.isAsciiWords(bytes, 0, bytes.length) ? 1 : 0);
+        print("isAscii names", names, isAscii);
+
+        final Map<String, Operation> isValidUtf8 = new LinkedHashMap<>();
+        isValidUtf8.put("scalar", bytes -> TextCodec.isValidUtf8Scalar(bytes, 0, bytes.length) ? 1 : 0);
+        isValidUtf8.put("words", bytes -> TextCodec.isValidUtf8Words(bytes, 0, bytes.length) ? 1 : 0);
+        print("isValidUtf8 names", names, isValidUtf8);
+        print("isValidUtf8 text", texts, isValidUtf8);
+
+        final Map<String, Operation> isValidName = new LinkedHashMap<>();
+        isValidName.put("scalar", bytes -> TextCodec.isValidNameScalar(bytes, 0, bytes.length) ? 1 : 0);
+        isValidName.put("words", bytes -> TextCodec.isValidNameWords(bytes, 0, bytes.length) ? 1 : 0);
+        isValidName.put("bitset", bytes -> isValidNameBitset(bytes) ? 1 : 0);
+        print("isValidName names", names, isValidName);
+
+        for (final int size : new int[]{16, 32, 64, 128, 256, 4 * 1024, 64 * 1024}) {
+            final List<byte[]> payloads = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                final byte[] payload = new byte[size];
+                random.nextBytes(payload);
+                payloads.add(payload);
+            }
+            final byte[] destination = new byte[(size + 2) / 3 * 4];
+            final Map<String, Operation> encodeBase64 = new LinkedHashMap<>();
+            encodeBase64.put("scalar", bytes -> TextCodec.encodeBase64Scalar(bytes, 0, bytes.length, destination, 0));
+            encodeBase64.put("jdk", bytes -> TextCodec.encodeBase64Jdk(bytes, 0, bytes.length, destination, 0));
+            print("encodeBase64 " + size + " bytes", payloads, encodeBase64);
+        }
+    }
+
+    /**
+     * The alternative to the word check of ASCII names: the ASCII words are checked byte by byte against the bitset of
+     * the valid chars.
+     */
+    private static boolean isValidNameBitset(final byte[] utf8) {
+        int i = 0;
+        for (; i + Long.BYTES <= utf8.length; i += Long.BYTES) {
+            if (!TextCodec.isAsciiScalar(utf8, i, Long.BYTES)) {
+                return TextCodec.isValidNameScalar(utf8, i, utf8.length - i);
+            }
+            for (int j = i; j < i + Long.BYTES; j++) {
+                if (!DataExportUtil.isValidChar((char) utf8[j])) {
+                    return false;
+                }
+            }
+        }
+        return TextCodec.isValidNameScalar(utf8, i, utf8.length - i);
+    }
+
+    private static void print(final String name, final List<byte[]> inputs, final Map<String, Operation> implementations) {
+        final StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "%-26s", name));
+        for (final Map.Entry<String, Operation> implementation : implementations.entrySet()) {
+            line.append(String.format(Locale.ROOT, " %8s %10.1f ns", implementation.getKey(), measure(inputs, implementation.getValue())));
+        }
+        System.out.println(line);
+    }
+
+    /**
+     * @return The median time of an operation in nanoseconds.
+     */
+    private static double measure(final List<byte[]> inputs, final Operation operation) {
+        final byte[][] array = inputs.toArray(new byte[0][]);
+        final double[] rounds = new double[MEASURED_ROUNDS];
+        for (int round = -WARMUP_ROUNDS; round < MEASURED_ROUNDS; round++) {
+            long operations = 0;
+            long result = 0;
+            final long start = System.nanoTime();
+            long elapsed;
+            do {
+                for (final byte[] input : array) {
+                    result += operation.run(input);
+                }
+                operations += array.length;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < ROUND_NANOS);
+            sink += result;
+            if (round >= 0) {
+                rounds[round] = (double) elapsed / operations;
+            }
+        }
+        Arrays.sort(rounds);
+        return rounds[MEASURED_ROUNDS / 2];
+    }
+
+    private interface Operation {
+        long run(byte[] input);
+    }
+}